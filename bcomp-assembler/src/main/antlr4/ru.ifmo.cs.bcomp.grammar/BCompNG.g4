@@ -115,8 +115,12 @@ string
    : STRING
    ;
 
+// Mnemonics of extended microprogram are not reserved
 name
    : NAME
+   | MUL
+   | DIV
+   | MOVE
    ;
 
 number
@@ -128,12 +132,12 @@ comment
    : COMMENT
    ;
 
-addr: AND | OR | ADD | ADC | SUB | CMP | LOOP | LD | SWAM | JUMP | CALL | ST;
+addr: AND | OR | ADD | ADC | SUB | CMP | LOOP | LD | SWAM | JUMP | CALL | ST | MUL;
 nonaddr: NOP | HLT | CLA | NOT | CLC | CMC | ROL | ROR | ASL | ASR | SXTB | SWAB |
          INC | DEC | NEG | POP | POPF | RET | IRET | PUSH | PUSHF | SWAP |
-         EI  | DI;
+         EI  | DI | DIV;
 branch: BEQ | BNE | BMI | BPL | BCS | BCC | BVS | BVC | BLT | BGE | BR;
-io:  IN | OUT | INT;
+io:  IN | OUT | INT | MOVE;
 
 sp: SP;
 ip: IP;
@@ -233,6 +237,7 @@ SWAM: ( S W A M ) | ( RO RB RM RE RN );  // ОБМЕН
 JUMP: ( J U M P ) | ( RP RR RII RG );    //ПРЫГ
 CALL: ( C A L L ) | ( RV RZH RU RKH );   // ВЖУХ
 ST: ( S T ) | ( RT RSSIGN RF RU );       //ТЬФУ
+MUL: ( M U L ) | ( RU RM RN RO RZH );    //УМНОЖ
 
 NOP: ( N O P ) | ( RP RR RO RP ); // ПРОП
 HLT: ( H L T ) | ( RS RT RO RP ); // СТОП
@@ -256,6 +261,8 @@ IRET: ( I R E T ) | ( RV RO RZ RV RR RP) | (RV RZ RA RD RP);  // ВОЗВРП |
 PUSH: ( P U S H ) | ( RS RU RN RSSIGN ); // СУНЬ
 PUSHF: ( P U S H F ) | ( RS RU RN RSSIGN RF); // СУНЬФ
 SWAP: ( S W A P ) | ( RM RE RN RSSIGN ); // МЕНЬ
+DIV: ( D I V ) | ( RD RE RL RI ); // ДЕЛИ
+MOVE: ( M O V E ) | ( RK RO RP RI ); // КОПИ
 
 BEQ: ( B E Q ) | ( B Z S ) | ( RB RYA RK RA ); // БЯКА
 BNE: ( B N E ) | ( B Z C ) | ( RB RN RE RK RA ); // БНЕКА
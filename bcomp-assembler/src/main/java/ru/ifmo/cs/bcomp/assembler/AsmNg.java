@@ -6,15 +6,27 @@
 package ru.ifmo.cs.bcomp.assembler;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ErrorNode;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import ru.ifmo.cs.bcomp.grammar.*;
+import ru.ifmo.cs.components.BinaryImage;
 import ru.ifmo.cs.bcomp.grammar.BCompNGParser.*;
 
 /**
+ * Assembler for basic computer
+ * <p>
+ * Instance compiles one program and should be used by one thread.
+ * Independent programs may be compiled concurrently by different instances,
+ * use compileAll for batch compilation. ANTLR ATN and DFA cache are static
+ * in generated parser and shared by all instances.
+ *
  * @author serge
  */
 public class AsmNg {
@@ -61,38 +73,178 @@ public class AsmNg {
         }
     }
 
-    private CodePointCharStream program;
-    private BCompNGLexer lexer;
-    private CommonTokenStream tokens;
+    private static volatile boolean warm = false;
+
+    private final AsmNgSession session;
     private BCompNGParser parser;
     private AssemblerAntlrErrorStrategy errHandler;
+    private ANTLRErrorListener lsnr;
+    // Words waiting for label definition in single pass mode
+    private HashMap<String, List<MemoryWord>> fixups = null;
+    // Semantic errors found while parser is running in single pass mode
+    private List<AssemblerException> pending = null;
+    private AssemblerException failure = null;
+    // Relocations of object being compiled
+    private List<ObjectFile.Relocation> relocations = null;
+    // Instruction costs for optimizer or null when optimization is off
+    private TickCost tickCost = null;
+    // Added to line numbers of words, lines compiled separately start from line 1
+    private int lineOffset = 0;
+    private int optimized = 0;
+    private int savedTicks = 0;
     private HashMap<String, Label> labels;
     private TreeMap<Integer, Label> globalLabelsByAddress;
     private HashMap<Integer, MemoryWord> memory;
     private List<String> errors;
+    private final int maxAddress;
 
-    protected AsmNg(CodePointCharStream program) {
-        this.program = program;
+    AsmNg(AsmNgSession session, CharStream program) {
+        this.session = session;
+        this.maxAddress = (1 << session.getAddressWidth()) - 1;
         labels = new HashMap<String, Label>();
         memory = new HashMap<Integer, MemoryWord>();
         globalLabelsByAddress = new TreeMap<Integer, Label>();
         //
-        lexer = new BCompNGLexer(program);
-        tokens = new CommonTokenStream(lexer);
-        this.parser = new BCompNGParser(tokens);
         errHandler = new AssemblerAntlrErrorStrategy();
-        parser.setErrorHandler(errHandler);
         errors = new ArrayList<String>();
-        ANTLRErrorListener lsnr = new AsmNGErrorListener(errors);
-        lexer.removeErrorListeners();
-        parser.removeErrorListeners();
-        lexer.addErrorListener(lsnr);
-        parser.addErrorListener(lsnr);
+        lsnr = new AsmNGErrorListener(errors);
+        parser = session.reset(program, lsnr);
+    }
+
+    protected AsmNg(CodePointCharStream program, int addressWidth) {
+        this(new AsmNgSession(addressWidth), program);
     }
 
     public AsmNg(String program) {
+        this(program, MemoryWord.ADDRESS_WIDTH);
+    }
+
+    /**
+     * @param addressWidth memory address width of target basic computer
+     */
+    public AsmNg(String program, int addressWidth) {
         //TODO fix grammar prog statement
-        this(CharStreams.fromString(program + "\n"));
+        this(CharStreams.fromString(program + "\n"), addressWidth);
+    }
+
+    /**
+     * @param addressWidth memory address width of target basic computer
+     * @param extended     target runs extended microprogram, MUL, DIV and MOVE are allowed
+     */
+    public AsmNg(String program, int addressWidth, boolean extended) {
+        this(new AsmNgSession(addressWidth, extended), CharStreams.fromString(program + "\n"));
+    }
+
+    /**
+     * Compile independent sources concurrently on common fork-join pool
+     *
+     * @return results in order of sources
+     */
+    public static List<CompilationResult> compileAll(Collection<Source> sources) {
+        return compileAll(sources, ForkJoinPool.commonPool(), MemoryWord.ADDRESS_WIDTH);
+    }
+
+    /**
+     * Compile independent sources concurrently, every pool thread reuses own session
+     *
+     * @return results in order of sources
+     */
+    public static List<CompilationResult> compileAll(Collection<Source> sources, ForkJoinPool pool, final int addressWidth) {
+        Source[] src = sources.toArray(new Source[sources.size()]);
+        CompilationResult[] results = new CompilationResult[src.length];
+        ThreadLocal<AsmNgSession> sessions = new ThreadLocal<AsmNgSession>() {
+            @Override
+            protected AsmNgSession initialValue() {
+                return new AsmNgSession(addressWidth);
+            }
+        };
+
+        pool.invoke(new CompileTask(src, results, sessions, 0, src.length));
+        return Arrays.asList(results);
+    }
+
+    public static CompilationResult compile(Source source, AsmNgSession session) {
+        AsmNg asm = session.newAssembler(source.text);
+        Program prog;
+
+        try {
+            prog = asm.compile();
+        } catch (RuntimeException e) {
+            asm.errors.add("Internal error: " + e);
+            prog = null;
+        }
+
+        return new CompilationResult(source, prog, asm.getErrors());
+    }
+
+    /**
+     * Fill shared ANTLR DFA cache with every instruction and addressing mode,
+     * so first compilations in batch do not pay for full context prediction
+     */
+    public static void warmUp() {
+        if (warm) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder("ORG 0x10\nSTART:\n");
+        for (Instruction i : Instruction.values) {
+            switch (i.type) {
+                case ADDR:
+                    for (String operand : new String[]{"X", "$X", "(X)", "(X)+", "-(X)", "&1", "#1"}) {
+                        sb.append(i.mnemonic).append(' ').append(operand).append('\n');
+                    }
+                    break;
+                case NONADDR:
+                    if (i != Instruction.END) {
+                        sb.append(i.mnemonic).append('\n');
+                    }
+                    break;
+                case BRANCH:
+                    sb.append(i.mnemonic).append(" X\n");
+                    break;
+                case IO:
+                    sb.append(i.mnemonic).append(" 1\n");
+                    break;
+            }
+        }
+        sb.append("X: WORD 1, ?, 0x10, -1\n.L: WORD 2 DUP (?)\nWORD $X\n");
+
+        new AsmNg(sb.toString(), MemoryWord.ADDRESS_WIDTH, true).compile();
+        warm = true;
+    }
+
+    private static class CompileTask extends RecursiveAction {
+        private static final int THRESHOLD = 4;
+
+        private final Source[] sources;
+        private final CompilationResult[] results;
+        private final ThreadLocal<AsmNgSession> sessions;
+        private final int from;
+        private final int to;
+
+        CompileTask(Source[] sources, CompilationResult[] results, ThreadLocal<AsmNgSession> sessions, int from, int to) {
+            this.sources = sources;
+            this.results = results;
+            this.sessions = sessions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                AsmNgSession session = sessions.get();
+
+                for (int i = from; i < to; i++) {
+                    results[i] = compile(sources[i], session);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new CompileTask(sources, results, sessions, from, middle),
+                    new CompileTask(sources, results, sessions, middle, to));
+        }
     }
 
     public BCompNGParser getParser() {
@@ -103,6 +255,36 @@ public class AsmNg {
         return errors;
     }
 
+    /**
+     * Turn on optimization of compile(). For every address instruction with
+     * label or address operand and for BR the cheapest encoding is chosen from
+     * direct absolute and direct relative, so JUMP and BR are relaxed to the
+     * form reaching target. BR may become JUMP with absolute address, so
+     * optimized program is not position independent any more. Memory operands
+     * are never replaced by direct load: console, DMA, loaders and stack may
+     * change any word. Single pass and object compilation are not optimized.
+     *
+     * @param tickCost instruction costs or null to turn optimization off
+     */
+    public void setTickCost(TickCost tickCost) {
+        this.tickCost = tickCost;
+    }
+
+    /**
+     * Number of instructions changed by optimizer
+     */
+    public int getOptimizedWords() {
+        return optimized;
+    }
+
+    /**
+     * Estimated number of ticks saved by optimizer for single execution of
+     * every changed instruction. Relaxed instructions are not counted.
+     */
+    public int getSavedTicks() {
+        return savedTicks;
+    }
+
     public Program compile() {
         Program prog = null;
         try {
@@ -120,277 +302,628 @@ public class AsmNg {
     }
 
     protected void firstPass() {
-        RuleContext tree = getParser().prog();
+        RuleContext tree = session.parse(lsnr, errHandler);
         ParseTreeWalker walker = new ParseTreeWalker();
-        BCompNGListener fp = new BCompNGBaseListener() {
-            private int address = BASE_ADDRESS;
+        walker.walk(new FirstPassListener(), tree);
+    }
+
+    /**
+     * Compile lines parsed separately, every tree is parsed from single line
+     * and its words get line number of tree position in list. Own program text
+     * is parsed only to put parser at the end of program, so errors point to
+     * the same position as in full compilation.
+     */
+    Program compileLines(List<? extends ParseTree> lines) {
+        Program prog = null;
+        try {
+            session.parse(lsnr, errHandler);
+            FirstPassListener fp = new FirstPassListener();
+            ParseTreeWalker walker = new ParseTreeWalker();
+            for (lineOffset = 0; lineOffset < lines.size(); lineOffset++) {
+                walker.walk(fp, lines.get(lineOffset));
+            }
+            lineOffset = 0;
+            prog = secondPass();
+        } catch (AssemblerException e) {
+            reportAndRecoverFromError(e);
+        } finally {
+            lineOffset = 0;
+        }
+        return prog;
+    }
 
-            private Label curLbl = null;
+    /**
+     * Compile program to relocatable object. Labels which are not defined in
+     * program are external symbols to be resolved by linker. Local labels are
+     * not exported.
+     *
+     * @return object or null when program has errors
+     */
+    public ObjectFile compileObject() {
+        relocations = new ArrayList<ObjectFile.Relocation>();
+        try {
+            Program prog = compile();
+            if (prog == null || !errors.isEmpty()) {
+                return null;
+            }
 
-            @Override
-            public void enterLine(LineContext ctx) {
-                //verbose output for debug only
-                //System.out.println("sourceline = "+ctx.getText());
+            Map<String, Integer> symbols = new TreeMap<String, Integer>();
+            for (Map.Entry<String, Label> e : labels.entrySet()) {
+                if (!e.getKey().contains(".") && !"START".equals(e.getKey())) {
+                    symbols.put(e.getKey(), e.getValue().address);
+                }
             }
 
-            @Override
-            public void exitInstructionLine(InstructionLineContext ctx) {
-                LblContext LCtx = ctx.lbl();
-                Label label = null;
-                if (LCtx != null) {
-                    String labelname = LCtx.label().getText();
-                    if (labelname.startsWith("."))
-                        labelname = curLbl.name + labelname;
-                    label = labels.get(labelname);
+            SortedMap<Integer, Integer> lines = new TreeMap<Integer, Integer>();
+            for (MemoryWord w : memory.values()) {
+                if (w.line != 0) {
+                    lines.put(w.address, w.line);
                 }
-                InstructionContext ICtx = ctx.instruction();
-                if (ICtx != null) {
-                    TerminalNode t = getTerminalNode(ICtx);
-                    if (t == null) {
-                        reportAndRecoverFromError(new AssemblerException("Internal error: TerminalNode occasionally is null", parser, ICtx));
-                        return;
+            }
+
+            ArrayList<ObjectFile.Relocation> list = new ArrayList<ObjectFile.Relocation>();
+            for (ObjectFile.Relocation r : relocations) {
+                // Word may be overwritten by another ORG block
+                if (memory.get(r.address) != null) {
+                    list.add(r);
+                }
+            }
+
+            return new ObjectFile(prog.image, labels.containsKey("START") ? prog.start_address : Program.UNDEFINED,
+                    symbols, list, lines);
+        } finally {
+            relocations = null;
+        }
+    }
+
+    /**
+     * Single pass code generation: code is emitted while parsing, every line
+     * subtree is dropped after processing, so parse tree of whole program is never
+     * built. Tokens are still buffered: program is lexed before parsing to report
+     * lexer errors first and to parse it again in LL mode after SLL failure.
+     * References to labels which are not defined yet are kept in fixup lists and
+     * backpatched when label is defined.
+     * <p>
+     * Local label referenced by address instruction belongs to nearest global
+     * label at lower address, which may be defined later in source, so such
+     * references are resolved after parsing and program is the same as compiled
+     * by compile(). Semantic errors are reported after syntax errors as in two
+     * pass mode, but point to the line where they were found.
+     */
+    public Program compileSinglePass() {
+        Program prog = null;
+        final FirstPassListener fp = new FirstPassListener();
+
+        fixups = new HashMap<String, List<MemoryWord>>();
+        pending = new ArrayList<AssemblerException>();
+        try {
+            session.fillTokens();
+            final int mark = errors.size();
+
+            session.parseStreaming(lsnr, errHandler, new ParseTreeListener() {
+                @Override
+                public void visitTerminal(TerminalNode node) {
+                }
+
+                @Override
+                public void visitErrorNode(ErrorNode node) {
+                }
+
+                @Override
+                public void enterEveryRule(ParserRuleContext ctx) {
+                    if (failure == null) {
+                        try {
+                            ctx.enterRule(fp);
+                        } catch (AssemblerException e) {
+                            failure = e;
+                        }
                     }
-                    InstructionWord i = new InstructionWord();
-                    Instruction instr = instructionByParserType(t.getSymbol().getType());
-                    if (instr == null) {
-                        //parser has instruction description but ASM NG has not
-                        //add new instruction to method instructionByParserType and Instruction
-                        reportAndRecoverFromError(new AssemblerException("Internal error: Parser has instruction but assebler hasn't", parser, ICtx));
-                        return;
+                }
+
+                @Override
+                public void exitEveryRule(ParserRuleContext ctx) {
+                    // Stop code generation on first failure, parsing goes on to report syntax errors
+                    if (failure == null) {
+                        try {
+                            ctx.exitRule(fp);
+                        } catch (AssemblerException e) {
+                            failure = e;
+                        }
                     }
-                    i.instruction = instr;
-                    i.address = address;
-                    if (label != null) {
-                        i.label = label;  //labels can also be null by default
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    // Drop results of failed SLL attempt except lexer errors
+                    errors.subList(mark, errors.size()).clear();
+                    labels.clear();
+                    memory.clear();
+                    globalLabelsByAddress.clear();
+                    fixups.clear();
+                    pending.clear();
+                    failure = null;
+                    fp.reset();
+                }
+            });
+
+            List<AssemblerException> found = pending;
+            pending = null;
+            for (AssemblerException ae : found) {
+                reportError(ae);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            for (List<MemoryWord> words : fixups.values()) {
+                for (MemoryWord w : words) {
+                    if (memory.get(w.address) == w) {
+                        resolveWord(w);
                     }
-                    OperandContext OCtx = ICtx.operand();
-                    if (OCtx != null) {
-                        AddressingMode am = addressingModeByParserContext(OCtx);
-                        i.operand = am;
+                }
+            }
+            fixups = null;
+            prog = buildProgram(false);
+        } catch (AssemblerException e) {
+            reportAndRecoverFromError(e);
+        } finally {
+            fixups = null;
+            pending = null;
+            failure = null;
+        }
+        return prog;
+    }
+
+    private void emit(MemoryWord w) {
+        memory.put(w.address, w);
+
+        if (fixups == null) {
+            return;
+        }
+
+        String reference = getReference(w);
+        String local = w instanceof InstructionWord && ((InstructionWord) w).operand != null ?
+                ((InstructionWord) w).operand.reference : null;
+        if (local != null && local.startsWith(".")) {
+            // Never backpatched, full names of labels do not start with dot
+            reference = local;
+        } else if (reference == null || labels.containsKey(reference)) {
+            resolveWord(w);
+            return;
+        }
+
+        List<MemoryWord> words = fixups.get(reference);
+        if (words == null) {
+            fixups.put(reference, words = new ArrayList<MemoryWord>());
+        }
+        words.add(w);
+    }
+
+    private void backpatch(String name) {
+        if (fixups == null) {
+            return;
+        }
+
+        List<MemoryWord> words = fixups.remove(name);
+        if (words != null) {
+            for (MemoryWord w : words) {
+                if (memory.get(w.address) == w) {
+                    resolveWord(w);
+                }
+            }
+        }
+    }
+
+    /**
+     * Full name of label required to compile word or null
+     */
+    private String getReference(MemoryWord w) {
+        if (w instanceof InstructionWord) {
+            InstructionWord iw = (InstructionWord) w;
+
+            if (iw.operand != null && iw.operand.reference != null &&
+                    (iw.instruction.type == Instruction.Type.ADDR || iw.instruction.type == Instruction.Type.BRANCH)) {
+                String reference = iw.operand.reference;
+
+                if (reference.startsWith(".")) {
+                    Integer key = globalLabelsByAddress.floorKey(iw.address);
+                    if (key != null) {
+                        reference = globalLabelsByAddress.get(key).name + reference;
+                    }
+                }
+                return reference;
+            }
+        }
+        return w.value_addr_reference;
+    }
+
+    private class FirstPassListener extends BCompNGBaseListener {
+        private int address = BASE_ADDRESS;
+
+        private Label curLbl = null;
+
+        void reset() {
+            address = BASE_ADDRESS;
+            curLbl = null;
+        }
+
+        @Override
+        public void enterLine(LineContext ctx) {
+            //verbose output for debug only
+            //System.out.println("sourceline = "+ctx.getText());
+        }
+
+        @Override
+        public void exitInstructionLine(InstructionLineContext ctx) {
+            LblContext LCtx = ctx.lbl();
+            Label label = null;
+            if (LCtx != null) {
+                String labelname = LCtx.label().getText();
+                if (labelname.startsWith("."))
+                    labelname = curLbl.name + labelname;
+                label = labels.get(labelname);
+            }
+            InstructionContext ICtx = ctx.instruction();
+            if (ICtx != null) {
+                TerminalNode t = getTerminalNode(ICtx);
+                if (t == null) {
+                    reportAndRecoverFromError(new AssemblerException("Internal error: TerminalNode occasionally is null", parser, ICtx));
+                    return;
+                }
+                InstructionWord i = new InstructionWord();
+                Instruction instr = instructionByParserType(t.getSymbol().getType());
+                if (instr == null) {
+                    //parser has instruction description but ASM NG has not
+                    //add new instruction to method instructionByParserType and Instruction
+                    reportAndRecoverFromError(new AssemblerException("Internal error: Parser has instruction but assebler hasn't", parser, ICtx));
+                    return;
+                }
+                if (instr.extended && !session.isExtended()) {
+                    reportAndRecoverFromError(new AssemblerException("Instruction " + instr.mnemonic +
+                            " requires extended microprogram", parser, ICtx));
+                    return;
+                }
+                i.instruction = instr;
+                i.address = address;
+                i.line = ctx.getStart().getLine() + lineOffset;
+                if (label != null) {
+                    i.label = label;  //labels can also be null by default
+                }
+                OperandContext OCtx = ICtx.operand();
+                if (OCtx != null) {
+                    AddressingMode am = addressingModeByParserContext(OCtx);
+                    i.operand = am;
+                }
+                //process branches. Label in InstructionContext for now can only
+                //be in branches
+                if (instr.type == Instruction.Type.BRANCH && ICtx.label() != null) {
+                    //make fake AddressingMode with references set up
+                    AddressingMode am = new AddressingMode();
+                    i.operand = am;
+                    //make String copy. Do not remove new String(..)
+                    String ref = new String(ICtx.label().getText());
+                    if (ref.startsWith("."))
+                        ref = curLbl.name + ref;
+                    i.operand.reference = ref;
+                    //i.operand.reference = new String(ICtx.label().getText());
+                }
+                if (instr.type == Instruction.Type.IO) {
+                    AssemblerException ae = new AssemblerException("Device or vector shall be valid number", parser, ICtx);
+                    if (ICtx.dev() == null) {
+                        reportAndRecoverFromError(ae);
+                        return;
                     }
-                    //process branches. Label in InstructionContext for now can only
-                    //be in branches
-                    if (instr.type == Instruction.Type.BRANCH && ICtx.label() != null) {
-                        //make fake AddressingMode with references set up
-                        AddressingMode am = new AddressingMode();
-                        i.operand = am;
-                        //make String copy. Do not remove new String(..)
-                        String ref = new String(ICtx.label().getText());
-                        if (ref.startsWith("."))
-                            ref = curLbl.name + ref;
-                        i.operand.reference = ref;
-                        //i.operand.reference = new String(ICtx.label().getText());
+                    NumberContext nc = ICtx.dev().number();
+                    if (nc == null) {
+                        reportAndRecoverFromError(ae);
+                        return;
                     }
-                    if (instr.type == Instruction.Type.IO) {
-                        AssemblerException ae = new AssemblerException("Device or vector shall be valid number", parser, ICtx);
-                        if (ICtx.dev() == null) {
-                            reportAndRecoverFromError(ae);
-                            return;
-                        }
-                        NumberContext nc = ICtx.dev().number();
-                        if (nc == null) {
-                            reportAndRecoverFromError(ae);
-                            return;
-                        }
-                        Integer devnum = parseIntFromNumberContext(nc, parser);
-                        if (devnum == null) {
-                            reportAndRecoverFromError(ae);
-                            return;
-                        }
-                        i.device = devnum;
+                    Integer devnum = parseIntFromNumberContext(nc, parser);
+                    if (devnum == null) {
+                        reportAndRecoverFromError(ae);
+                        return;
                     }
-                    memory.put(i.address, i);
-                    address++;
+                    i.device = devnum;
                 }
+                emit(i);
+                address++;
             }
+        }
 
-            @Override
-            public void exitWordArgument(WordArgumentContext ctx) {
-                MemoryWord m = new MemoryWord();
-                m.address = address;
-                //parse direct numbers
-                NumberContext nc = ctx.number();
-                if (nc != null) {
-                    Integer i = parseIntFromNumberContext(nc, parser);
-                    m.value = i;
-                }
-                //undefined number will assume to 0
-                if ("?".equals(ctx.getText())) {
-                    m.value = 0;
-                }
-                LabelContext lc = ctx.label();
-                if (lc != null) {
-                    String labelname = new String(lc.getText());
+        @Override
+        public void exitWordArgument(WordArgumentContext ctx) {
+            MemoryWord m = new MemoryWord();
+            m.address = address;
+            m.line = ctx.getStart().getLine() + lineOffset;
+            //parse direct numbers
+            NumberContext nc = ctx.number();
+            if (nc != null) {
+                Integer i = parseIntFromNumberContext(nc, parser);
+                m.value = i;
+            }
+            //undefined number will assume to 0
+            if ("?".equals(ctx.getText())) {
+                m.value = 0;
+            }
+            LabelContext lc = ctx.label();
+            if (lc != null) {
+                String labelname = new String(lc.getText());
+                if (labelname.startsWith("."))
+                    labelname = curLbl.name + labelname;
+                m.value_addr_reference = labelname;
+            }
+            //find out label if one and set it up to the first WORD
+            if (ctx.getParent().getParent() instanceof WordDirectiveContext) {
+                WordDirectiveContext wdctx = (WordDirectiveContext) ctx.getParent().getParent();
+                //if label exsist in line
+                if (wdctx.lbl() != null) {
+                    //look for this label address
+                    String labelname = wdctx.lbl().label().getText();
                     if (labelname.startsWith("."))
                         labelname = curLbl.name + labelname;
-                    m.value_addr_reference = labelname;
-                }
-                //find out label if one and set it up to the first WORD
-                if (ctx.getParent().getParent() instanceof WordDirectiveContext) {
-                    WordDirectiveContext wdctx = (WordDirectiveContext) ctx.getParent().getParent();
-                    //if label exsist in line
-                    if (wdctx.lbl() != null) {
-                        //look for this label address
-                        String labelname = wdctx.lbl().label().getText();
-                        if (labelname.startsWith("."))
-                            labelname = curLbl.name + labelname;
-                        Label l = labels.get(labelname);
-                        if (l != null) {
-                            // if label points to this first word instruction
-                            if (l.address == address) {
-                                m.label = l;
-                            }
+                    Label l = labels.get(labelname);
+                    if (l != null) {
+                        // if label points to this first word instruction
+                        if (l.address == address) {
+                            m.label = l;
                         }
                     }
                 }
-                DupArgumentContext dactx = ctx.dupArgument();
-                if (dactx != null) {
-                    Integer count = parseIntFromNumberContext(dactx.count().number(), parser);
-                    if (count <= 1) {
-                        //throw new RuntimeException("Internal error: count should be greater than 1");
-                        reportError(new AssemblerException("DUP count should be greater than 1", parser, dactx));
-                        return;
-                    }
-                    WordArgumentContext what = dactx.wordArgument();
-                    int whatnum = 0;
-                    if (!"?".equals(what.getText())) {
-                        whatnum = parseIntFromNumberContext(what.number(), parser);
-                    }
-                    //System.out.println("DUP="+count+" of "+whatnum);
-                    for (int mm = 1; mm < count; mm++) {
-                        MemoryWord dupm = new MemoryWord();
-                        dupm.address = address++;
-                        dupm.value = whatnum;
-                        memory.put(dupm.address, dupm);
-                    }
+            }
+            DupArgumentContext dactx = ctx.dupArgument();
+            if (dactx != null) {
+                Integer count = parseIntFromNumberContext(dactx.count().number(), parser);
+                if (count <= 1) {
+                    //throw new RuntimeException("Internal error: count should be greater than 1");
+                    reportError(new AssemblerException("DUP count should be greater than 1", parser, dactx));
                     return;
                 }
+                WordArgumentContext what = dactx.wordArgument();
+                int whatnum = 0;
+                if (!"?".equals(what.getText())) {
+                    whatnum = parseIntFromNumberContext(what.number(), parser);
+                }
+                //System.out.println("DUP="+count+" of "+whatnum);
+                for (int mm = 1; mm < count; mm++) {
+                    MemoryWord dupm = new MemoryWord();
+                    dupm.address = address++;
+                    dupm.value = whatnum;
+                    dupm.line = m.line;
+                    emit(dupm);
+                }
+                return;
+            }
 
-                memory.put(m.address, m);
+            emit(m);
 
-                //System.out.println("WORD value = "+i);
-                address++;
-            }
+            //System.out.println("WORD value = "+i);
+            address++;
+        }
 
-            @Override
-            public void exitLbl(LblContext ctx) {
-                Label lab = new Label();
-                //make String copy. Do not remove new String(..)
-                lab.name = new String(ctx.label().getText().trim());
-
-                if (lab.name.startsWith(".")) {
-                    if (curLbl == null) {
-                        reportAndRecoverFromError(
-                                new AssemblerException("Error: defining local label " + lab.name + " without global label",
-                                        parser, ctx));
-                        return;
-                    }
-                    lab.parent = curLbl;
-                }
+        @Override
+        public void exitLbl(LblContext ctx) {
+            Label lab = new Label();
+            //make String copy. Do not remove new String(..)
+            lab.name = new String(ctx.label().getText().trim());
 
-                lab.address = address;
-                if (labels.containsKey(lab.getFullName())) {
-                    //TODO FIX IT with common error message
+            if (lab.name.startsWith(".")) {
+                if (curLbl == null) {
                     reportAndRecoverFromError(
-                            new AssemblerException("Error: already defined label " + lab.getFullName(),
+                            new AssemblerException("Error: defining local label " + lab.name + " without global label",
                                     parser, ctx));
                     return;
                 }
+                lab.parent = curLbl;
+            }
 
-                if (!lab.name.startsWith(".")) {
-                    curLbl = lab;
-                    globalLabelsByAddress.put(address, curLbl);
-                }
-
-                //TODO fix this special case for start label
-                if ("START".equalsIgnoreCase(lab.name) || "НАЧАЛО".equalsIgnoreCase(lab.name) || "ЕДУ".equalsIgnoreCase(lab.name)) {
-                    labels.put(lab.name, lab);
-                    lab.name = "START";
-                }
+            lab.address = address;
+            if (labels.containsKey(lab.getFullName())) {
+                //TODO FIX IT with common error message
+                reportAndRecoverFromError(
+                        new AssemblerException("Error: already defined label " + lab.getFullName(),
+                                parser, ctx));
+                return;
+            }
 
-                labels.put(lab.getFullName(), lab);
+            if (!lab.name.startsWith(".")) {
+                curLbl = lab;
+                globalLabelsByAddress.put(address, curLbl);
             }
 
-            @Override
-            public void exitOrgAddress(OrgAddressContext ctx) {
-                NumberContext n = ctx.address().number();
-                Integer i = parseIntFromNumberContext(n, parser);
-                address = i;
+            //TODO fix this special case for start label
+            if ("START".equalsIgnoreCase(lab.name) || "НАЧАЛО".equalsIgnoreCase(lab.name) || "ЕДУ".equalsIgnoreCase(lab.name)) {
+                labels.put(lab.name, lab);
+                backpatch(lab.name);
+                lab.name = "START";
             }
 
-        };
-        walker.walk(fp, tree);
+            labels.put(lab.getFullName(), lab);
+            backpatch(lab.getFullName());
+        }
+
+        @Override
+        public void exitOrgAddress(OrgAddressContext ctx) {
+            NumberContext n = ctx.address().number();
+            Integer i = parseIntFromNumberContext(n, parser);
+            address = i;
+        }
+
     }
 
     protected Program secondPass() {
+        return buildProgram(true);
+    }
+
+    private Program buildProgram(boolean resolve) {
         if (memory.keySet().isEmpty()) {
             //we need to stop compiling. Cant compile nothing
             AssemblerException ae = new AssemblerException("Second pass failed: no instruction was compiled on first pass.", parser);
             reportError(ae);
             return null;
         }
-        LinkedList<Integer> addresses = new LinkedList<Integer>(memory.keySet());
-        LinkedList<Integer> binary = new LinkedList<Integer>();
+        Integer[] addresses = memory.keySet().toArray(new Integer[0]);
         Program prog = new Program();
         //
-        Collections.sort(addresses);
-        prog.load_address = addresses.getFirst();
+        Arrays.sort(addresses);
+        int first = addresses[0];
+        int last = addresses[addresses.length - 1];
+        if (first < 0 || last > maxAddress) {
+            reportError(new AssemblerException("Second pass: program exceed memory limits [0..0x" +
+                    Integer.toHexString(maxAddress).toUpperCase() + "]", parser));
+        }
+        prog.load_address = first;
         prog.start_address = prog.load_address;
         if (labels.containsKey("START")) {
             prog.start_address = labels.get("START").address;
         }
-        int prev = addresses.getFirst();
-        for (Integer addr : addresses) {
-            MemoryWord w = memory.get(addr);
+        if (resolve && tickCost != null && relocations == null) {
+            optimize();
+        }
+        //each run of consecutive addresses is one segment of image
+        BinaryImage image = new BinaryImage();
+        short[] words = new short[addresses.length];
+        int start = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            MemoryWord w = memory.get(addresses[i]);
+            if (resolve) {
+                resolveWord(w);
+            }
+            words[i] = (short) w.value;
+            if (i + 1 == addresses.length || addresses[i + 1] != w.address + 1) {
+                if (addresses[start] >= 0) {
+                    image.addSegment(addresses[start], Arrays.copyOfRange(words, start, i + 1));
+                }
+                start = i + 1;
+            }
+        }
+        prog.setImage(image);
+        prog.labels = labels;
+        prog.content = memory;
+        return prog;
+    }
+
+    private void optimize() {
+        optimized = 0;
+        savedTicks = 0;
+        for (MemoryWord w : memory.values()) {
             if (w instanceof InstructionWord) {
-                InstructionWord iw = (InstructionWord) w;
-                iw.value = iw.instruction.opcode;
-                switch (iw.instruction.type) {
-                    case NONADDR:
-                        break;
-                    case ADDR:
-                        compileOperand(iw);
-                        break;
-                    case BRANCH:
-                        iw.value = iw.instruction.opcode | convertReferenceToDisplacement(iw);
-                        break;
-                    case IO:
-                        if (iw.instruction.opcode == Instruction.INT.opcode) {
-                            if (iw.device < 0 || iw.device > 7) {
-                                reportError(new AssemblerException("Second pass: vector exceed limits [0..7]", parser));
-                            }
-                            iw.value = iw.instruction.opcode | iw.device;
-                            break;
-                        }
-                        if (iw.device < 0 || iw.device > 255) {
-                            reportError(new AssemblerException("Second pass: device number exceed limits [0..0xff]", parser));
+                optimizeInstruction((InstructionWord) w);
+            }
+        }
+    }
+
+    private void optimizeInstruction(InstructionWord iw) {
+        if (iw.operand == null || iw.operand.addressation == null && iw.instruction != Instruction.BR) {
+            return;
+        }
+        Instruction instr = iw.instruction;
+        AddressingMode.AddressingType mode = iw.operand.addressation;
+        if (instr == Instruction.BR) {
+            instr = Instruction.JUMP;
+            mode = AddressingMode.AddressingType.DIRECT_RELATIVE;
+        } else if (instr.type != Instruction.Type.ADDR || (mode != AddressingMode.AddressingType.DIRECT_ABSOLUTE &&
+                mode != AddressingMode.AddressingType.DIRECT_RELATIVE)) {
+            return;
+        }
+
+        Integer target = getTarget(iw);
+        if (target == null) {
+            return;
+        }
+        String reference = getReference(iw);
+
+        EnumMap<AddressingMode.AddressingType, Integer> encodings =
+                new EnumMap<AddressingMode.AddressingType, Integer>(AddressingMode.AddressingType.class);
+        if (target >= 0 && target <= MemoryWord.MAX_ADDRESS) {
+            encodings.put(AddressingMode.AddressingType.DIRECT_ABSOLUTE, instr.opcode | target);
+        }
+        int displacement = target - iw.address - 1;
+        if (reference != null && displacement >= -128 && displacement <= 127) {
+            encodings.put(AddressingMode.AddressingType.DIRECT_RELATIVE, instr.opcode | 0x0E00 | (displacement & 0xFF));
+        }
+
+        AddressingMode.AddressingType best = encodings.containsKey(mode) ? mode : null;
+        for (Map.Entry<AddressingMode.AddressingType, Integer> e : encodings.entrySet()) {
+            if (best == null || tickCost.getTicks(e.getValue()) < tickCost.getTicks(encodings.get(best))) {
+                best = e.getKey();
+            }
+        }
+        if (best == null || best == mode) {
+            return;
+        }
+
+        if (encodings.containsKey(mode)) {
+            savedTicks += tickCost.getTicks(encodings.get(mode)) - tickCost.getTicks(encodings.get(best));
+        }
+        optimized++;
+
+        AddressingMode am = new AddressingMode();
+        am.addressation = best;
+        am.reference = reference;
+        if (reference == null) {
+            am.number = target;
+        }
+        iw.instruction = instr;
+        iw.operand = am;
+    }
+
+    /**
+     * Address of label or memory cell used by instruction operand or null
+     */
+    private Integer getTarget(InstructionWord iw) {
+        if (iw.operand.reference == null) {
+            return iw.operand.addressation == AddressingMode.AddressingType.DIRECT_ABSOLUTE &&
+                    iw.operand.number != MemoryWord.UNDEFINED ? iw.operand.number : null;
+        }
+        Label l = labels.get(getReference(iw));
+        return l != null ? l.address : null;
+    }
+
+    private void resolveWord(MemoryWord w) {
+        if (w instanceof InstructionWord) {
+            InstructionWord iw = (InstructionWord) w;
+            iw.value = iw.instruction.opcode;
+            switch (iw.instruction.type) {
+                case NONADDR:
+                    break;
+                case ADDR:
+                    compileOperand(iw);
+                    break;
+                case BRANCH:
+                    iw.value = iw.instruction.opcode | convertReferenceToDisplacement(iw);
+                    break;
+                case IO:
+                    if (iw.instruction.opcode == Instruction.INT.opcode) {
+                        if (iw.device < 0 || iw.device > 7) {
+                            reportError(new AssemblerException("Second pass: vector exceed limits [0..7]", parser));
                         }
                         iw.value = iw.instruction.opcode | iw.device;
                         break;
-                }
+                    }
+                    if (iw.device < 0 || iw.device > 255) {
+                        reportError(new AssemblerException("Second pass: " +
+                                (iw.instruction == Instruction.MOVE ? "word count" : "device number") +
+                                " exceed limits [0..0xff]", parser));
+                    }
+                    iw.value = iw.instruction.opcode | iw.device;
+                    break;
             }
-            if (w.value_addr_reference != null) {
-                Label l = labels.get(w.value_addr_reference);
-                if (l == null) {
-                    //TODO error
-                    reportError(new AssemblerException("Second pass: Label " + w.value_addr_reference + " not found", parser));
-                } else {
-                    w.value = l.address;
+        }
+        if (w.value_addr_reference != null) {
+            Label l = labels.get(w.value_addr_reference);
+            if (l == null && relocations != null) {
+                relocations.add(new ObjectFile.Relocation(w.address, ObjectFile.RelocationType.WORD, w.value_addr_reference));
+                w.value = 0;
+            } else if (l == null) {
+                //TODO error
+                reportError(new AssemblerException("Second pass: Label " + w.value_addr_reference + " not found", parser));
+            } else {
+                w.value = l.address;
+                if (relocations != null) {
+                    relocations.add(new ObjectFile.Relocation(w.address, ObjectFile.RelocationType.WORD, null));
                 }
             }
-            while (w.address - prev > 1) {
-                //generate zeroes when hole found
-                binary.add(0);
-                prev++;
-            }
-            binary.add(w.value);
-            prev = w.address; //to be sure
-            //System.out.println(w);
         }
-        prog.binary = binary;
-        prog.labels = labels;
-        prog.content = memory;
-        return prog;
     }
 
     private static Integer parseIntFromNumberContext(NumberContext nc, Parser parser) {
@@ -474,6 +1007,9 @@ public class AsmNg {
             case BCompNGParser.ST:
                 i = Instruction.ST;
                 break;
+            case BCompNGParser.MUL:
+                i = Instruction.MUL;
+                break;
             //Addressless
             case BCompNGParser.NOP:
                 i = Instruction.NOP;
@@ -541,6 +1077,9 @@ public class AsmNg {
             case BCompNGParser.SWAP:
                 i = Instruction.SWAP;
                 break;
+            case BCompNGParser.DIV:
+                i = Instruction.DIV;
+                break;
             //branch
             case BCompNGParser.BEQ:
                 i = Instruction.BEQ;
@@ -590,6 +1129,9 @@ public class AsmNg {
             case BCompNGParser.INT:
                 i = Instruction.INT;
                 break;
+            case BCompNGParser.MOVE:
+                i = Instruction.MOVE;
+                break;
 
             default:
         }
@@ -678,9 +1220,18 @@ public class AsmNg {
                     }
 //                    l = labels.get(iw.operand.reference);
                     if (l == null) {
-                        reportError(new AssemblerException("Second pass: label reference " + iw.operand.reference + " not found", parser));
+                        if (relocations != null) {
+                            relocations.add(new ObjectFile.Relocation(iw.address, ObjectFile.RelocationType.ABSOLUTE,
+                                    getReference(iw)));
+                            num = 0;
+                        } else {
+                            reportError(new AssemblerException("Second pass: label reference " + iw.operand.reference + " not found", parser));
+                        }
                     } else {
                         num = l.address;
+                        if (relocations != null) {
+                            relocations.add(new ObjectFile.Relocation(iw.address, ObjectFile.RelocationType.ABSOLUTE, null));
+                        }
                     }
                 }
                 if ((num > MemoryWord.MAX_ADDRESS) || (num < 0)) {
@@ -747,6 +1298,10 @@ public class AsmNg {
         }
 
         Label l = labels.get(reference);
+        if (l == null && relocations != null) {
+            relocations.add(new ObjectFile.Relocation(iw.address, ObjectFile.RelocationType.RELATIVE, reference));
+            return 0;
+        }
         if (l == null) {
             AssemblerException ae = new AssemblerException("Second pass: label refference " + reference + " not found", parser);
             reportError(ae);
@@ -764,10 +1319,19 @@ public class AsmNg {
     }
 
     private void reportError(AssemblerException ae) {
+        if (pending != null) {
+            pending.add(ae);
+            return;
+        }
         errHandler.reportError(parser, ae);
     }
 
     private void reportAndRecoverFromError(AssemblerException ae) {
+        if (pending != null) {
+            // Parser is still running and recovers by itself
+            pending.add(ae);
+            return;
+        }
         errHandler.reportError(parser, ae);
         errHandler.recover(parser, ae);
     }
@@ -785,12 +1349,13 @@ class AsmNGErrorListener extends BaseErrorListener {
     @Override
     public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
         StringBuilder sb = new StringBuilder();
-        String symbol = offendingSymbol.toString();
+        // Lexer reports errors without offending token
+        String symbol = offendingSymbol == null ? null : offendingSymbol.toString();
         if (offendingSymbol instanceof org.antlr.v4.runtime.Token) {
             symbol = ((org.antlr.v4.runtime.Token) offendingSymbol).getText();
         }
         sb.append("at ").append(line).append(":").append(charPositionInLine);
-        if (!("<EOF>".equalsIgnoreCase(symbol))) {
+        if (symbol != null && !("<EOF>".equalsIgnoreCase(symbol))) {
             sb.append(" near ").append(escapeWSAndQuote(symbol));
         }
         sb.append(" - ").append(msg);
@@ -0,0 +1,171 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import ru.ifmo.cs.bcomp.grammar.BCompNGLexer;
+import ru.ifmo.cs.bcomp.grammar.BCompNGParser;
+
+/**
+ * Reusable lexer and parser pipeline for assembling many programs one after another.
+ * <p>
+ * Session is not thread safe and serves one assembler at a time: creating next
+ * assembler resets lexer and parser used by previous one.
+ * Program is parsed in fast SLL mode first, full LL mode with error reporting
+ * and recovery is used only when SLL parsing fails.
+ */
+public class AsmNgSession {
+    private final int addressWidth;
+    private final boolean extended;
+    private final BCompNGLexer lexer;
+    private final CommonTokenStream tokens;
+    private final BCompNGParser parser;
+    private final BailErrorStrategy bail = new BailErrorStrategy();
+
+    /**
+     * Drops processed lines from program tree, so memory used by parser
+     * does not grow with program size
+     */
+    private static final ParseTreeListener PRUNER = new ParseTreeListener() {
+        @Override
+        public void visitTerminal(TerminalNode node) {
+            prune(node.getParent());
+        }
+
+        @Override
+        public void visitErrorNode(ErrorNode node) {
+            prune(node.getParent());
+        }
+
+        @Override
+        public void enterEveryRule(ParserRuleContext ctx) {
+        }
+
+        @Override
+        public void exitEveryRule(ParserRuleContext ctx) {
+            if (ctx instanceof BCompNGParser.LineContext) {
+                prune(ctx.getParent());
+            }
+        }
+
+        private void prune(Object parent) {
+            if (parent instanceof BCompNGParser.ProgContext) {
+                ((BCompNGParser.ProgContext) parent).removeLastChild();
+            }
+        }
+    };
+
+    public AsmNgSession() {
+        this(MemoryWord.ADDRESS_WIDTH);
+    }
+
+    /**
+     * @param addressWidth memory address width of target basic computer
+     */
+    public AsmNgSession(int addressWidth) {
+        this(addressWidth, false);
+    }
+
+    /**
+     * @param addressWidth memory address width of target basic computer
+     * @param extended     target runs extended microprogram, MUL, DIV and MOVE are allowed
+     */
+    public AsmNgSession(int addressWidth, boolean extended) {
+        this.addressWidth = addressWidth;
+        this.extended = extended;
+        lexer = new BCompNGLexer(CharStreams.fromString(""));
+        tokens = new CommonTokenStream(lexer);
+        parser = new BCompNGParser(tokens);
+        lexer.removeErrorListeners();
+        parser.removeErrorListeners();
+    }
+
+    public int getAddressWidth() {
+        return addressWidth;
+    }
+
+    public boolean isExtended() {
+        return extended;
+    }
+
+    public AsmNg newAssembler(String program) {
+        //TODO fix grammar prog statement
+        return new AsmNg(this, CharStreams.fromString(program + "\n"));
+    }
+
+    BCompNGParser reset(CharStream program, ANTLRErrorListener listener) {
+        lexer.setInputStream(program);
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(listener);
+        tokens.setTokenSource(lexer);
+        parser.setTokenStream(tokens);
+        parser.removeErrorListeners();
+        return parser;
+    }
+
+    /**
+     * Parse program: SLL without error recovery, then LL on syntax error
+     * <p>
+     * Parser is left with specified error strategy and listener in both cases,
+     * so semantic errors of assembler passes are reported the same way
+     */
+    BCompNGParser.ProgContext parse(ANTLRErrorListener listener, ANTLRErrorStrategy errHandler) {
+        BCompNGParser.ProgContext tree;
+
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(bail);
+
+        try {
+            tree = parser.prog();
+        } catch (ParseCancellationException e) {
+            tokens.seek(0);
+            parser.addErrorListener(listener);
+            parser.setErrorHandler(errHandler);
+            parser.reset();
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.prog();
+        }
+
+        parser.addErrorListener(listener);
+        parser.setErrorHandler(errHandler);
+        return tree;
+    }
+
+    void fillTokens() {
+        tokens.fill();
+    }
+
+    /**
+     * Parse program calling line listener for every line as soon as it parsed.
+     * Restart is called before LL parsing when SLL parsing fails, listener should
+     * drop all results of failed attempt.
+     */
+    void parseStreaming(ANTLRErrorListener listener, ANTLRErrorStrategy errHandler,
+                        ParseTreeListener lineListener, Runnable restart) {
+        parser.addParseListener(PRUNER);
+        parser.addParseListener(lineListener);
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(bail);
+
+        try {
+            parser.prog();
+        } catch (ParseCancellationException e) {
+            restart.run();
+            tokens.seek(0);
+            parser.addErrorListener(listener);
+            parser.setErrorHandler(errHandler);
+            parser.reset();
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.prog();
+            return;
+        } finally {
+            parser.removeParseListeners();
+        }
+
+        parser.addErrorListener(listener);
+        parser.setErrorHandler(errHandler);
+    }
+}
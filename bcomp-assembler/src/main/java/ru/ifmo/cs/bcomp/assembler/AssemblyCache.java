@@ -0,0 +1,234 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Cache of compilation results keyed by SHA-256 of normalized source, address width
+ * and extended microprogram target
+ * <p>
+ * Source is normalized by converting line ends to LF and dropping trailing
+ * blanks of every line, so positions in error messages are not changed.
+ * Recently used results are kept in memory, optional directory keeps results
+ * between runs. Results read from disk have no listing (Program.content).
+ * Cached programs are shared and should not be modified. Cache is thread safe.
+ */
+public class AssemblyCache {
+    private static final int MAGIC = 0x42434143; // BCAC
+    private static final int VERSION = 2;
+
+    private static AssemblyCache shared = null;
+
+    private final Path directory;
+    private final LinkedHashMap<String, CompilationResult> results;
+    private long hits = 0;
+    private long misses = 0;
+
+    public AssemblyCache(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param directory directory for persistent results or null
+     */
+    public AssemblyCache(final int capacity, Path directory) {
+        this.directory = directory;
+        results = new LinkedHashMap<String, CompilationResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompilationResult> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Cache shared by all parts of application
+     */
+    public static synchronized AssemblyCache getDefault() {
+        if (shared == null) {
+            shared = new AssemblyCache(64);
+        }
+        return shared;
+    }
+
+    public static synchronized void setDefault(AssemblyCache cache) {
+        shared = cache;
+    }
+
+    public CompilationResult compile(String source) {
+        return compile(source, MemoryWord.ADDRESS_WIDTH);
+    }
+
+    public CompilationResult compile(String source, int addressWidth) {
+        return compile(source, addressWidth, false);
+    }
+
+    /**
+     * @param extended target runs extended microprogram, MUL, DIV and MOVE are allowed
+     */
+    public CompilationResult compile(String source, int addressWidth, boolean extended) {
+        String text = normalize(source);
+        String key = hash(text, addressWidth, extended);
+        CompilationResult result;
+
+        synchronized (this) {
+            result = results.get(key);
+            if (result != null) {
+                hits++;
+                return result;
+            }
+        }
+
+        result = load(key, text);
+        if (result == null) {
+            result = AsmNg.compile(new Source(key, text), new AsmNgSession(addressWidth, extended));
+            store(key, result);
+        }
+
+        synchronized (this) {
+            results.put(key, result);
+            misses++;
+        }
+
+        return result;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        results.clear();
+    }
+
+    static String normalize(String source) {
+        StringBuilder sb = new StringBuilder(source.length());
+        int blanks = 0;
+
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+
+            if (c == '\r') {
+                if (i + 1 < source.length() && source.charAt(i + 1) == '\n') {
+                    continue;
+                }
+                c = '\n';
+            }
+
+            if (c == ' ' || c == '\t') {
+                blanks++;
+                continue;
+            }
+
+            if (c != '\n') {
+                for (; blanks > 0; blanks--) {
+                    sb.append(source.charAt(i - blanks));
+                }
+            }
+            blanks = 0;
+            sb.append(c);
+        }
+
+        return sb.toString();
+    }
+
+    static String hash(String text, int addressWidth, boolean extended) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            StringBuilder sb = new StringBuilder(64);
+
+            md.update((byte) addressWidth);
+            md.update((byte) (extended ? 1 : 0));
+            for (byte b : md.digest(text.getBytes(StandardCharsets.UTF_8))) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private CompilationResult load(String key, String text) {
+        if (directory == null) {
+            return null;
+        }
+
+        Path path = directory.resolve(key);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+
+            if (buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+                return null;
+            }
+
+            List<String> errors = new ArrayList<String>();
+            for (int n = buf.getInt(); n > 0; n--) {
+                errors.add(ObjectFile.readString(buf));
+            }
+
+            Program prog = buf.get() != 0 ? ObjectFile.read(buf).toProgram() : null;
+            return new CompilationResult(new Source(key, text), prog, Collections.unmodifiableList(errors));
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // Damaged file is compiled again
+            return null;
+        }
+    }
+
+    private void store(String key, CompilationResult result) {
+        if (directory == null) {
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            Program prog = result.program;
+            boolean image = prog != null && prog.image != null && !prog.image.isEmpty();
+
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(result.errors.size());
+            for (String error : result.errors) {
+                ObjectFile.writeString(out, error);
+            }
+
+            out.writeBoolean(image);
+            if (image) {
+                Map<String, Integer> symbols = new LinkedHashMap<String, Integer>();
+                for (Map.Entry<String, Label> e : prog.labels.entrySet()) {
+                    symbols.put(e.getKey(), e.getValue().address);
+                }
+                new ObjectFile(prog.image, prog.start_address, symbols,
+                        Collections.<ObjectFile.Relocation>emptyList(), new TreeMap<Integer, Integer>()).write(out);
+            }
+            out.flush();
+
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Cache directory is optional
+        }
+    }
+}
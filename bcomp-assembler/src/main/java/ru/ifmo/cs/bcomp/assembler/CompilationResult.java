@@ -0,0 +1,30 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import java.util.List;
+
+/**
+ * Result of batch compilation of one source
+ */
+public class CompilationResult {
+    public final Source source;
+    /**
+     * Compiled program or null when compilation failed
+     */
+    public final Program program;
+    public final List<String> errors;
+
+    public CompilationResult(Source source, Program program, List<String> errors) {
+        this.source = source;
+        this.program = program;
+        this.errors = errors;
+    }
+
+    public boolean isSuccessful() {
+        return program != null && errors.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "CompilationResult{" + "source=" + source.name + ", errors=" + errors + '}';
+    }
+}
@@ -0,0 +1,286 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import ru.ifmo.cs.components.Utils;
+
+import java.util.Map;
+
+/**
+ * Disassembler of basic computer instructions
+ * <p>
+ * Instruction and addressing mode of every 16-bit word are looked up in
+ * tables built once for the whole opcode space. Only words which assembler
+ * generates are instructions, other words are shown as WORD. MUL, DIV and
+ * MOVE are instructions only for extended microprogram. Targets are
+ * shown by label names from symbol table, otherwise absolute address is
+ * shown as number and relative one as IP+displacement. Formatting appends
+ * to given StringBuilder and does not allocate memory.
+ */
+public class Disassembler {
+    private static final AddressingMode.AddressingType[] MODES = AddressingMode.AddressingType.values();
+    // Instruction ordinal + 1 or 0 for data
+    private static final byte[] INSTRUCTIONS = new byte[0x10000];
+    // Addressing mode ordinal or -1
+    private static final byte[] ADDRESSING = new byte[0x10000];
+
+    static {
+        java.util.Arrays.fill(ADDRESSING, (byte) -1);
+
+        for (Instruction instr : Instruction.values) {
+            switch (instr.type) {
+                case ADDR:
+                    for (int field = 0; field < 0x1000; field++) {
+                        AddressingMode.AddressingType mode = decodeMode(field);
+                        if (mode != null) {
+                            set(instr.opcode | field, instr, mode);
+                        }
+                    }
+                    break;
+                case BRANCH:
+                    if (instr != Instruction.BR) {
+                        for (int field = 0; field < 0x100; field++) {
+                            set(instr.opcode | field, instr, null);
+                        }
+                    }
+                    break;
+                case IO:
+                    for (int field = 0; field < (instr == Instruction.INT ? 8 : 0x100); field++) {
+                        set(instr.opcode | field, instr, null);
+                    }
+                    break;
+                default:
+                    if (instr != Instruction.END) {
+                        set(instr.opcode, instr, null);
+                    }
+            }
+        }
+
+        // Relative JUMP is shown as BR
+        for (int field = 0; field < 0x100; field++) {
+            set(Instruction.BR.opcode | field, Instruction.BR, null);
+        }
+    }
+
+    private final String[] names;
+    private final boolean extended;
+
+    /**
+     * Disassembler without symbol table
+     */
+    public Disassembler() {
+        this(false);
+    }
+
+    /**
+     * @param extended target runs extended microprogram, MUL, DIV and MOVE are decoded
+     */
+    public Disassembler(boolean extended) {
+        names = null;
+        this.extended = extended;
+    }
+
+    public Disassembler(Map<String, Label> labels) {
+        this(labels, false);
+    }
+
+    /**
+     * @param labels   symbol table, names of local labels are used when there is no global one
+     * @param extended target runs extended microprogram, MUL, DIV and MOVE are decoded
+     */
+    public Disassembler(Map<String, Label> labels, boolean extended) {
+        names = new String[0x10000];
+        this.extended = extended;
+
+        for (Label l : labels.values()) {
+            if (l.address < 0 || l.address >= names.length) {
+                continue;
+            }
+            if (names[l.address] == null || names[l.address].contains(".")) {
+                names[l.address] = l.name;
+            }
+        }
+    }
+
+    public Disassembler(Program program) {
+        this(program.labels);
+    }
+
+    public Disassembler(Program program, boolean extended) {
+        this(program.labels, extended);
+    }
+
+    public boolean isExtended() {
+        return extended;
+    }
+
+    /**
+     * @return instruction or null if word is not an instruction
+     */
+    public Instruction getInstruction(int word) {
+        int i = INSTRUCTIONS[word & 0xFFFF];
+
+        if (i == 0) {
+            return null;
+        }
+        Instruction instr = Instruction.values[i - 1];
+        return !instr.extended || extended ? instr : null;
+    }
+
+    /**
+     * @return addressing mode of address instruction or null
+     */
+    public AddressingMode.AddressingType getAddressingMode(int word) {
+        int mode = ADDRESSING[word & 0xFFFF];
+
+        return mode >= 0 && getInstruction(word) != null ? MODES[mode] : null;
+    }
+
+    /**
+     * Operand field: address of direct absolute addressing, signed displacement
+     * or number, device or vector of IO instructions, 0 for addressless ones
+     */
+    public int getOperand(int word) {
+        Instruction instr = getInstruction(word);
+
+        if (instr == null) {
+            return word & 0xFFFF;
+        }
+
+        switch (instr.type) {
+            case ADDR:
+                return getAddressingMode(word) == AddressingMode.AddressingType.DIRECT_ABSOLUTE ?
+                        word & MemoryWord.MAX_ADDRESS : (byte) word;
+            case BRANCH:
+                return (byte) word;
+            case IO:
+                return word & 0xFF;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Name of label at address or null
+     */
+    public String getName(int address) {
+        return names != null && address >= 0 && address < names.length ? names[address] : null;
+    }
+
+    /**
+     * Append instruction at address to builder
+     */
+    public StringBuilder append(StringBuilder sb, int address, int word) {
+        Instruction instr = getInstruction(word);
+
+        if (instr == null) {
+            return appendNumber(sb.append("WORD "), word & 0xFFFF, 16);
+        }
+
+        sb.append(instr.mnemonic);
+        switch (instr.type) {
+            case ADDR:
+                sb.append(' ');
+                appendOperand(sb, address, word, getAddressingMode(word));
+                break;
+            case BRANCH:
+                appendTarget(sb.append(' '), address, (byte) word);
+                break;
+            case IO:
+                appendNumber(sb.append(' '), word & 0xFF, 8);
+                break;
+            default:
+        }
+
+        return sb;
+    }
+
+    /**
+     * Disassembled instruction, allocates new string
+     */
+    public String toString(int address, int word) {
+        return append(new StringBuilder(24), address, word).toString();
+    }
+
+    private void appendOperand(StringBuilder sb, int address, int word, AddressingMode.AddressingType mode) {
+        int displacement = (byte) word;
+
+        switch (mode) {
+            case DIRECT_ABSOLUTE:
+                String name = getName(word & MemoryWord.MAX_ADDRESS);
+                if (name != null) {
+                    sb.append('$').append(name);
+                } else {
+                    appendNumber(sb, word & MemoryWord.MAX_ADDRESS, MemoryWord.ADDRESS_WIDTH);
+                }
+                break;
+            case INDIRECT:
+                appendTarget(sb.append('('), address, displacement).append(')');
+                break;
+            case POST_INCREMENT:
+                appendTarget(sb.append('('), address, displacement).append(")+");
+                break;
+            case PRE_DECREMENT:
+                appendTarget(sb.append("-("), address, displacement).append(')');
+                break;
+            case DISPLACEMENT_SP:
+                sb.append('&').append(displacement);
+                break;
+            case DIRECT_RELATIVE:
+                appendTarget(sb, address, displacement);
+                break;
+            case DIRECT_LOAD:
+                if (displacement < 0) {
+                    appendNumber(sb.append("#-"), -displacement, 8);
+                } else {
+                    appendNumber(sb.append('#'), displacement, 8);
+                }
+                break;
+            default:
+        }
+    }
+
+    private StringBuilder appendTarget(StringBuilder sb, int address, int displacement) {
+        String name = getName(address + 1 + displacement);
+
+        if (name != null) {
+            return sb.append(name);
+        }
+
+        sb.append("IP");
+        if (displacement >= 0) {
+            sb.append('+');
+        }
+        return sb.append(displacement);
+    }
+
+    private static StringBuilder appendNumber(StringBuilder sb, int value, int width) {
+        return Utils.appendHex(sb.append("0x"), value, width);
+    }
+
+    private static AddressingMode.AddressingType decodeMode(int field) {
+        if ((field & 0x0800) == 0) {
+            return AddressingMode.AddressingType.DIRECT_ABSOLUTE;
+        }
+
+        switch (field & 0x0F00) {
+            case 0x0800:
+                return AddressingMode.AddressingType.INDIRECT;
+            case 0x0A00:
+                return AddressingMode.AddressingType.POST_INCREMENT;
+            case 0x0B00:
+                return AddressingMode.AddressingType.PRE_DECREMENT;
+            case 0x0C00:
+                return AddressingMode.AddressingType.DISPLACEMENT_SP;
+            case 0x0E00:
+                return AddressingMode.AddressingType.DIRECT_RELATIVE;
+            case 0x0F00:
+                return AddressingMode.AddressingType.DIRECT_LOAD;
+            default:
+                return null;
+        }
+    }
+
+    private static void set(int word, Instruction instr, AddressingMode.AddressingType mode) {
+        INSTRUCTIONS[word] = (byte) (instr.ordinal() + 1);
+        ADDRESSING[word] = mode != null ? (byte) mode.ordinal() : -1;
+    }
+}
@@ -0,0 +1,130 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Assembler for program being edited
+ * <p>
+ * Every line of program is parsed separately and parse trees are kept between
+ * compilations, so only new and changed lines are lexed and parsed again.
+ * Addresses, labels and references are recalculated from kept trees on every
+ * compilation. Syntax error recovery does not cross line boundary, so
+ * errors of broken program may differ from full compilation.
+ * <p>
+ * Methods are synchronized, compilation may run on any thread.
+ */
+public class IncrementalAssembler {
+    private static final Pattern POSITION = Pattern.compile("^at (\\d+):");
+
+    private static class ParsedLine {
+        final ParseTree tree;
+        // Errors with line number relative to this line
+        final List<String> errors;
+
+        ParsedLine(ParseTree tree, List<String> errors) {
+            this.tree = tree;
+            this.errors = errors;
+        }
+    }
+
+    private final AsmNgSession session;
+    private final AssemblerAntlrErrorStrategy errHandler = new AssemblerAntlrErrorStrategy();
+    private HashMap<String, ParsedLine> lines = new HashMap<String, ParsedLine>();
+    private int parsed = 0;
+
+    public IncrementalAssembler() {
+        this(MemoryWord.ADDRESS_WIDTH);
+    }
+
+    public IncrementalAssembler(int addressWidth) {
+        this(addressWidth, false);
+    }
+
+    /**
+     * @param extended target runs extended microprogram, MUL, DIV and MOVE are allowed
+     */
+    public IncrementalAssembler(int addressWidth, boolean extended) {
+        session = new AsmNgSession(addressWidth, extended);
+    }
+
+    public boolean isExtended() {
+        return session.isExtended();
+    }
+
+    public synchronized CompilationResult compile(String source) {
+        String[] text = (source + "\n").split("\n", -1);
+        HashMap<String, ParsedLine> current = new HashMap<String, ParsedLine>();
+        List<ParseTree> trees = new ArrayList<ParseTree>(text.length);
+        List<String> errors = new ArrayList<String>();
+        StringBuilder end = new StringBuilder(text.length);
+
+        parsed = 0;
+        // The last element is empty tail after final line end
+        for (int i = 0; i < text.length - 1; i++) {
+            ParsedLine line = current.get(text[i]);
+
+            if (line == null) {
+                line = lines.get(text[i]);
+                if (line == null) {
+                    line = parse(text[i]);
+                    parsed++;
+                }
+                current.put(text[i], line);
+            }
+
+            trees.add(line.tree);
+            for (String error : line.errors) {
+                errors.add(moveError(error, i));
+            }
+            end.append('\n');
+        }
+        lines = current;
+
+        AsmNg asm = new AsmNg(session, CharStreams.fromString(end.toString()));
+        Program prog;
+
+        try {
+            prog = asm.compileLines(trees);
+        } catch (RuntimeException e) {
+            asm.getErrors().add("Internal error: " + e);
+            prog = null;
+        }
+
+        errors.addAll(asm.getErrors());
+        return new CompilationResult(new Source("", source), prog, errors);
+    }
+
+    /**
+     * Number of lines parsed by last compilation
+     */
+    public synchronized int getParsedLines() {
+        return parsed;
+    }
+
+    private ParsedLine parse(String text) {
+        List<String> errors = new ArrayList<String>();
+        AsmNGErrorListener listener = new AsmNGErrorListener(errors);
+
+        session.reset(CharStreams.fromString(text + "\n"), listener);
+        ParseTree tree = session.parse(listener, errHandler);
+        return new ParsedLine(tree, errors.isEmpty() ? Collections.<String>emptyList() : errors);
+    }
+
+    private static String moveError(String error, int offset) {
+        Matcher m = POSITION.matcher(error);
+
+        if (!m.find()) {
+            return error;
+        }
+
+        return "at " + (Integer.parseInt(m.group(1)) + offset) + ":" + error.substring(m.end());
+    }
+}
@@ -15,6 +15,8 @@ public enum Instruction {
     AND(0x2000, ADDR), OR(0x3000, ADDR), ADD(0x4000, ADDR), ADC(0x5000, ADDR),
     SUB(0x6000, ADDR), CMP(0x7000, ADDR), LOOP(0x8000, ADDR), LD(0xA000, ADDR),
     SWAM(0xB000, ADDR), JUMP(0xC000, ADDR), CALL(0xD000, ADDR), ST(0xE000, ADDR),
+    //extended microprogram
+    MUL(0x9000, ADDR, true), DIV(0x0F00, NONADDR, true), MOVE(0xFA00, IO, true),
     //addressless
     NOP(0x0000, NONADDR), HLT(0x0100, NONADDR), CLA(0x0200, NONADDR),
     NOT(0x0280, NONADDR), CLC(0x0300, NONADDR), CMC(0x0380, NONADDR),
@@ -36,9 +38,14 @@ public enum Instruction {
     public static final Instruction[] values = Instruction.values();
 
     Instruction(int opcode, Type type) {
+        this(opcode, type, false);
+    }
+
+    Instruction(int opcode, Type type, boolean extended) {
         this.opcode = opcode;
         this.mnemonic = this.name();
         this.type = type;
+        this.extended = extended;
     }
 
     public enum Type {
@@ -50,6 +57,10 @@ public enum Instruction {
     public final int opcode;
     public final String mnemonic;
     public Type type;
+    /**
+     * Instruction is executed only by extended microprogram
+     */
+    public final boolean extended;
 
     public String getTypeString() {
         return type.name();
@@ -0,0 +1,141 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import ru.ifmo.cs.components.BinaryImage;
+
+import java.util.*;
+
+/**
+ * Links object files into one object
+ * <p>
+ * Objects are placed one after another in order of addition, each object is
+ * moved as a whole. Start address is taken from the first object having one.
+ */
+public class Linker {
+    private final List<ObjectFile> objects = new ArrayList<ObjectFile>();
+
+    public Linker add(ObjectFile object) {
+        objects.add(object);
+        return this;
+    }
+
+    /**
+     * Link objects placing the first one at its own load address
+     */
+    public ObjectFile link() {
+        if (objects.isEmpty()) {
+            throw new RuntimeException("Нет объектов для компоновки");
+        }
+
+        return link(objects.get(0).getLoadAddress());
+    }
+
+    public ObjectFile link(int address) {
+        if (objects.isEmpty()) {
+            throw new RuntimeException("Нет объектов для компоновки");
+        }
+
+        int[] deltas = new int[objects.size()];
+        Map<String, Integer> symbols = new LinkedHashMap<String, Integer>();
+        int start = Program.UNDEFINED;
+        int cursor = address;
+
+        for (int i = 0; i < deltas.length; i++) {
+            ObjectFile obj = objects.get(i);
+
+            deltas[i] = cursor - obj.getLoadAddress();
+            for (Map.Entry<String, Integer> e : obj.symbols.entrySet()) {
+                if (symbols.put(e.getKey(), e.getValue() + deltas[i]) != null) {
+                    throw new RuntimeException("Символ " + e.getKey() + " определён в нескольких объектах");
+                }
+            }
+            if (start == Program.UNDEFINED && obj.start_address != Program.UNDEFINED) {
+                start = obj.start_address + deltas[i];
+            }
+            cursor = obj.image.getEndAddress() + deltas[i];
+        }
+
+        BinaryImage image = new BinaryImage();
+        List<ObjectFile.Relocation> relocations = new ArrayList<ObjectFile.Relocation>();
+        SortedMap<Integer, Integer> lines = new TreeMap<Integer, Integer>();
+
+        for (int i = 0; i < deltas.length; i++) {
+            ObjectFile obj = objects.get(i);
+            List<BinaryImage.Segment> segments = obj.image.getSegments();
+            short[][] words = new short[segments.size()][];
+
+            for (int s = 0; s < words.length; s++) {
+                words[s] = segments.get(s).words.clone();
+            }
+
+            for (ObjectFile.Relocation r : obj.relocations) {
+                int s = findSegment(segments, r.address);
+                int offset = r.address - segments.get(s).address;
+                int moved = r.address + deltas[i];
+
+                words[s][offset] = (short) relocate(words[s][offset] & 0xFFFF, r, moved, deltas[i], symbols);
+                if (r.type != ObjectFile.RelocationType.RELATIVE) {
+                    relocations.add(new ObjectFile.Relocation(moved, r.type, null));
+                }
+            }
+
+            for (int s = 0; s < words.length; s++) {
+                image.addSegment(segments.get(s).address + deltas[i], words[s]);
+            }
+
+            for (Map.Entry<Integer, Integer> e : obj.lines.entrySet()) {
+                lines.put(e.getKey() + deltas[i], e.getValue());
+            }
+        }
+
+        return new ObjectFile(image, start, symbols, relocations, lines);
+    }
+
+    private static int relocate(int word, ObjectFile.Relocation r, int address, int delta, Map<String, Integer> symbols) {
+        Integer target = null;
+
+        if (r.isExternal()) {
+            target = symbols.get(r.symbol);
+            if (target == null) {
+                throw new RuntimeException("Символ " + r.symbol + " не определён");
+            }
+        }
+
+        switch (r.type) {
+            case ABSOLUTE:
+                int field = target != null ? target : (word & MemoryWord.MAX_ADDRESS) + delta;
+                if (field < 0 || field > MemoryWord.MAX_ADDRESS) {
+                    throw new RuntimeException("Адрес 0x" + Integer.toHexString(field) +
+                            " по адресу 0x" + Integer.toHexString(address) + " вне диапазона прямой адресации");
+                }
+                return (word & ~MemoryWord.MAX_ADDRESS) | field;
+
+            case WORD:
+                return target != null ? target : word + delta;
+
+            case RELATIVE:
+                if (target == null) {
+                    return word;
+                }
+                int displacement = target - address - 1;
+                if (displacement < -128 || displacement > 127) {
+                    throw new RuntimeException("Смещение до символа " + r.symbol +
+                            " по адресу 0x" + Integer.toHexString(address) + " вне диапазона [-128..127]");
+                }
+                return (word & ~0xFF) | (displacement & 0xFF);
+        }
+
+        return word;
+    }
+
+    private static int findSegment(List<BinaryImage.Segment> segments, int address) {
+        for (int s = 0; s < segments.size(); s++) {
+            BinaryImage.Segment segment = segments.get(s);
+
+            if (address >= segment.address && address < segment.getEndAddress()) {
+                return s;
+            }
+        }
+
+        throw new RuntimeException("Перемещение по адресу 0x" + Integer.toHexString(address) + " вне образа");
+    }
+}
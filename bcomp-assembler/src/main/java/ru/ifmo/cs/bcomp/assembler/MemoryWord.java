@@ -10,12 +10,15 @@ package ru.ifmo.cs.bcomp.assembler;
  */
 public class MemoryWord {
     public final static int UNDEFINED = 0xDEADBEEF;
-    public final static int MAX_ADDRESS = 0x7FF;
+    public final static int ADDRESS_WIDTH = 11;
+    public final static int MAX_ADDRESS = (1 << ADDRESS_WIDTH) - 1;
     public final static int MAX_UNSIGNED = 0xFFFF;
     public volatile int address = UNDEFINED;
     public volatile Label label = null;
     public volatile int value = UNDEFINED;
     public volatile String value_addr_reference = null;
+    // Source line number, 0 if unknown
+    public volatile int line = 0;
 
     @Override
     public String toString() {
@@ -0,0 +1,250 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import ru.ifmo.cs.components.BinaryImage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Relocatable object: memory image, exported symbols, relocations and source line map
+ * <p>
+ * Relocation marks word depending on placement of object or on external symbol.
+ * Internal relocation (symbol is null) holds address inside object and is moved
+ * with object. External relocation field is zero until linker resolves symbol.
+ * File format is big endian: magic, version, start address, then counted lists
+ * of segments, symbols, relocations and line map entries.
+ */
+public class ObjectFile {
+    public static final int MAGIC = 0x42434F42; // BCOB
+    public static final int VERSION = 1;
+
+    public enum RelocationType {
+        // 11-bit address field of direct absolute addressing
+        ABSOLUTE,
+        // Whole word
+        WORD,
+        // 8-bit displacement of relative addressing and branches, external only
+        RELATIVE
+    }
+
+    public static class Relocation {
+        public final int address;
+        public final RelocationType type;
+        public final String symbol;
+
+        public Relocation(int address, RelocationType type, String symbol) {
+            this.address = address;
+            this.type = type;
+            this.symbol = symbol;
+        }
+
+        public boolean isExternal() {
+            return symbol != null;
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toHexString(address) + " " + type + (symbol != null ? " " + symbol : "");
+        }
+    }
+
+    public final BinaryImage image;
+    public final int start_address;
+    public final Map<String, Integer> symbols;
+    public final List<Relocation> relocations;
+    public final SortedMap<Integer, Integer> lines;
+
+    /**
+     * @param start_address start address or Program.UNDEFINED
+     */
+    public ObjectFile(BinaryImage image, int start_address, Map<String, Integer> symbols,
+                      List<Relocation> relocations, SortedMap<Integer, Integer> lines) {
+        if (image.isEmpty()) {
+            throw new RuntimeException("Объектный файл не содержит кода");
+        }
+
+        this.image = image;
+        this.start_address = start_address;
+        this.symbols = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(symbols));
+        this.relocations = Collections.unmodifiableList(new ArrayList<Relocation>(relocations));
+        this.lines = Collections.unmodifiableSortedMap(new TreeMap<Integer, Integer>(lines));
+    }
+
+    public int getLoadAddress() {
+        return image.getLoadAddress();
+    }
+
+    /**
+     * Names of symbols which should be defined by other objects
+     */
+    public Set<String> getExternals() {
+        Set<String> externals = new LinkedHashSet<String>();
+
+        for (Relocation r : relocations) {
+            if (r.isExternal()) {
+                externals.add(r.symbol);
+            }
+        }
+
+        return externals;
+    }
+
+    /**
+     * Program ready to load, all external symbols should be resolved
+     */
+    public Program toProgram() {
+        Set<String> externals = getExternals();
+
+        if (!externals.isEmpty()) {
+            throw new RuntimeException("Неразрешённые внешние символы: " + externals);
+        }
+
+        Program prog = new Program();
+        prog.setImage(image);
+        prog.load_address = image.getLoadAddress();
+        prog.start_address = start_address != Program.UNDEFINED ? start_address : prog.load_address;
+        prog.labels = new HashMap<String, Label>();
+        for (Map.Entry<String, Integer> e : symbols.entrySet()) {
+            Label l = new Label();
+            l.name = e.getKey();
+            l.address = e.getValue();
+            prog.labels.put(l.name, l);
+        }
+        return prog;
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(start_address);
+
+        out.writeInt(image.getSegments().size());
+        for (BinaryImage.Segment s : image) {
+            out.writeInt(s.address);
+            out.writeInt(s.getLength());
+            for (short w : s.words) {
+                out.writeShort(w);
+            }
+        }
+
+        out.writeInt(symbols.size());
+        for (Map.Entry<String, Integer> e : symbols.entrySet()) {
+            writeString(out, e.getKey());
+            out.writeInt(e.getValue());
+        }
+
+        out.writeInt(relocations.size());
+        for (Relocation r : relocations) {
+            out.writeInt(r.address);
+            out.writeByte(r.type.ordinal());
+            out.writeBoolean(r.isExternal());
+            if (r.isExternal()) {
+                writeString(out, r.symbol);
+            }
+        }
+
+        out.writeInt(lines.size());
+        for (Map.Entry<Integer, Integer> e : lines.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeInt(e.getValue());
+        }
+
+        out.flush();
+    }
+
+    public void save(Path path) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load object file mapping it to memory
+     */
+    public static ObjectFile load(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            channel.close();
+        }
+    }
+
+    public static ObjectFile read(ByteBuffer buf) {
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new RuntimeException("Неверный формат объектного файла");
+            }
+            if (buf.getShort() != VERSION) {
+                throw new RuntimeException("Неподдерживаемая версия объектного файла");
+            }
+
+            int start = buf.getInt();
+
+            BinaryImage image = new BinaryImage();
+            for (int n = buf.getInt(); n > 0; n--) {
+                int address = buf.getInt();
+                short[] words = new short[buf.getInt()];
+                buf.asShortBuffer().get(words);
+                buf.position(buf.position() + (words.length << 1));
+                image.addSegment(address, words);
+            }
+
+            Map<String, Integer> symbols = new LinkedHashMap<String, Integer>();
+            for (int n = buf.getInt(); n > 0; n--) {
+                String name = readString(buf);
+                symbols.put(name, buf.getInt());
+            }
+
+            RelocationType[] types = RelocationType.values();
+            List<Relocation> relocations = new ArrayList<Relocation>();
+            for (int n = buf.getInt(); n > 0; n--) {
+                int address = buf.getInt();
+                RelocationType type = types[buf.get()];
+                String symbol = buf.get() != 0 ? readString(buf) : null;
+                relocations.add(new Relocation(address, type, symbol));
+            }
+
+            SortedMap<Integer, Integer> lines = new TreeMap<Integer, Integer>();
+            for (int n = buf.getInt(); n > 0; n--) {
+                int address = buf.getInt();
+                lines.put(address, buf.getInt());
+            }
+
+            return new ObjectFile(image, start, symbols, relocations, lines);
+        } catch (BufferUnderflowException e) {
+            throw new RuntimeException("Объектный файл повреждён");
+        } catch (IndexOutOfBoundsException e) {
+            throw new RuntimeException("Объектный файл повреждён");
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -5,6 +5,9 @@
  */
 package ru.ifmo.cs.bcomp.assembler;
 
+import ru.ifmo.cs.components.BinaryImage;
+
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -21,19 +24,38 @@ public class Program {
     public int load_address = UNDEFINED;
     public int start_address = UNDEFINED;
 
+    public BinaryImage image = null;
+    /**
+     * Continuous program body from load address, gaps are filled with zeroes
+     *
+     * @deprecated use image
+     */
+    @Deprecated
     public List<Integer> binary = null;
     public HashMap<String, Label> labels = null;
     public HashMap<Integer, MemoryWord> content = null;
 
+    /**
+     * Set image and body built from it
+     */
+    void setImage(BinaryImage image) {
+        this.image = image;
+        binary = new ArrayList<Integer>(image.size());
+        if (!image.isEmpty())
+            for (int w : image.toArray()) binary.add(w);
+    }
+
     public List<Integer> getBinaryFormat() {
         if (start_address == UNDEFINED || load_address == UNDEFINED ||
-                binary == null || binary.isEmpty())
+                image == null || image.isEmpty())
             throw new RuntimeException("AsmNG Program.getBinaryFormat: Program data is corrupted");
         //actually we can regenerate programm data here if labels and content
         //are not null but we would not
-        LinkedList<Integer> prog = new LinkedList<Integer>(binary);
-        prog.add(0, start_address);
-        prog.add(0, load_address);
+        int[] binary = image.toArray();
+        ArrayList<Integer> prog = new ArrayList<Integer>(binary.length + 2);
+        prog.add(load_address);
+        prog.add(start_address);
+        for (int w : binary) prog.add(w);
         return prog;
     }
 
@@ -47,8 +69,11 @@ public class Program {
         start_address = i.next();
         if (prog.size() < 3)
             throw new IndexOutOfBoundsException("AsmNG Program.loadBinaryFormat: Программа пуста: binary body");
-        binary = new LinkedList<Integer>();
-        while (i.hasNext()) binary.add(i.next());
+        short[] words = new short[prog.size() - 2];
+        for (int n = 0; i.hasNext(); n++) words[n] = (short) (int) i.next();
+        BinaryImage image = new BinaryImage();
+        image.addSegment(load_address, words);
+        setImage(image);
     }
 
     public int getLabelAddr(String label) {
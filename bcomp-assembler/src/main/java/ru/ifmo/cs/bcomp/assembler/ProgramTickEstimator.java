@@ -0,0 +1,538 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import ru.ifmo.cs.components.BinaryImage;
+
+import java.util.*;
+
+/**
+ * Static estimation of program execution time in ticks
+ * <p>
+ * Code reachable from start address and from targets of CALL is split into
+ * basic blocks with exact number of ticks, conditional branch ending block is
+ * counted as not taken for minimum and as taken for maximum. Loops are natural
+ * loops of back edges found from entry of program or subroutine. Loop header is
+ * executed given number of times per entry of loop: annotated bound or
+ * DEFAULT_ITERATIONS for estimate, worst case of loop without annotation is
+ * not bounded. Estimate splits execution evenly between directions of branches
+ * staying in loop and evenly between exits of loop. Worst case counts every
+ * block executed maximal number of times. Time of subroutine is added to block
+ * calling it, recursive subroutines are not bounded. Paths end at jumps and
+ * calls to computed address, estimate does not count code behind them and
+ * worst case of region having them is not bounded.
+ */
+public class ProgramTickEstimator {
+    public static final int DEFAULT_ITERATIONS = 10;
+    public static final long UNBOUNDED = -1;
+
+    public static class Block {
+        public final int start;
+        // Address after last instruction
+        public int end;
+        public int minTicks = 0;
+        public int maxTicks = 0;
+        private double avgTicks = 0;
+        // Ends with jump or contains call to computed address
+        private boolean computed = false;
+        private final List<Block> successors = new ArrayList<Block>();
+        private final List<Integer> calls = new ArrayList<Integer>();
+
+        Block(int start) {
+            this.start = start;
+            this.end = start;
+        }
+
+        public List<Block> getSuccessors() {
+            return Collections.unmodifiableList(successors);
+        }
+    }
+
+    /**
+     * Blocks reachable from entry of program or subroutine with numbers of executions
+     */
+    public static class Region {
+        public final int entry;
+        // Blocks in reverse postorder
+        public final List<Block> blocks = new ArrayList<Block>();
+        public final Map<Block, Double> frequency = new HashMap<Block, Double>();
+        public final Map<Block, Long> bound = new HashMap<Block, Long>();
+        public double estimate = 0;
+        public long worstCase = 0;
+
+        Region(int entry) {
+            this.entry = entry;
+        }
+    }
+
+    private final Program program;
+    private final TickCost costs;
+    private final Map<Integer, Integer> loopBounds = new HashMap<Integer, Integer>();
+    private final TreeMap<Integer, Block> blocks = new TreeMap<Integer, Block>();
+    private final Set<Integer> subroutines = new TreeSet<Integer>();
+    private final Map<Integer, Region> regions = new HashMap<Integer, Region>();
+    private boolean computedJumps = false;
+
+    public ProgramTickEstimator(Program program, TickCost costs) {
+        this.program = program;
+        this.costs = costs;
+        split();
+    }
+
+    /**
+     * @param address address of first instruction of loop
+     * @param iterations maximal number of loop iterations per entry of loop
+     */
+    public void setLoopBound(int address, int iterations) {
+        if (iterations < 0) {
+            throw new RuntimeException("Число итераций цикла не может быть отрицательным");
+        }
+        loopBounds.put(address, iterations);
+        regions.clear();
+    }
+
+    public void setLoopBound(String label, int iterations) {
+        Label l = program.labels != null ? program.labels.get(label) : null;
+
+        if (l == null) {
+            throw new RuntimeException("Метка " + label + " не найдена");
+        }
+        setLoopBound(l.address, iterations);
+    }
+
+    /**
+     * Ticks of instruction, of taken branch for conditional branches
+     */
+    public int getInstructionTicks(int address) {
+        return costs.getTicks(program.image.getWord(address));
+    }
+
+    public Collection<Block> getBlocks() {
+        return Collections.unmodifiableCollection(blocks.values());
+    }
+
+    /**
+     * Regions of program and subroutines, program goes first
+     */
+    public List<Region> getRegions() {
+        List<Region> list = new ArrayList<Region>();
+
+        list.add(getRegion(program.start_address, new HashSet<Integer>()));
+        for (int entry : subroutines) {
+            if (entry != program.start_address) {
+                list.add(getRegion(entry, new HashSet<Integer>()));
+            }
+        }
+        return list;
+    }
+
+    public double getEstimate() {
+        return getRegion(program.start_address, new HashSet<Integer>()).estimate;
+    }
+
+    /**
+     * @return maximal number of ticks or UNBOUNDED
+     */
+    public long getWorstCase() {
+        return getRegion(program.start_address, new HashSet<Integer>()).worstCase;
+    }
+
+    /**
+     * Whether program surely finishes in given number of ticks
+     */
+    public boolean isWithin(long budget) {
+        long worst = getWorstCase();
+
+        return worst != UNBOUNDED && worst <= budget;
+    }
+
+    /**
+     * Estimate ignores paths going through jumps and calls to computed address
+     */
+    public boolean hasComputedJumps() {
+        return computedJumps;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        Map<Integer, String> names = new HashMap<Integer, String>();
+
+        if (program.labels != null) {
+            for (Label l : program.labels.values()) {
+                if (!names.containsKey(l.address) || names.get(l.address).contains(".")) {
+                    names.put(l.address, l.name);
+                }
+            }
+        }
+
+        for (Region region : getRegions()) {
+            sb.append(region.entry == program.start_address ? "Программа" : "Подпрограмма")
+                    .append(' ').append(hex(region.entry));
+            if (names.containsKey(region.entry)) {
+                sb.append(" (").append(names.get(region.entry)).append(')');
+            }
+            sb.append("\nБлок\t\tМетка\t\tТактов\tВыполнений\tВсего\tДоля\n");
+
+            for (Block b : region.blocks) {
+                double total = region.frequency.get(b) * b.avgTicks;
+                String name = names.get(b.start);
+
+                sb.append(hex(b.start)).append('-').append(hex(b.end - 1)).append('\t')
+                        .append(name != null ? name : "").append("\t\t")
+                        .append(b.minTicks).append(b.minTicks != b.maxTicks ? ".." + b.maxTicks : "").append('\t')
+                        .append(format(region.frequency.get(b)))
+                        .append(region.bound.get(b) != UNBOUNDED ? " (не более " + region.bound.get(b) + ")" : "")
+                        .append('\t').append(format(total)).append('\t')
+                        .append(region.estimate > 0 ? Math.round(100 * total / region.estimate) : 0).append("%\n");
+            }
+
+            sb.append("Оценка: ").append(format(region.estimate)).append(" тактов, максимум: ")
+                    .append(region.worstCase != UNBOUNDED ? Long.toString(region.worstCase) : "не ограничен")
+                    .append("\n\n");
+        }
+
+        if (computedJumps) {
+            sb.append("Переходы и вызовы по вычисляемому адресу не учтены\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find basic blocks of code reachable from start address and subroutines
+     */
+    private void split() {
+        TreeSet<Integer> leaders = new TreeSet<Integer>();
+        Set<Integer> visited = new HashSet<Integer>();
+        Deque<Integer> work = new ArrayDeque<Integer>();
+
+        leaders.add(program.start_address);
+        work.add(program.start_address);
+        while (!work.isEmpty()) {
+            for (int address = work.poll(); isCode(address) && visited.add(address); address++) {
+                int word = program.image.getWord(address);
+                Integer target = getTarget(address, word);
+
+                if (isCall(word) && target != null && subroutines.add(target)) {
+                    leaders.add(target);
+                    work.add(target);
+                }
+                if (!endsBlock(word)) {
+                    continue;
+                }
+
+                for (int next : getSuccessors(address, word)) {
+                    leaders.add(next);
+                    work.add(next);
+                }
+                break;
+            }
+        }
+
+        for (int leader : leaders) {
+            if (visited.contains(leader)) {
+                blocks.put(leader, new Block(leader));
+            }
+        }
+
+        for (Block b : blocks.values()) {
+            int address = b.start;
+
+            for (; ; ) {
+                int word = program.image.getWord(address);
+                int max = costs.getTicks(word, true);
+                int min = costs.getTicks(word, false);
+                Integer target = getTarget(address, word);
+
+                b.maxTicks += max;
+                b.minTicks += min;
+                b.avgTicks += (max + min) / 2.0;
+                if (isCall(word)) {
+                    if (target != null) {
+                        b.calls.add(target);
+                    } else {
+                        b.computed = computedJumps = true;
+                    }
+                }
+                if ((word & 0xF000) == Instruction.JUMP.opcode && target == null) {
+                    b.computed = true;
+                }
+                address++;
+
+                if (endsBlock(word)) {
+                    for (int next : getSuccessors(address - 1, word)) {
+                        if (blocks.containsKey(next)) {
+                            b.successors.add(blocks.get(next));
+                        }
+                    }
+                    break;
+                }
+                if (blocks.containsKey(address)) {
+                    b.successors.add(blocks.get(address));
+                    break;
+                }
+                if (!isCode(address)) {
+                    break;
+                }
+            }
+            b.end = address;
+        }
+    }
+
+    private Region getRegion(int entry, Set<Integer> active) {
+        Region region = regions.get(entry);
+
+        if (region != null) {
+            return region;
+        }
+
+        region = new Region(entry);
+        Block first = blocks.get(entry);
+        if (first == null) {
+            regions.put(entry, region);
+            return region;
+        }
+
+        // Depth first search for order of blocks and back edges
+        Map<Block, List<Block>> latches = new HashMap<Block, List<Block>>();
+        Map<Block, List<Block>> preds = new HashMap<Block, List<Block>>();
+        Set<Block> seen = new HashSet<Block>();
+        Set<Block> path = new HashSet<Block>();
+        LinkedList<Block> order = new LinkedList<Block>();
+        Deque<Block> stack = new ArrayDeque<Block>();
+        Deque<Iterator<Block>> edges = new ArrayDeque<Iterator<Block>>();
+
+        seen.add(first);
+        path.add(first);
+        stack.push(first);
+        edges.push(first.successors.iterator());
+        while (!stack.isEmpty()) {
+            Block b = stack.peek();
+
+            if (!edges.peek().hasNext()) {
+                order.addFirst(b);
+                path.remove(b);
+                stack.pop();
+                edges.pop();
+                continue;
+            }
+
+            Block next = edges.peek().next();
+            if (!preds.containsKey(next)) {
+                preds.put(next, new ArrayList<Block>());
+            }
+            preds.get(next).add(b);
+
+            if (path.contains(next)) {
+                if (!latches.containsKey(next)) {
+                    latches.put(next, new ArrayList<Block>());
+                }
+                latches.get(next).add(b);
+            } else if (seen.add(next)) {
+                path.add(next);
+                stack.push(next);
+                edges.push(next.successors.iterator());
+            }
+        }
+        region.blocks.addAll(order);
+
+        // Natural loops: header and blocks reaching latch without passing header
+        Map<Block, Set<Block>> loops = new HashMap<Block, Set<Block>>();
+        for (Map.Entry<Block, List<Block>> e : latches.entrySet()) {
+            Set<Block> body = new HashSet<Block>();
+            Deque<Block> work = new ArrayDeque<Block>(e.getValue());
+
+            body.add(e.getKey());
+            while (!work.isEmpty()) {
+                Block b = work.poll();
+
+                if (body.add(b) && preds.containsKey(b)) {
+                    work.addAll(preds.get(b));
+                }
+            }
+            loops.put(e.getKey(), body);
+        }
+
+        // Number of edges leaving every loop
+        Map<Block, Integer> exits = new HashMap<Block, Integer>();
+        for (Map.Entry<Block, Set<Block>> loop : loops.entrySet()) {
+            int count = 0;
+
+            for (Block b : loop.getValue()) {
+                for (Block next : b.successors) {
+                    if (!loop.getValue().contains(next)) {
+                        count++;
+                    }
+                }
+            }
+            exits.put(loop.getKey(), count);
+        }
+
+        Map<Block, Double> incoming = new HashMap<Block, Double>();
+        // Number of loop entries by header
+        Map<Block, Double> entries = new HashMap<Block, Double>();
+        incoming.put(first, 1.0);
+        for (Block b : order) {
+            double frequency = incoming.containsKey(b) ? incoming.get(b) : 0;
+            long bound = 1;
+
+            if (loops.containsKey(b)) {
+                entries.put(b, frequency);
+                frequency *= iterations(b);
+            }
+            for (Map.Entry<Block, Set<Block>> loop : loops.entrySet()) {
+                if (loop.getValue().contains(b)) {
+                    Integer iterations = loopBounds.get(loop.getKey().start);
+                    bound = iterations == null || bound == UNBOUNDED ? UNBOUNDED : bound * iterations;
+                }
+            }
+            region.frequency.put(b, frequency);
+            region.bound.put(b, bound);
+
+            // Split execution between successors staying in all loops of block
+            int staying = 0;
+            for (Block next : b.successors) {
+                if (getLeftLoop(loops, b, next) == null) {
+                    staying++;
+                }
+            }
+            for (Block next : b.successors) {
+                Block left = getLeftLoop(loops, b, next);
+                double share;
+
+                if (latches.containsKey(next) && latches.get(next).contains(b)) {
+                    continue;
+                }
+                if (left != null) {
+                    share = entries.get(left) / exits.get(left);
+                } else {
+                    share = frequency / staying;
+                }
+                incoming.put(next, (incoming.containsKey(next) ? incoming.get(next) : 0) + share);
+            }
+        }
+
+        active.add(entry);
+        for (Block b : order) {
+            double frequency = region.frequency.get(b);
+            long bound = region.bound.get(b);
+
+            region.estimate += frequency * b.avgTicks;
+            region.worstCase = b.computed ? UNBOUNDED : add(region.worstCase, multiply(bound, b.maxTicks));
+            for (int callee : b.calls) {
+                if (active.contains(callee)) {
+                    region.worstCase = UNBOUNDED;
+                    continue;
+                }
+                Region sub = getRegion(callee, active);
+                region.estimate += frequency * sub.estimate;
+                region.worstCase = add(region.worstCase, multiply(bound, sub.worstCase));
+            }
+        }
+        active.remove(entry);
+
+        regions.put(entry, region);
+        return region;
+    }
+
+    private int iterations(Block header) {
+        Integer iterations = loopBounds.get(header.start);
+
+        return iterations != null ? iterations : DEFAULT_ITERATIONS;
+    }
+
+    /**
+     * Header of outermost loop left by edge or null
+     */
+    private static Block getLeftLoop(Map<Block, Set<Block>> loops, Block from, Block to) {
+        Block left = null;
+
+        for (Map.Entry<Block, Set<Block>> loop : loops.entrySet()) {
+            Set<Block> body = loop.getValue();
+
+            if (body.contains(from) && !body.contains(to) && (left == null || body.containsAll(loops.get(left)))) {
+                left = loop.getKey();
+            }
+        }
+        return left;
+    }
+
+    private boolean isCode(int address) {
+        if (program.content != null) {
+            return program.content.get(address) instanceof InstructionWord;
+        }
+
+        for (BinaryImage.Segment s : program.image) {
+            if (address >= s.address && address < s.getEndAddress()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBranch(int word) {
+        return word >= 0xF000 && word < 0xFA00;
+    }
+
+    private static boolean isCall(int word) {
+        return (word & 0xF000) == Instruction.CALL.opcode;
+    }
+
+    private static boolean endsBlock(int word) {
+        int high = word & 0xFF00;
+
+        return isBranch(word) || (word & 0xF000) == Instruction.JUMP.opcode || (word & 0xF000) == Instruction.LOOP.opcode ||
+                high == Instruction.HLT.opcode || high == Instruction.RET.opcode || high == Instruction.IRET.opcode;
+    }
+
+    private List<Integer> getSuccessors(int address, int word) {
+        List<Integer> next = new ArrayList<Integer>(2);
+
+        if (isBranch(word)) {
+            next.add(address + 1);
+            next.add(address + 1 + (byte) word);
+        } else if ((word & 0xF000) == Instruction.LOOP.opcode) {
+            next.add(address + 1);
+            next.add(address + 2);
+        } else if ((word & 0xF000) == Instruction.JUMP.opcode) {
+            Integer target = getTarget(address, word);
+
+            if (target != null) {
+                next.add(target);
+            } else {
+                computedJumps = true;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Target of JUMP or CALL with direct addressing or null
+     */
+    private static Integer getTarget(int address, int word) {
+        if ((word & 0xE000) != Instruction.JUMP.opcode) {
+            return null;
+        }
+        if ((word & 0x0800) == 0) {
+            return word & MemoryWord.MAX_ADDRESS;
+        }
+        if ((word & 0x0F00) == 0x0E00) {
+            return address + 1 + (byte) word;
+        }
+        return null;
+    }
+
+    private static long add(long a, long b) {
+        return a == UNBOUNDED || b == UNBOUNDED ? UNBOUNDED : a + b;
+    }
+
+    private static long multiply(long a, long b) {
+        return a == UNBOUNDED || b == UNBOUNDED ? UNBOUNDED : a * b;
+    }
+
+    private static String hex(int address) {
+        return Integer.toHexString(address + 0x10000).substring(1).toUpperCase();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : String.format("%.1f", value);
+    }
+}
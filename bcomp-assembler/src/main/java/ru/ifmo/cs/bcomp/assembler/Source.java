@@ -0,0 +1,19 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+/**
+ * Named assembler source for batch compilation
+ */
+public class Source {
+    public final String name;
+    public final String text;
+
+    public Source(String name, String text) {
+        this.name = name;
+        this.text = text;
+    }
+
+    @Override
+    public String toString() {
+        return "Source{" + "name=" + name + ", length=" + text.length() + '}';
+    }
+}
@@ -0,0 +1,19 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+/**
+ * Execution cost of instructions used by optimizer and estimator, usually measured on
+ * microprogram of target basic computer
+ */
+public interface TickCost {
+    /**
+     * @param word encoded instruction
+     * @return maximal number of ticks spent by instruction, by branch if it is taken
+     */
+    int getTicks(int word);
+
+    /**
+     * @param taken whether branch is taken, false gives minimum for instructions
+     * depending on data
+     */
+    int getTicks(int word, boolean taken);
+}
@@ -0,0 +1,93 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Batch assembly throughput for growing number of threads
+ * <p>
+ * Run: java -cp ... ru.ifmo.cs.bcomp.assembler.AsmNgBenchmark [sources [lines]]
+ */
+public class AsmNgBenchmark {
+    private static final String[] OPERANDS = {"V%d", "$V%d", "(V%d)", "(V%d)+", "-(V%d)", "&%d", "#%d"};
+    private static final String[] ADDRLESS = {"CLA", "INC", "DEC", "NOT", "ROL", "ROR", "ASL", "ASR", "PUSH", "POP", "SWAB"};
+    private static final String[] ADDR = {"LD", "ADD", "SUB", "AND", "OR", "CMP", "ADC"};
+    private static final String[] BRANCHES = {"BEQ", "BNE", "BMI", "BPL", "BCS", "BCC", "BR"};
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        List<Source> sources = generate(count, lines, new Random(1));
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        AsmNg.warmUp();
+        List<CompilationResult> reference = AsmNg.compileAll(sources, new ForkJoinPool(1), MemoryWord.ADDRESS_WIDTH);
+        double base = 0;
+
+        System.out.println("sources=" + count + " lines=" + lines + " cores=" + cores);
+        for (int threads = 1; threads <= cores; threads <<= 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            List<CompilationResult> results = null;
+            long best = Long.MAX_VALUE;
+
+            for (int run = 0; run < 3; run++) {
+                long start = System.nanoTime();
+                results = AsmNg.compileAll(sources, pool, MemoryWord.ADDRESS_WIDTH);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            pool.shutdown();
+
+            check(reference, results);
+            double throughput = count * 1e9 / best;
+            if (threads == 1) {
+                base = throughput;
+            }
+            System.out.printf("threads=%2d %8.0f sources/s speedup %.2f%n", threads, throughput, throughput / base);
+        }
+    }
+
+    static List<Source> generate(int count, int lines, Random random) {
+        List<Source> sources = new ArrayList<Source>(count);
+
+        for (int n = 0; n < count; n++) {
+            StringBuilder sb = new StringBuilder("ORG 0x10\nSTART: CLA\n");
+
+            for (int i = 0; i < lines; i++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        sb.append(ADDRLESS[random.nextInt(ADDRLESS.length)]);
+                        break;
+                    case 1:
+                        sb.append(BRANCHES[random.nextInt(BRANCHES.length)]).append(" START");
+                        break;
+                    default:
+                        sb.append(ADDR[random.nextInt(ADDR.length)]).append(' ')
+                                .append(String.format(OPERANDS[random.nextInt(OPERANDS.length)], random.nextInt(4)));
+                }
+                sb.append('\n');
+            }
+            // Some submissions contain syntax errors
+            if (random.nextInt(10) == 0) {
+                sb.append("ST ((V0\n");
+            }
+            sb.append("HLT\nV0: WORD 1\nV1: WORD ?\nV2: WORD 0x10\nV3: WORD $V0\n");
+            sources.add(new Source("source" + n, sb.toString()));
+        }
+
+        return sources;
+    }
+
+    private static void check(List<CompilationResult> reference, List<CompilationResult> results) {
+        for (int i = 0; i < reference.size(); i++) {
+            CompilationResult r = reference.get(i);
+            CompilationResult c = results.get(i);
+
+            if (!r.errors.equals(c.errors) || r.isSuccessful() != c.isSuccessful() ||
+                    (r.isSuccessful() && !r.program.image.equals(c.program.image))) {
+                throw new RuntimeException("Result mismatch for " + r.source.name);
+            }
+        }
+    }
+}
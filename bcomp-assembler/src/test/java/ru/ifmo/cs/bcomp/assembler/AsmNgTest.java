@@ -0,0 +1,443 @@
+package ru.ifmo.cs.bcomp.assembler;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.junit.Test;
+import ru.ifmo.cs.bcomp.BasicComp;
+import ru.ifmo.cs.bcomp.CPU;
+import ru.ifmo.cs.bcomp.ProgramBinary;
+import ru.ifmo.cs.bcomp.TickCostTable;
+import ru.ifmo.cs.bcomp.grammar.BCompNGLexer;
+import ru.ifmo.cs.bcomp.grammar.BCompNGParser;
+import ru.ifmo.cs.components.BinaryImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+import static ru.ifmo.cs.bcomp.Reg.AC;
+import static ru.ifmo.cs.bcomp.Reg.IP;
+
+public class AsmNgTest {
+    private static final String[] SAMPLES = {
+            // Array sum with post increment and loop counter
+            "ORG 0x10\n"
+                    + "START: CLA\n"
+                    + "NEXT:  ADD (PTR)+\n"
+                    + "       LOOP CNT\n"
+                    + "       BR NEXT\n"
+                    + "       ST RES\n"
+                    + "       HLT\n"
+                    + "PTR:   WORD $ARR\n"
+                    + "CNT:   WORD 3\n"
+                    + "RES:   WORD ?\n"
+                    + "ARR:   WORD 1, 2, 3\n",
+            // Local label of global label at lower address defined later in source
+            "ORG 0x30\n"
+                    + "       LD .v\n"
+                    + "       ST (PTR)\n"
+                    + "       HLT\n"
+                    + "ORG 0x20\n"
+                    + "DATA:  WORD 1\n"
+                    + ".v:    WORD 2\n"
+                    + "ORG 0x10\n"
+                    + "START: JUMP 0x30\n"
+                    + "PTR:   WORD 0x40\n",
+            // Stack, subroutine, IO and branches
+            "ORG 0x10\n"
+                    + "START: LD #5\n"
+                    + "       PUSH\n"
+                    + "       CALL INCR\n"
+                    + "       POP\n"
+                    + "       OUT 2\n"
+                    + "       IN 3\n"
+                    + "       BEQ START\n"
+                    + "       HLT\n"
+                    + "INCR:  LD &1\n"
+                    + "       INC\n"
+                    + "       INC\n"
+                    + "       ST &1\n"
+                    + "       RET\n"
+                    + "TAB:   WORD 4 DUP (?), -1, $INCR\n",
+    };
+
+    private static final String OPTIMIZED =
+            // Relative and absolute operands, subroutine, loop and branches
+            "ORG 0x10\n"
+                    + "START: LD $VAL\n"
+                    + "       ADD VAL\n"
+                    + "       ST RES\n"
+                    + "       LD #3\n"
+                    + "       ST CNT\n"
+                    + "NEXT:  LD RES\n"
+                    + "       INC\n"
+                    + "       ST $RES\n"
+                    + "       CALL SUB\n"
+                    + "       LOOP $CNT\n"
+                    + "       BR NEXT\n"
+                    + "       BEQ DONE\n"
+                    + "       JUMP $DONE\n"
+                    + "DONE:  JUMP FIN\n"
+                    + "FIN:   HLT\n"
+                    + "SUB:   LD RES\n"
+                    + "       ADD $VAL\n"
+                    + "       ST RES\n"
+                    + "       RET\n"
+                    + "VAL:   WORD 7\n"
+                    + "RES:   WORD ?\n"
+                    + "CNT:   WORD ?\n";
+
+    @Test
+    public void testSamples() {
+        for (String sample : SAMPLES) {
+            AsmNg asm = new AsmNg(sample);
+            Program prog = asm.compile();
+
+            assertNotNull(sample, prog);
+            assertEquals(sample, "[]", asm.getErrors().toString());
+            // Deprecated body is kept for old callers
+            List<Integer> format = prog.getBinaryFormat();
+            assertEquals(sample, format.subList(2, format.size()), prog.binary);
+        }
+    }
+
+    @Test
+    public void testSinglePass() {
+        for (String text : getPrograms()) {
+            AsmNg twoPass = new AsmNg(text);
+            Program expected = twoPass.compile();
+            AsmNg singlePass = new AsmNg(text);
+            Program actual = singlePass.compileSinglePass();
+
+            assertEquals(text, twoPass.getErrors().isEmpty(), singlePass.getErrors().isEmpty());
+            if (twoPass.getErrors().isEmpty()) {
+                assertEquals(text, expected.image, actual.image);
+                assertEquals(text, expected.start_address, actual.start_address);
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalLines() {
+        IncrementalAssembler incremental = new IncrementalAssembler();
+
+        for (String sample : SAMPLES) {
+            Program expected = new AsmNg(sample).compile();
+            Program actual = incremental.compile(sample).program;
+
+            assertEquals(sample, expected.content.keySet(), actual.content.keySet());
+            for (Integer address : expected.content.keySet()) {
+                assertEquals(sample, expected.content.get(address).line, actual.content.get(address).line);
+            }
+        }
+    }
+
+    @Test
+    public void testSLL() {
+        for (String text : getPrograms()) {
+            assertEquals(text, parseTree(text, PredictionMode.LL), parseTree(text, PredictionMode.SLL));
+        }
+    }
+
+    @Test
+    public void testCompileAll() {
+        List<Source> sources = AsmNgBenchmark.generate(50, 20, new Random(2));
+        List<CompilationResult> results = AsmNg.compileAll(sources, new ForkJoinPool(4), MemoryWord.ADDRESS_WIDTH);
+
+        for (int i = 0; i < sources.size(); i++) {
+            AsmNg asm = new AsmNg(sources.get(i).text);
+            Program expected = asm.compile();
+            CompilationResult result = results.get(i);
+
+            assertEquals(sources.get(i).text, asm.getErrors(), result.errors);
+            if (result.isSuccessful()) {
+                assertEquals(sources.get(i).text, expected.image, result.program.image);
+            }
+        }
+    }
+
+    @Test
+    public void testLink() throws IOException {
+        String main = "ORG 0x10\n"
+                + "START: LD VAL\n"
+                + "       CALL $INCR\n"
+                + "       ST RES\n"
+                + "       HLT\n"
+                + "RES:   WORD ?\n"
+                + "PTR:   WORD $RES\n";
+        String lib = "ORG 0x100\n"
+                + "INCR:  INC\n"
+                + "       RET\n"
+                + "VAL:   WORD 5\n";
+
+        ObjectFile mainObj = readBack(new AsmNg(main).compileObject());
+        ObjectFile libObj = readBack(new AsmNg(lib).compileObject());
+        assertEquals(new HashSet<String>(Arrays.asList("VAL", "INCR")), mainObj.getExternals());
+        assertTrue(libObj.getExternals().isEmpty());
+
+        // Library is placed right after main program
+        ObjectFile linked = readBack(new Linker().add(mainObj).add(libObj).link());
+        Program expected = new AsmNg(main + lib.replace("ORG 0x100", "ORG 0x16")).compile();
+        Program actual = linked.toProgram();
+        assertArrayEquals(expected.image.toArray(), actual.image.toArray());
+        assertEquals(expected.start_address, actual.start_address);
+        assertEquals(0x18, (int) linked.symbols.get("VAL"));
+
+        // Moved program keeps internal references
+        Program moved = new Linker().add(mainObj).add(libObj).link(0x40).toProgram();
+        assertEquals(0x40, moved.start_address);
+        assertEquals(0x44, moved.image.getWord(0x45));
+        assertEquals(0xD000 | 0x46, moved.image.getWord(0x41));
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        Path directory = Files.createTempDirectory("asmcache");
+
+        try {
+            AssemblyCache cache = new AssemblyCache(4, directory);
+            CompilationResult result = cache.compile(SAMPLES[0]);
+
+            assertTrue(result.isSuccessful());
+            assertSame(result, cache.compile(SAMPLES[0]));
+            // Trailing blanks do not change key
+            assertSame(result, cache.compile(SAMPLES[0].replace("\n", "  \n")));
+            assertEquals(2, cache.getHits());
+            assertEquals(1, cache.getMisses());
+
+            // Result of new cache is read from disk and has no listing
+            AssemblyCache reloaded = new AssemblyCache(4, directory);
+            CompilationResult loaded = reloaded.compile(SAMPLES[0]);
+            assertNull(loaded.program.content);
+            assertEquals(result.program.image, loaded.program.image);
+            assertEquals(result.program.start_address, loaded.program.start_address);
+            assertEquals(result.program.labels.keySet(), loaded.program.labels.keySet());
+            assertEquals(result.errors, loaded.errors);
+
+            // Other target is compiled separately
+            assertNotSame(result, cache.compile(SAMPLES[0], MemoryWord.ADDRESS_WIDTH, true));
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testIncremental() {
+        IncrementalAssembler incremental = new IncrementalAssembler();
+
+        for (String sample : SAMPLES) {
+            CompilationResult result = incremental.compile(sample);
+
+            assertTrue(sample, result.isSuccessful());
+            assertEquals(sample, new AsmNg(sample).compile().image, result.program.image);
+        }
+
+        incremental.compile(SAMPLES[0]);
+        String changed = SAMPLES[0].replace("CNT:   WORD 3", "CNT:   WORD 4");
+        CompilationResult result = incremental.compile(changed);
+        assertEquals(1, incremental.getParsedLines());
+        assertEquals(new AsmNg(changed).compile().image, result.program.image);
+
+        result = incremental.compile(changed.replace("ST RES", "ST ((RES"));
+        assertFalse(result.isSuccessful());
+        assertEquals(1, incremental.getParsedLines());
+    }
+
+    @Test
+    public void testDisassembler() {
+        for (String sample : SAMPLES) {
+            checkDisassembler(sample, false);
+        }
+        checkDisassembler("ORG 0x10\n"
+                + "START: LD #7\n"
+                + "       MUL VAL\n"
+                + "       DIV\n"
+                + "       MOVE 2\n"
+                + "       HLT\n"
+                + "VAL:   WORD 5\n", true);
+
+        // Extended instructions are data for basic microprogram
+        assertEquals("WORD 0x9010", new Disassembler().toString(0x10, 0x9010));
+        assertEquals("WORD 0x0F00", new Disassembler().toString(0x10, 0x0F00));
+        assertEquals("WORD 0xFA02", new Disassembler().toString(0x10, 0xFA02));
+        assertEquals("DIV", new Disassembler(true).toString(0x10, 0x0F00));
+        assertEquals("MOVE 0x02", new Disassembler(true).toString(0x10, 0xFA02));
+    }
+
+    @Test
+    public void testOptimize() throws Exception {
+        TickCost cost = getTickCost(new TickCostTable());
+
+        for (String sample : new String[]{SAMPLES[0], SAMPLES[1], OPTIMIZED}) {
+            Program expected = new AsmNg(sample).compile();
+            AsmNg asm = new AsmNg(sample);
+            asm.setTickCost(cost);
+            Program actual = asm.compile();
+
+            assertEquals(sample, "[]", asm.getErrors().toString());
+            assertTrue(sample, asm.getOptimizedWords() > 0);
+            // Optimized program leaves the same state faster
+            long[] expectedState = run(expected);
+            long[] actualState = run(actual);
+            assertArrayEquals(sample, Arrays.copyOf(expectedState, expectedState.length - 1),
+                    Arrays.copyOf(actualState, actualState.length - 1));
+            assertTrue(sample, actualState[actualState.length - 1] < expectedState[expectedState.length - 1]);
+        }
+    }
+
+    @Test
+    public void testOptimizeRange() throws Exception {
+        String text = "ORG 0x10\n"
+                + "START: JUMP $EDGE\n"
+                + "       JUMP $FAR\n"
+                + "ORG 0x14\n"
+                + "BACK:  HLT\n"
+                + "ORG 0x90\n"
+                + "EDGE:  HLT\n"
+                + "       HLT\n"
+                + "FAR:   HLT\n"
+                + "       BR BACK\n"
+                + "       JUMP $BACK\n";
+        // Relative encoding is the cheapest one
+        AsmNg asm = new AsmNg(text);
+        asm.setTickCost(new TickCost() {
+            @Override
+            public int getTicks(int word) {
+                return (word & 0x0E00) == 0x0E00 ? 1 : 2;
+            }
+
+            @Override
+            public int getTicks(int word, boolean taken) {
+                return getTicks(word);
+            }
+        });
+        Program prog = asm.compile();
+
+        assertEquals("[]", asm.getErrors().toString());
+        assertEquals(1, asm.getOptimizedWords());
+        assertEquals(0xCE7F, prog.image.getWord(0x10));
+        assertEquals(0xC092, prog.image.getWord(0x11));
+        assertEquals(0xCE80, prog.image.getWord(0x93));
+        assertEquals(0xC014, prog.image.getWord(0x94));
+
+        // Absolute encoding is cheaper on basic computer, BR becomes JUMP
+        asm = new AsmNg(text);
+        asm.setTickCost(getTickCost(new TickCostTable()));
+        prog = asm.compile();
+        assertEquals(1, asm.getOptimizedWords());
+        assertEquals(0xC090, prog.image.getWord(0x10));
+        assertEquals(0xC014, prog.image.getWord(0x93));
+    }
+
+    /**
+     * Check that disassembled program is compiled back to the same image
+     */
+    private static void checkDisassembler(String sample, boolean extended) {
+        Program prog = new AsmNg(sample, MemoryWord.ADDRESS_WIDTH, extended).compile();
+        Disassembler disasm = new Disassembler(prog, extended);
+        StringBuilder sb = new StringBuilder();
+
+        for (BinaryImage.Segment segment : prog.image) {
+            sb.append("ORG 0x").append(Integer.toHexString(segment.address)).append('\n');
+            for (int i = 0; i < segment.getLength(); i++) {
+                int address = segment.address + i;
+                String name = disasm.getName(address);
+
+                if (name != null) {
+                    sb.append(name).append(": ");
+                }
+                disasm.append(sb, address, segment.getWord(i)).append('\n');
+            }
+        }
+
+        AsmNg asm = new AsmNg(sb.toString(), MemoryWord.ADDRESS_WIDTH, extended);
+        Program actual = asm.compile();
+        assertEquals(sb.toString(), "[]", asm.getErrors().toString());
+        assertArrayEquals(sb.toString(), prog.image.toArray(), actual.image.toArray());
+        assertEquals(prog.image.getLoadAddress(), actual.image.getLoadAddress());
+    }
+
+    private static List<String> getPrograms() {
+        List<String> programs = new ArrayList<String>(Arrays.asList(SAMPLES));
+
+        for (Source source : AsmNgBenchmark.generate(200, 40, new Random(1))) {
+            programs.add(source.text);
+        }
+        return programs;
+    }
+
+    private static String parseTree(String text, PredictionMode mode) {
+        BCompNGLexer lexer = new BCompNGLexer(CharStreams.fromString(text + "\n"));
+        BCompNGParser parser = new BCompNGParser(new CommonTokenStream(lexer));
+
+        lexer.removeErrorListeners();
+        parser.removeErrorListeners();
+        parser.getInterpreter().setPredictionMode(mode);
+        return parser.prog().toStringTree(parser);
+    }
+
+    private static TickCost getTickCost(TickCostTable table) {
+        return new TickCost() {
+            @Override
+            public int getTicks(int word) {
+                return table.getTicks(word);
+            }
+
+            @Override
+            public int getTicks(int word, boolean taken) {
+                return table.getTicks(word, taken);
+            }
+        };
+    }
+
+    /**
+     * Run program on basic computer until halt
+     *
+     * @return AC, IP, memory and number of ticks
+     */
+    private static long[] run(Program prog) throws Exception {
+        BasicComp bcomp = new BasicComp();
+        CPU cpu = bcomp.getCPU();
+        int size = 1 << cpu.getConfig().addrWidth;
+        long[] state = new long[size + 3];
+
+        try {
+            bcomp.loadProgram(new ProgramBinary(prog.image, prog.start_address));
+            cpu.setRunState(true);
+            assertTrue(cpu.executeStart());
+
+            state[0] = cpu.getRegValue(AC);
+            state[1] = cpu.getRegValue(IP);
+            for (int addr = 0; addr < size; addr++) {
+                state[addr + 2] = cpu.getMemory().getValue(addr);
+            }
+            state[size + 2] = cpu.getTickCount();
+            return state;
+        } finally {
+            cpu.stopCPU();
+        }
+    }
+
+    private static ObjectFile readBack(ObjectFile obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        obj.write(bytes);
+        return ObjectFile.read(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+}
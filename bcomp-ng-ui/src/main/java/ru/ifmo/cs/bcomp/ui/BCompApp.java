@@ -7,20 +7,37 @@ package ru.ifmo.cs.bcomp.ui;
 import java.io.File;
 import java.io.FileInputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Paths;
 
 import ru.ifmo.cs.bcomp.BasicComp;
+import ru.ifmo.cs.bcomp.MachineConfig;
 import ru.ifmo.cs.bcomp.ProgramBinary;
-import ru.ifmo.cs.bcomp.assembler.AsmNg;
+import ru.ifmo.cs.bcomp.Reg;
+import ru.ifmo.cs.bcomp.Snapshot;
+import ru.ifmo.cs.bcomp.assembler.AssemblyCache;
+import ru.ifmo.cs.bcomp.assembler.CompilationResult;
 import ru.ifmo.cs.bcomp.assembler.Program;
+import ru.ifmo.cs.components.BufferMemory;
 
 /**
  * @author Dmitry Afanasiev <KOT@MATPOCKuH.Ru>
  */
 public class BCompApp {
     public static void main(String[] args) throws Exception {
-        BasicComp bcomp = new BasicComp();
+        String image = System.getProperty("image", null);
+        BasicComp bcomp = new BasicComp(new MachineConfig(
+                Long.getLong("addrwidth", MachineConfig.CLASSIC.addrWidth),
+                Long.getLong("mpwidth", MachineConfig.CLASSIC.mpWidth),
+                image != null || "direct".equalsIgnoreCase(System.getProperty("memory")) ?
+                        MachineConfig.MemoryType.DIRECT : MachineConfig.MemoryType.HEAP,
+                image == null ? null : BufferMemory.mapImage(Paths.get(image)),
+                Integer.getInteger("dma", 0)));
         String mpname;
         String app;
+        String asmcache = System.getProperty("asmcache", null);
+
+        if (asmcache != null)
+            AssemblyCache.setDefault(new AssemblyCache(64, Paths.get(asmcache)));
 
         try {
             app = System.getProperty("mode", "gui");
@@ -38,13 +55,13 @@ public class BCompApp {
                 byte content[] = new byte[(int) file.length()];
                 fin.read(content);
                 code = new String(content, Charset.forName("UTF-8"));
-                AsmNg asm = new AsmNg(code);
-                Program pobj = asm.compile();
-                if (asm.getErrors().isEmpty()) {
-                    ProgramBinary prog = new ProgramBinary(pobj.getBinaryFormat());
+                CompilationResult result = AssemblyCache.getDefault().compile(code, (int) bcomp.getCPU().getRegWidth(Reg.AR));
+                Program pobj = result.program;
+                if (result.errors.isEmpty()) {
+                    ProgramBinary prog = new ProgramBinary(pobj.image, pobj.start_address);
                     bcomp.loadProgram(prog);
                 } else {
-                    for (String err : asm.getErrors())
+                    for (String err : result.errors)
                         System.out.println(err);
                 }
             } finally {
@@ -54,6 +71,15 @@ public class BCompApp {
         } catch (Exception e) {
         }
 
+        try {
+            String snapshot = System.getProperty("snapshot", null);
+
+            if (snapshot != null)
+                new Snapshot(bcomp).restore(Paths.get(snapshot));
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+
         try {
             String debuglevel = System.getProperty("debuglevel", "0");
             bcomp.getCPU().setDebugLevel(Long.parseLong(debuglevel));
@@ -5,9 +5,18 @@ package ru.ifmo.cs.bcomp.ui;
 
 import ru.ifmo.cs.bcomp.*;
 import ru.ifmo.cs.bcomp.assembler.AsmNg;
+import ru.ifmo.cs.bcomp.assembler.AssemblyCache;
+import ru.ifmo.cs.bcomp.assembler.CompilationResult;
+import ru.ifmo.cs.bcomp.assembler.Disassembler;
+import ru.ifmo.cs.bcomp.assembler.Linker;
+import ru.ifmo.cs.bcomp.assembler.ObjectFile;
 import ru.ifmo.cs.bcomp.assembler.Program;
+import ru.ifmo.cs.bcomp.assembler.ProgramTickEstimator;
+import ru.ifmo.cs.bcomp.assembler.TickCost;
 import ru.ifmo.cs.components.Utils;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -20,9 +29,18 @@ public class CLI {
     private final BasicComp bcomp;
     private final CPU cpu;
     private final IOCtrl[] ioctrls;
+    private final long addrWidth;
     private final ArrayList<Long> writeList = new ArrayList<>();
     private final ConcurrentMap<Integer, LinkedBlockingDeque<Integer>> pendingIO = new ConcurrentHashMap<>();
-
+    private static final String WRITE_INDENT = String.format("%1$46s", ";");
+    // Used from CPU thread listeners only
+    private final StringBuilder line = new StringBuilder(128);
+    private final StringBuilder microLine = new StringBuilder(128);
+
+    // Measured on first use by asmopt and estimate
+    private TickCost tickCost = null;
+    // Last program compiled or linked
+    private Program program = null;
     private int sleeptime = 1;
     private volatile long savedPointer;
     private volatile boolean printOnStop = true;
@@ -33,16 +51,18 @@ public class CLI {
 
     private final List<Long> monitoredMemoryWrite = new ArrayList<>();
     private final Map<Integer, Thread> monitors = new HashMap<>();
+    private MemoryConsole console = null;
 
     public CLI(BasicComp bcomp) {
         this.bcomp = bcomp;
 
         cpu = bcomp.getCPU();
+        addrWidth = cpu.getRegWidth(Reg.AR);
         cpu.addDestination(ControlSignal.STOR, value -> {
             long addr = cpu.getRegValue(Reg.AR);
 
             if (printMemoryAccesses || monitoredMemoryWrite.contains(addr)) {
-                println("STORE: " + Utils.toHex(addr, 11) + " " + Utils.toHex(value, 16));
+                println("STORE: " + Utils.toHex(addr, addrWidth) + " " + Utils.toHex(value, 16));
             }
 
             // Saving changed mem addr to print later
@@ -55,7 +75,7 @@ public class CLI {
             long addr = cpu.getRegValue(Reg.AR);
 
             if (printMemoryAccesses) {
-                println("LOAD: " + Utils.toHex(addr, 11) + " " + Utils.toHex(value, 16));
+                println("LOAD: " + Utils.toHex(addr, addrWidth) + " " + Utils.toHex(value, 16));
             }
         });
 
@@ -78,10 +98,22 @@ public class CLI {
                 return;
             }
 
-            printRegs(writeList.isEmpty() ? ";;" : ";" + getMemory(writeList.remove(0)));
+            Long first = writeList.isEmpty() ? null : writeList.remove(0);
+
+            line.setLength(0);
+            appendRegs(line);
+            if (cpu.getClockState()) {
+                if (first == null) {
+                    line.append(";;");
+                } else {
+                    appendMemory(line.append(';'), first);
+                }
+            }
+            println(line);
 
             for (Long wraddr : writeList) {
-                println(String.format("%1$46s", ";") + getMemory(wraddr));
+                line.setLength(0);
+                println(appendMemory(line.append(WRITE_INDENT), wraddr));
             }
         });
 
@@ -119,12 +151,20 @@ public class CLI {
         ioPoller.start();
     }
 
-    private String getReg(Reg reg) {
-        return Utils.toHex(cpu.getRegValue(reg), cpu.getRegWidth(reg));
+    /**
+     * Console operations go through current engine, signals and microcode are CPU only
+     */
+    private ExecutionEngine engine() {
+        return bcomp.getEngine();
     }
 
-    private String getMemory(long addr) {
-        return Utils.toHex(addr, 11) + ";" + Utils.toHex(cpu.getMemory().getValue(addr), 16);
+    private StringBuilder appendReg(StringBuilder builder, Reg reg) {
+        return Utils.appendHex(builder, engine().getRegValue(reg), engine().getRegWidth(reg));
+    }
+
+    private StringBuilder appendMemory(StringBuilder builder, long addr) {
+        Utils.appendHex(builder, addr, addrWidth).append(';');
+        return Utils.appendHex(builder, engine().getMemory().getValue(addr), 16);
     }
 
     private void printMicroMemory(long addr) {
@@ -132,7 +172,8 @@ public class CLI {
             println("Адр    МК       Метка           Расшифровка");
             printMicroTitle = false;
         }
-        println(MCDecoder.getFormattedMC(cpu, addr));
+        microLine.setLength(0);
+        println(MCDecoder.appendFormattedMC(microLine, cpu, addr));
     }
 
     private final Reg[] printRegs = new Reg[]{Reg.IP, Reg.CR, Reg.AR, Reg.DR, Reg.SP, Reg.BR, Reg.AC};
@@ -169,33 +210,24 @@ public class CLI {
         printRegsTitle = false;
     }
 
-    private void printRegs(String add) {
-        StringBuilder builder = new StringBuilder();
-
+    private void appendRegs(StringBuilder builder) {
         if (cpu.getClockState()) {
-            builder.append(getMemory(savedPointer));
+            appendMemory(builder, savedPointer);
         } else {
-            builder.append(Utils.toHex(savedPointer, 8));
-            builder.append(';');
-            builder.append(Utils.toHex(cpu.getMicroCode().getValue(savedPointer), 40));
+            Utils.appendHex(builder, savedPointer, cpu.getRegWidth(Reg.MP)).append(';');
+            Utils.appendHex(builder, cpu.getMicroCode().getValue(savedPointer), 40);
         }
 
         for (Reg reg : printRegs) {
-            builder.append(';');
-            builder.append(getReg(reg));
+            appendReg(builder.append(';'), reg);
         }
 
         builder.append(';');
-        builder.append(Utils.toBinary(cpu.getRegValue(Reg.PS) & 0xF, 4));
+        Utils.appendBinary(builder, engine().getRegValue(Reg.PS) & 0xF, 4);
 
-        if (cpu.getClockState()) {
-            builder.append(add);
-        } else {
-            builder.append(";");
-            builder.append(getReg(Reg.MP));
+        if (!cpu.getClockState()) {
+            appendReg(builder.append(';'), Reg.MP);
         }
-
-        println(builder.toString());
     }
 
     private void printIO(int ioaddr) {
@@ -233,8 +265,15 @@ public class CLI {
                 + "io addr value\t- Запись value в указанное ВУ\n"
                 + "smartio addr value\t- Запись value в указанное ВУ с ожиданием готовности, после успешной записи устанавливает готовность ВУ\n"
                 + "flag addr\t- Установка флага готовности указанного ВУ\n"
+                + "console addr cols rows\t- Подключение текстового экрана к памяти с адреса addr\n"
+                + "console [off]\t- Вывод или отключение текстового экрана\n"
+                + "dma [value...]\t- Загрузка слов в буфер ВУ с прямым доступом к памяти или вывод буфера\n"
                 + "asm\t\t\t- Ввод программы на ассемблере\n"
+                + "asmopt\t\t- Ввод программы на ассемблере с оптимизацией по числу тактов\n"
                 + "sleep value\t- Задержка между тактами при фоновом выполнении\n"
+                + "idle [on|off]\t- Ожидание событий ВУ вместо выполнения циклов опроса\n"
+                + "dcache [on|off|count]\t- Пропуск частичного декодирования команд, count - с учетом пропущенных тактов\n"
+                + "diff [count]\t- Сравнение выполнения случайных программ с кэшем декодирования и без него\n"
                 + "{exit|quit}\t- Выход из эмулятора\n"
                 + "(0000-FFFF)\t- Ввод шестнадцатеричного значения в клавишный регистр\n"
                 + "labelname\t- Ввод адреса метки в клавишный регистр\n"
@@ -245,11 +284,81 @@ public class CLI {
                 + "awrite addr\t - выводит изменения в памяти данной ячейки\n"
                 + "rfrom addr\t - выводит значение ячейки памяти\n"
                 + "wto addr value\t - записывает значение по адресу\n"
+                + "disasm addr [count]\t- Дизассемблирование count ячеек памяти начиная с addr\n"
+                + "estimate [label=n...]\t- Оценка числа тактов последней программы, n - число итераций цикла с меткой label\n"
+                + "compile src obj\t- Ассемблирование файла src в объектный файл obj\n"
+                + "link obj...\t- Компоновка объектных файлов и загрузка программы в память\n"
+                + "mpload file\t- Загрузка микропрограммы из файла (исходный текст или двоичный формат)\n"
+                + "mpsave file\t- Сохранение микропрограммы в файл, в исходном тексте для имени *.mc\n"
+                + "mpbase\t\t- Загрузка встроенной микропрограммы\n"
+                + "mpext\t\t- Загрузка расширенной микропрограммы с командами MUL, DIV и MOVE, ассемблер принимает их только при ней\n"
+                + "mpopt [n]\t- Оптимизация микропрограммы с проверкой эквивалентности на n случайных командах\n"
+                + "save file\t- Сохранение снимка состояния БЭВМ в файл\n"
+                + "restore file\t- Восстановление состояния БЭВМ из снимка\n"
         );
     }
 
     private final Scanner input = new Scanner(System.in);
 
+    /**
+     * Loaded microprogram executes MUL, DIV and MOVE
+     */
+    private boolean isExtendedTarget() {
+        MicroProgramImage mp = cpu.getMicroProgram();
+
+        return mp != null && mp.isExtended();
+    }
+
+    private TickCost getTickCost() throws Exception {
+        if (tickCost == null) {
+            TickCostTable table = new TickCostTable(cpu.getConfig(), cpu.readMicroProgram());
+
+            tickCost = new TickCost() {
+                @Override
+                public int getTicks(int word) {
+                    return table.getTicks(word);
+                }
+
+                @Override
+                public int getTicks(int word, boolean taken) {
+                    return table.getTicks(word, taken);
+                }
+            };
+        }
+        return tickCost;
+    }
+
+    /**
+     * Machine for differential runs, microprogram is copied from this machine
+     */
+    private static BasicComp createMachine(MachineConfig config, MicroProgramImage program, boolean dcache) throws Exception {
+        BasicComp machine = new BasicComp(config);
+
+        if (!machine.getCPU().executeMPLoad(program)) {
+            throw new Exception("Процессор занят");
+        }
+        if (dcache) {
+            machine.getCPU().setDecodeCache(true, true);
+        }
+        return machine;
+    }
+
+    private String readProgram() throws Exception {
+        StringBuilder code = new StringBuilder();
+
+        println("Введите текст программы. Для окончания введите END");
+
+        for (; ; ) {
+            String line = fetchLine();
+
+            if (line.equalsIgnoreCase("END")) {
+                return code.toString();
+            }
+
+            code.append(line).append('\n');
+        }
+    }
+
     public void cli() {
         println("Эмулятор Базовой ЭВМ. Версия v1.45.10 " + CLI.class.getPackage().getImplementationVersion() + "\n"
                 + "БЭВМ готова к работе.\n"
@@ -273,8 +382,7 @@ public class CLI {
         print("Введите начальный адрес: ");
         String codeBegin = input.nextLine();
         int codeAddress = Integer.parseInt(codeBegin, 16);
-        cpu.getRegister(Reg.IR).setValue(codeAddress);
-        checkResult(cpu.executeSetAddr());
+        checkResult(engine().executeSetAddr(codeAddress));
     }
 
     private void loadToMemory() throws Exception {
@@ -298,8 +406,7 @@ public class CLI {
                     println("Введите адрес исполнения: ");
                     String executionBegin = input.nextLine();
                     int executionAddress = Integer.parseInt(executionBegin, 16);
-                    cpu.getRegister(Reg.IR).setValue(executionAddress);
-                    checkResult(cpu.executeSetAddr());
+                    checkResult(engine().executeSetAddr(executionAddress));
                     return;
                 }
 
@@ -309,8 +416,7 @@ public class CLI {
                 }
 
                 int code = Integer.parseInt(line, 16);
-                cpu.getRegister(Reg.IR).setValue(code);
-                checkResult(cpu.executeWrite());
+                checkResult(engine().executeWrite(code));
             } catch (Exception e) {
                 println("Ошибка, попробуйте еще раз.");
             }
@@ -348,26 +454,26 @@ public class CLI {
 
             try {
                 if (checkCmd(cmd, "address")) {
-                    checkResult(cpu.executeSetAddr());
+                    checkResult(engine().executeSetAddr(engine().getRegValue(Reg.IR)));
                     continue;
                 }
 
                 if (checkCmd(cmd, "write")) {
-                    checkResult(cpu.executeWrite());
+                    checkResult(engine().executeWrite(engine().getRegValue(Reg.IR)));
                     continue;
                 }
 
                 if (checkCmd(cmd, "read")) {
-                    checkResult(cpu.executeRead());
+                    checkResult(engine().executeRead());
                     continue;
                 }
 
                 if (checkCmd(cmd, "start")) {
                     if (i == cmds.length - 1) {
                         sleep = sleeptime;
-                        checkResult(cpu.startStart());
+                        checkResult(engine().startStart());
                     } else {
-                        checkResult(cpu.executeStart());
+                        checkResult(engine().executeStart());
                     }
                     continue;
                 }
@@ -375,21 +481,21 @@ public class CLI {
                 if (checkCmd(cmd, "continue")) {
                     if (i == cmds.length - 1) {
                         sleep = sleeptime;
-                        checkResult(cpu.startContinue());
+                        checkResult(engine().startContinue());
                     } else {
-                        checkResult(cpu.executeContinue());
+                        checkResult(engine().executeContinue());
                     }
                     continue;
                 }
 
                 if (checkCmd(cmd, "clock")) {
-                    println("Такт: " + (cpu.invertClockState() ? "Нет" : "Да"));
+                    println("Такт: " + (engine().invertClockState() ? "Нет" : "Да"));
                     continue;
                 }
 
                 if (checkCmd(cmd, "run")) {
-                    cpu.invertRunState();
-                    println("Режим работы: " + (cpu.getProgramState(State.W) == 1 ? "Работа" : "Останов"));
+                    engine().invertRunState();
+                    println("Режим работы: " + (engine().getProgramState(State.W) == 1 ? "Работа" : "Останов"));
                     continue;
                 }
 
@@ -407,6 +513,7 @@ public class CLI {
                     long mc = Long.parseLong(cmds[++i], 16);
                     long addr = cpu.getRegValue(Reg.MP);
                     checkResult(cpu.executeMCWrite(mc));
+                    tickCost = null;
                     printMicroMemory(addr);
                     continue;
                 }
@@ -432,7 +539,7 @@ public class CLI {
 
                 if (checkCmd(cmd, "state")) {
                     for (State state : State.values())
-                        print(state.name() + ": " + cpu.getProgramState(state) + " ");
+                        print(state.name() + ": " + engine().getProgramState(state) + " ");
 
                     println("");
                     continue;
@@ -523,6 +630,65 @@ public class CLI {
                     continue;
                 }
 
+                if (checkCmd(cmd, "console")) {
+                    if (i < cmds.length - 1 && checkCmd(cmds[i + 1], "off")) {
+                        i++;
+                        if (console != null) {
+                            console.done();
+                            console = null;
+                        }
+                        continue;
+                    }
+
+                    if (i < cmds.length - 3) {
+                        long addr = Long.parseLong(cmds[++i], 16);
+                        int cols = Integer.parseInt(cmds[++i]);
+                        int rows = Integer.parseInt(cmds[++i]);
+
+                        if (console != null) {
+                            console.done();
+                        }
+                        MemoryConsole screen = new MemoryConsole(bcomp, addr, cols, rows);
+                        screen.start("Console", 4, () -> print(screen.toString()));
+                        console = screen;
+                        continue;
+                    }
+
+                    if (console == null) {
+                        throw new Exception("текстовый экран не подключен");
+                    }
+                    console.invalidate();
+                    console.refresh();
+                    print(console.toString());
+                    continue;
+                }
+
+                if (checkCmd(cmd, "dma")) {
+                    IOCtrlDMA dma = bcomp.getDMA();
+
+                    if (dma == null) {
+                        throw new Exception("ВУ с прямым доступом к памяти не подключено");
+                    }
+
+                    if (i < cmds.length - 1) {
+                        long[] words = new long[cmds.length - 1 - i];
+
+                        for (int n = 0; n < words.length; n++) {
+                            words[n] = Long.parseLong(cmds[++i], 16);
+                        }
+                        dma.setBuffer(words);
+                    } else {
+                        StringBuilder sb = new StringBuilder();
+
+                        for (long word : dma.getBuffer()) {
+                            sb.append(Utils.toHex(word, 16)).append(' ');
+                        }
+                        println(sb.toString());
+                    }
+                    printIO(10);
+                    continue;
+                }
+
                 if (checkCmd(cmd, "awrite")) {
                     if (i == cmds.length - 1) {
                         throw new Exception("команда awrite требует аргумент");
@@ -530,7 +696,7 @@ public class CLI {
 
                     long addr = Integer.parseInt(cmds[++i], 16);
                     monitoredMemoryWrite.add(addr);
-                    println("Вывод изменений в памяти по адресу " + Utils.toHex(addr, 11));
+                    println("Вывод изменений в памяти по адресу " + Utils.toHex(addr, addrWidth));
                     continue;
                 }
 
@@ -540,7 +706,7 @@ public class CLI {
                     }
 
                     long addr = Integer.parseInt(cmds[++i], 16);
-                    println("Значение ячейки памяти по адресу " + Utils.toHex(addr, 11) + ": " + Utils.toHex(cpu.getMemory().getValue(addr), 16));
+                    println("Значение ячейки памяти по адресу " + Utils.toHex(addr, addrWidth) + ": " + Utils.toHex(engine().getMemory().getValue(addr), 16));
                     continue;
                 }
 
@@ -556,12 +722,12 @@ public class CLI {
                     }
 
                     long valueToSet = Integer.parseInt(cmds[++i], 16);
-                    cpu.getMemory().setValue(addr, valueToSet);
+                    engine().getMemory().setValue(addr, valueToSet);
                     println(
                             "Значение " +
                                     Utils.toHex(valueToSet, 16) +
                                     " было записано по адресу " +
-                                    Utils.toHex(addr, 11)
+                                    Utils.toHex(addr, addrWidth)
                     );
 
                     continue;
@@ -577,11 +743,11 @@ public class CLI {
                     Thread th = new Thread(() -> {
                         try {
                             Thread.sleep(200);
-                            checkResult(cpu.startContinue());
+                            checkResult(engine().startContinue());
 
                             do {
                                 fastExecution();
-                            } while (cpu.getRegister(Reg.CR).getValue() != 0x100);
+                            } while (engine().getRegValue(Reg.CR) != 0x100);
 
                         } catch (Exception e) {
                             throw new RuntimeException(e);
@@ -597,34 +763,238 @@ public class CLI {
                 }
 
                 if (checkCmd(cmd, "asm") || checkCmd(cmd, "assembler")) {
-                    String code = "";
+                    String code = readProgram();
 
-                    println("Введите текст программы. Для окончания введите END");
+                    printOnStop = false;
+                    CompilationResult result = AssemblyCache.getDefault().compile(code, (int) addrWidth, isExtendedTarget());
+                    Program pobj = result.program;
+                    if (result.errors.isEmpty()) {
+                        program = pobj;
+                        ProgramBinary prog = new ProgramBinary(pobj.image, pobj.start_address);
+                        bcomp.loadProgram(prog);
+                        println("Программа начинается с адреса " + Utils.toHex(prog.start_address, addrWidth));
+                    } else {
+                        for (String err : result.errors) {
+                            println(err);
+                        }
+                        println("Программа содержит ошибки");
+                    }
+                    printOnStop = true;
+                    continue;
+                }
 
-                    for (; ; ) {
-                        line = fetchLine();
+                if (checkCmd(cmd, "asmopt")) {
+                    String code = readProgram();
 
-                        if (line.equalsIgnoreCase("END")) {
-                            break;
+                    AsmNg asm = new AsmNg(code, (int) addrWidth, isExtendedTarget());
+                    asm.setTickCost(getTickCost());
+                    Program pobj = asm.compile();
+                    if (pobj == null || !asm.getErrors().isEmpty()) {
+                        for (String err : asm.getErrors()) {
+                            println(err);
                         }
+                        println("Программа содержит ошибки");
+                        continue;
+                    }
+                    printOnStop = false;
+                    program = pobj;
+                    bcomp.loadProgram(new ProgramBinary(pobj.image, pobj.start_address));
+                    println("Изменено команд: " + asm.getOptimizedWords() +
+                            ", сэкономлено тактов: " + asm.getSavedTicks());
+                    println("Программа начинается с адреса " + Utils.toHex(pobj.start_address, addrWidth));
+                    printOnStop = true;
+                    continue;
+                }
 
-                        code = code.concat(line.concat("\n"));
+                if (checkCmd(cmd, "disasm")) {
+                    if (i == cmds.length - 1) {
+                        throw new Exception("команда disasm требует аргумент");
                     }
 
-                    printOnStop = false;
-                    AsmNg asm = new AsmNg(code);
-                    Program pobj = asm.compile();
-                    if (asm.getErrors().isEmpty()) {
-                        ProgramBinary prog = new ProgramBinary(pobj.getBinaryFormat());
-                        bcomp.loadProgram(prog);
-                        println("Программа начинается с адреса " + Utils.toHex(prog.start_address, 11));
-                    } else {
+                    int addr = Integer.parseInt(cmds[++i], 16);
+                    int count = i < cmds.length - 1 ? Integer.parseInt(cmds[++i], 16) : 1;
+                    Disassembler disasm = program != null ? new Disassembler(program, isExtendedTarget()) : new Disassembler(isExtendedTarget());
+                    StringBuilder builder = new StringBuilder(64);
+
+                    for (int n = 0; n < count; n++, addr++) {
+                        int word = (int) cpu.getMemory().getValue(addr);
+                        String name = disasm.getName(addr);
+
+                        builder.setLength(0);
+                        Utils.appendHex(builder, addr, addrWidth).append(' ');
+                        Utils.appendHex(builder, word, 16).append('\t');
+                        if (name != null) {
+                            builder.append(name).append(": ");
+                        }
+                        println(disasm.append(builder, addr, word));
+                    }
+                    continue;
+                }
+
+                if (checkCmd(cmd, "estimate")) {
+                    if (program == null) {
+                        throw new Exception("нет скомпилированной программы");
+                    }
+
+                    ProgramTickEstimator estimator = new ProgramTickEstimator(program, getTickCost());
+                    while (i < cmds.length - 1) {
+                        String[] bound = cmds[++i].split("=");
+                        if (bound.length != 2) {
+                            throw new Exception("граница цикла задаётся как метка=число");
+                        }
+                        estimator.setLoopBound(bound[0], Integer.parseInt(bound[1]));
+                    }
+                    print(estimator.toString());
+                    continue;
+                }
+
+                if (checkCmd(cmd, "compile")) {
+                    if (i >= cmds.length - 2) {
+                        throw new Exception("команда compile требует два аргумента");
+                    }
+
+                    AsmNg asm = new AsmNg(Files.readString(Paths.get(cmds[++i])), (int) addrWidth, isExtendedTarget());
+                    ObjectFile obj = asm.compileObject();
+                    if (obj == null) {
                         for (String err : asm.getErrors()) {
                             println(err);
                         }
                         println("Программа содержит ошибки");
+                        i++;
+                        continue;
                     }
-                    printOnStop = true;
+                    obj.save(Paths.get(cmds[++i]));
+                    println("Объектный файл сохранён в " + cmds[i] + ", внешние символы: " + obj.getExternals());
+                    continue;
+                }
+
+                if (checkCmd(cmd, "link")) {
+                    if (i == cmds.length - 1) {
+                        throw new Exception("команда link требует аргумент");
+                    }
+
+                    Linker linker = new Linker();
+                    while (i < cmds.length - 1) {
+                        linker.add(ObjectFile.load(Paths.get(cmds[++i])));
+                    }
+                    Program pobj = linker.link().toProgram();
+                    program = pobj;
+                    bcomp.loadProgram(new ProgramBinary(pobj.image, pobj.start_address));
+                    println("Программа начинается с адреса " + Utils.toHex(pobj.start_address, addrWidth));
+                    continue;
+                }
+
+                if (checkCmd(cmd, "mpload")) {
+                    if (i == cmds.length - 1) {
+                        throw new Exception("команда mpload требует аргумент");
+                    }
+
+                    MicroProgramFile mpfile = MicroProgramFile.load(Paths.get(cmds[++i]), (int) cpu.getConfig().mpWidth);
+                    checkResult(cpu.executeMPLoad(mpfile.image));
+                    tickCost = null;
+                    println("Микропрограмма загружена из " + cmds[i] + ", микрокоманд: " + mpfile.image.getLength());
+                    continue;
+                }
+
+                if (checkCmd(cmd, "mpsave")) {
+                    if (i == cmds.length - 1) {
+                        throw new Exception("команда mpsave требует аргумент");
+                    }
+
+                    new MicroProgramFile((int) cpu.getConfig().mpWidth, cpu.readMicroProgram()).save(Paths.get(cmds[++i]));
+                    println("Микропрограмма сохранена в " + cmds[i]);
+                    continue;
+                }
+
+                if (checkCmd(cmd, "mpbase")) {
+                    checkResult(cpu.executeMPLoad(cpu.getMicroCodeSource().getImage()));
+                    tickCost = null;
+                    continue;
+                }
+
+                if (checkCmd(cmd, "mpext")) {
+                    checkResult(cpu.executeMPLoad(new MicroCode(cpu.getConfig(), true).getImage()));
+                    tickCost = null;
+                    continue;
+                }
+
+                if (checkCmd(cmd, "mpopt")) {
+                    int random = i < cmds.length - 1 ? Integer.parseInt(cmds[++i]) : 1000;
+                    MicroProgramImage current = cpu.readMicroProgram();
+                    MicroProgramOptimizer optimizer = new MicroProgramOptimizer(current, (int) cpu.getConfig().mpWidth);
+                    MicroProgramImage optimized = optimizer.optimize();
+                    MicroProgramVerifier verifier = new MicroProgramVerifier(cpu.getConfig(), current, optimized);
+                    String diff = verifier.verify(random, System.nanoTime());
+
+                    println(optimizer.toString());
+                    if (diff != null) {
+                        throw new Exception("Микропрограммы не эквивалентны: " + diff);
+                    }
+                    checkResult(cpu.executeMPLoad(optimized));
+                    tickCost = null;
+                    println("Проверено случаев: " + verifier.getCases() + ", тактов: " +
+                            verifier.getReferenceTicks() + " -> " + verifier.getCandidateTicks());
+                    continue;
+                }
+
+                if (checkCmd(cmd, "save")) {
+                    if (i == cmds.length - 1) {
+                        throw new Exception("команда save требует аргумент");
+                    }
+
+                    new Snapshot(bcomp).save(Paths.get(cmds[++i]));
+                    println("Снимок сохранён в " + cmds[i]);
+                    continue;
+                }
+
+                if (checkCmd(cmd, "restore")) {
+                    if (i == cmds.length - 1) {
+                        throw new Exception("команда restore требует аргумент");
+                    }
+
+                    new Snapshot(bcomp).restore(Paths.get(cmds[++i]));
+                    println("Состояние восстановлено из " + cmds[i]);
+                    continue;
+                }
+
+                if (checkCmd(cmd, "idle")) {
+                    if (i < cmds.length - 1) {
+                        bcomp.setIdleLoopDetection(checkCmd(cmds[++i], "on"));
+                    }
+
+                    IdleLoopDetector detector = cpu.getIdleLoopDetector();
+                    println(detector == null ? "Циклы опроса выполняются" :
+                            "Циклы опроса пропускаются, ожиданий: " + detector.getIdleCount());
+                    continue;
+                }
+
+                if (checkCmd(cmd, "dcache")) {
+                    if (i < cmds.length - 1) {
+                        String mode = cmds[++i];
+                        cpu.setDecodeCache(!checkCmd(mode, "off"), checkCmd(mode, "count"));
+                    }
+
+                    DecodeCache cache = cpu.getDecodeCache();
+                    println(cache == null ? "Кэш декодирования выключен" :
+                            "Попаданий: " + cache.getHits() + ", пропущено тактов: " + cache.getSkippedTicks());
+                    continue;
+                }
+
+                if (checkCmd(cmd, "diff")) {
+                    int count = i < cmds.length - 1 ? Integer.parseInt(cmds[++i]) : 1000;
+                    final MachineConfig config = new MachineConfig(cpu.getConfig().addrWidth, cpu.getConfig().mpWidth,
+                            MachineConfig.MemoryType.HEAP, null, cpu.getConfig().dmaBuffer);
+                    final MicroProgramImage current = cpu.readMicroProgram();
+                    DifferentialRunner runner = new DifferentialRunner(
+                            () -> createMachine(config, current, false),
+                            () -> createMachine(config, current, true));
+
+                    runner.setCompareTicks(true);
+                    String diff = runner.fuzz(System.nanoTime(), count, 1000, 0);
+                    if (diff != null) {
+                        throw new Exception("Выполнение различается: " + diff);
+                    }
+                    println("Проверено программ: " + runner.getRuns() + ", команд: " + runner.getInstructions());
                     continue;
                 }
 
@@ -645,7 +1015,7 @@ public class CLI {
             try {
                 if (Utils.isHexNumeric(cmd) && cmd.length() <= (cpu.getRegWidth(Reg.IR) / 4) + (cmd.charAt(0) == '-' ? 1 : 0)) {
                     value = Integer.parseInt(cmd, 16);
-                    cpu.getRegister(Reg.IR).setValue(value);
+                    engine().setRegValue(Reg.IR, value);
                 } else {
                     println("Неизвестная команда " + cmd);
                 }
@@ -657,7 +1027,7 @@ public class CLI {
 
     private void fastExecution() throws Exception {
         try {
-            checkResult(cpu.executeContinue());
+            checkResult(engine().executeContinue());
         } catch (Exception e) {
             Thread.sleep(2);
         }
@@ -677,4 +1047,9 @@ public class CLI {
     protected void println(String str) {
         System.out.println(str);
     }
+
+    @SuppressWarnings("WeakerAccess")
+    protected void println(CharSequence str) {
+        System.out.append(str).println();
+    }
 }
@@ -6,6 +6,7 @@ package ru.ifmo.cs.bcomp.ui;
 
 import ru.ifmo.cs.bcomp.BasicComp;
 import ru.ifmo.cs.bcomp.CPU;
+import ru.ifmo.cs.bcomp.ExecutionEngine;
 import ru.ifmo.cs.bcomp.IOCtrl;
 import ru.ifmo.cs.bcomp.ui.components.ActivateblePanel;
 import ru.ifmo.cs.bcomp.ui.components.AssemblerView;
@@ -106,6 +107,10 @@ public class GUI extends JApplet {
         return cpu;
     }
 
+    public ExecutionEngine getEngine() {
+        return bcomp.getEngine();
+    }
+
     public IOCtrl[] getIOCtrls() {
         return bcomp.getIOCtrls();
     }
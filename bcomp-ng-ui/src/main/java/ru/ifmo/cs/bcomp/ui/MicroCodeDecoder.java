@@ -9,8 +9,6 @@ import ru.ifmo.cs.bcomp.CPU;
 
 import static ru.ifmo.cs.bcomp.MCDecoder.getFormattedMC;
 
-import ru.ifmo.cs.bcomp.MicroCode;
-
 import static ru.ifmo.cs.bcomp.RunningCycle.*;
 
 /**
@@ -18,17 +16,15 @@ import static ru.ifmo.cs.bcomp.RunningCycle.*;
  */
 public class MicroCodeDecoder {
     private final CPU cpu;
-    private final MicroCode mc;
 
     public MicroCodeDecoder(BasicComp bcomp) {
         cpu = bcomp.getCPU();
-        mc = cpu.getMicroCodeSource();
         cpu.stopCPU();
     }
 
     public void decode() throws Exception {
-        int infetch = mc.findLabel(INFETCH.name());
-        int reserved = mc.findLabel(RESERVED.name());
+        int infetch = cpu.findLabel(INFETCH.name());
+        int reserved = cpu.findLabel(RESERVED.name());
 
         for (int addr = infetch; addr < reserved; System.out.println(getFormattedMC(cpu, addr++))) ;
     }
@@ -433,7 +433,7 @@ public class Nightmare {
                 if (e.isShiftDown()) {
                     switch (e.getKeyCode()) {
                         case KeyEvent.VK_F9:
-                            cpu.invertClockState();
+                            bcomp.getEngine().invertClockState();
                     }
 
                     return;
@@ -517,27 +517,27 @@ public class Nightmare {
 					break;
 */
                     case KeyEvent.VK_F4:
-                        cpu.startSetAddr();
+                        bcomp.getEngine().startSetAddr();
                         break;
 
                     case KeyEvent.VK_F5:
-                        cpu.startWrite();
+                        bcomp.getEngine().startWrite();
                         break;
 
                     case KeyEvent.VK_F6:
-                        cpu.startRead();
+                        bcomp.getEngine().startRead();
                         break;
 
                     case KeyEvent.VK_F7:
-                        cpu.startStart();
+                        bcomp.getEngine().startStart();
                         break;
 
                     case KeyEvent.VK_F8:
-                        cpu.startContinue();
+                        bcomp.getEngine().startContinue();
                         break;
 
                     case KeyEvent.VK_F9:
-                        cpu.invertRunState();
+                        bcomp.getEngine().invertRunState();
                         regs.get(PS).bits[W.ordinal()].repaint();
                         break;
 
@@ -16,6 +16,7 @@ import static ru.ifmo.cs.bcomp.ui.components.DisplayStyles.COLOR_INPUT_TITLE;
  */
 public class ActiveBitView extends BCompComponent {
     private final JLabel value = addValueLabel();
+    private int shown = -1;
 
     public ActiveBitView(int x, int y) {
         super("", 0, COLOR_INPUT_TITLE);
@@ -29,6 +30,10 @@ public class ActiveBitView extends BCompComponent {
     }
 
     public void setValue(int value) {
-        this.value.setText(Utils.toHex(value, 1));
+        if (value == shown) {
+            return;
+        }
+
+        this.value.setText(Utils.toHex(shown = value, 1));
     }
 }
@@ -5,16 +5,24 @@
 package ru.ifmo.cs.bcomp.ui.components;
 
 import ru.ifmo.cs.bcomp.CPU;
+import ru.ifmo.cs.bcomp.ExecutionEngine;
+import ru.ifmo.cs.bcomp.MicroProgramImage;
 import ru.ifmo.cs.bcomp.ProgramBinary;
-import ru.ifmo.cs.bcomp.assembler.AsmNg;
+import ru.ifmo.cs.bcomp.Reg;
+import ru.ifmo.cs.bcomp.assembler.AssemblyCache;
+import ru.ifmo.cs.bcomp.assembler.CompilationResult;
+import ru.ifmo.cs.bcomp.assembler.IncrementalAssembler;
 import ru.ifmo.cs.bcomp.assembler.Program;
 import ru.ifmo.cs.bcomp.ui.GUI;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
 
 import static ru.ifmo.cs.bcomp.ui.components.DisplayStyles.*;
 
@@ -22,11 +30,20 @@ import static ru.ifmo.cs.bcomp.ui.components.DisplayStyles.*;
  * @author Dmitry Afanasiev <KOT@MATPOCKuH.Ru>
  */
 public class AssemblerView extends BCompPanel implements ActionListener {
+    // Delay after last edit before checking program
+    private static final int CHECK_DELAY = 500;
+
     private final GUI gui;
     private final CPU cpu;
     private final ComponentManager cmanager;
     private final JTextArea text;
     private final JTextArea errorarea;
+    private final JButton button;
+    // Live check assembler, recreated when target changes
+    private IncrementalAssembler assembler;
+    private final Timer check;
+    // Number of edits, changed on EDT only
+    private long version = 0;
 
     public AssemblerView(final GUI gui) {
         super(gui.getComponentManager(), null, null);
@@ -41,7 +58,7 @@ public class AssemblerView extends BCompPanel implements ActionListener {
         JScrollPane scroll = new JScrollPane(text);
         pane.add(scroll, BorderLayout.CENTER);
 
-        JButton button = new JButton(cmanager.getRes().getString("compile"));
+        button = new JButton(cmanager.getRes().getString("compile"));
         button.setForeground(COLOR_TEXT);
         button.setFont(FONT_COURIER_PLAIN_12);
         button.setFocusable(false);
@@ -62,6 +79,74 @@ public class AssemblerView extends BCompPanel implements ActionListener {
         splitpane.setDividerLocation((int) (PANE_HEIGHT * 0.8)); // TODO FIX ALL Layouts
         add(splitpane);
 
+        assembler = new IncrementalAssembler((int) cpu.getRegWidth(Reg.AR), isExtendedTarget());
+        check = new Timer(CHECK_DELAY, e -> checkProgram());
+        check.setRepeats(false);
+        text.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                edited();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                edited();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+    }
+
+    private void edited() {
+        version++;
+        check.restart();
+    }
+
+    /**
+     * Report errors of edited program, results of outdated checks are dropped
+     */
+    private void checkProgram() {
+        final long checked = version;
+        final String source = text.getText();
+        if (assembler.isExtended() != isExtendedTarget()) {
+            assembler = new IncrementalAssembler((int) cpu.getRegWidth(Reg.AR), isExtendedTarget());
+        }
+        final IncrementalAssembler checker = assembler;
+
+        new SwingWorker<CompilationResult, Void>() {
+            @Override
+            protected CompilationResult doInBackground() {
+                return checker.compile(source);
+            }
+
+            @Override
+            protected void done() {
+                if (checked != version || isCancelled()) {
+                    return;
+                }
+
+                try {
+                    StringBuilder sb = new StringBuilder();
+                    for (String err : get().errors) {
+                        sb.append(err).append('\n');
+                    }
+                    errorarea.setText(sb.toString());
+                } catch (InterruptedException | ExecutionException ex) {
+                    errorarea.setText(ex.getCause() != null ? ex.getCause().toString() : ex.toString());
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Loaded microprogram executes MUL, DIV and MOVE
+     */
+    private boolean isExtendedTarget() {
+        MicroProgramImage mp = cpu.getMicroProgram();
+
+        return mp != null && mp.isExtended();
     }
 
     @Override
@@ -89,32 +174,67 @@ public class AssemblerView extends BCompPanel implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
-        if (cpu.isLocked()) {
+        if (gui.getEngine().isLocked()) {
             showError(cmanager.getRes().getString("stopRunning"));
             return;
         }
 
-        cmanager.saveDelay();
-        boolean clock = cpu.getClockState();
-        cpu.setClockState(true);
-        long starttime = System.currentTimeMillis();
-        AsmNg asm = new AsmNg(text.getText());
-        Program pobj = asm.compile();
-        long finishtime = System.currentTimeMillis();
-        String errors = new String();
-        String st = "Start compilation at " + new Date(starttime) + "\n";
-        String ft = "Finish compilation at " + new Date(finishtime) + "\n";
-        errors = st;
-        for (String err : asm.getErrors()) {
-            errors = errors + err + '\n';
+        final String source = text.getText();
+        final int width = (int) cpu.getRegWidth(Reg.AR);
+        final boolean extended = isExtendedTarget();
+        final Date start = new Date();
+
+        check.stop();
+        button.setEnabled(false);
+        new SwingWorker<CompilationResult, Void>() {
+            private long elapsed;
+
+            @Override
+            protected CompilationResult doInBackground() {
+                long time = System.nanoTime();
+                CompilationResult result = AssemblyCache.getDefault().compile(source, width, extended);
+                elapsed = System.nanoTime() - time;
+                return result;
+            }
+
+            @Override
+            protected void done() {
+                button.setEnabled(true);
+                try {
+                    load(get(), start, elapsed);
+                } catch (InterruptedException | ExecutionException ex) {
+                    errorarea.setText(ex.getCause() != null ? ex.getCause().toString() : ex.toString());
+                }
+            }
+        }.execute();
+    }
+
+    private void load(CompilationResult result, Date start, long elapsed) {
+        Program pobj = result.program;
+        StringBuilder errors = new StringBuilder();
+
+        errors.append("Start compilation at ").append(start).append('\n');
+        for (String err : result.errors) {
+            errors.append(err).append('\n');
         }
-        errors = errors + ft;
-        errorarea.setText(errors);
-        if (pobj != null) {
-            gui.getBasicComp().loadProgram(new ProgramBinary(pobj.getBinaryFormat()));
+        errors.append("Finish compilation at ").append(new Date())
+                .append(" (").append(elapsed / 1000000).append(" ms)\n");
+        errorarea.setText(errors.toString());
+
+        if (pobj == null) {
+            return;
+        }
+        if (gui.getEngine().isLocked()) {
+            showError(cmanager.getRes().getString("stopRunning"));
+            return;
         }
 
-        cpu.setClockState(clock);
+        cmanager.saveDelay();
+        ExecutionEngine engine = gui.getEngine();
+        boolean clock = engine.getClockState();
+        engine.setClockState(true);
+        gui.getBasicComp().loadProgram(new ProgramBinary(pobj.image, pobj.start_address));
+        engine.setClockState(clock);
         cmanager.clearActiveSignals();
         cmanager.restoreDelay();
     }
@@ -396,40 +396,41 @@ public class ComponentManager {
     }
 
     public void cmdContinue() {
-        cpu.startContinue();
+        gui.getEngine().startContinue();
     }
 
     public void cmdEnterAddr() {
 
-        cpu.startSetAddr();
+        gui.getEngine().startSetAddr();
     }
 
     public void cmdWrite() {
 
-        cpu.startWrite();
+        gui.getEngine().startWrite();
     }
 
     public void cmdRead() {
 
-        cpu.startRead();
+        gui.getEngine().startRead();
     }
 
     public void cmdStart() {
 
-        cpu.startStart();
+        gui.getEngine().startStart();
 
     }
 
     public void cmdInvertRunState() {
-        cpu.invertRunState();
-        long state = cpu.getProgramState(State.W);
+        ExecutionEngine engine = gui.getEngine();
+        engine.invertRunState();
+        long state = engine.getProgramState(State.W);
         rbRanStop.setSelected(state == 1);
         rbRanStop.setText(buttonProperties[BUTTON_RUN].texts[(int) state]);
         regs.get(Reg.PS).setValue();
     }
 
     public void cmdInvertClockState() {
-        boolean state = cpu.invertClockState();
+        boolean state = gui.getEngine().invertClockState();
         rbTact.setSelected(!state);
     }
 
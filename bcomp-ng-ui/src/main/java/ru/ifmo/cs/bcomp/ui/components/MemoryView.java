@@ -24,6 +24,9 @@ public class MemoryView extends BCompComponent {
     // Components
     private JLabel[] addrs = new JLabel[16];
     private JLabel[] values = new JLabel[16];
+    // Values on labels, label is not updated when value is the same
+    private int[] shownAddrs = new int[16];
+    private int[] shownValues = new int[16];
 
     public MemoryView(Memory mem, int x, int y) {
         super("RAM", 16);
@@ -43,6 +46,7 @@ public class MemoryView extends BCompComponent {
 
             values[i] = addValueLabel(COLOR_VALUE);
             values[i].setBounds(lineX + 1, getValueY(i), valueWidth, CELL_HEIGHT);
+            shownAddrs[i] = shownValues[i] = -1;
         }
     }
 
@@ -58,12 +62,18 @@ public class MemoryView extends BCompComponent {
     }
 
     private void updateValue(int offset) {
-        updateValue(values[offset], (int) mem.getValue(lastPage + offset));
+        int value = (int) mem.getValue(lastPage + offset);
+
+        if (value != shownValues[offset]) {
+            updateValue(values[offset], shownValues[offset] = value);
+        }
     }
 
     public void updateMemory() {
         for (int i = 0; i < 16; i++) {
-            addrs[i].setText(Utils.toHex(lastPage + i, addrBitWidth));
+            if (shownAddrs[i] != lastPage + i) {
+                addrs[i].setText(Utils.toHex(shownAddrs[i] = lastPage + i, addrBitWidth));
+            }
             updateValue(i);
         }
     }
@@ -21,6 +21,8 @@ public class RegisterView extends BCompComponent implements DataDestination {
     private int valuemask;
     private boolean hex;
     private boolean isLeft;
+    // Value on label, label is not updated when register value is the same
+    private long shown = -1;
 
     private final Register reg;
     protected final JLabel value = addValueLabel();
@@ -46,6 +48,7 @@ public class RegisterView extends BCompComponent implements DataDestination {
         this.formatWidth = regWidth;
         this.valuemask = (1 << regWidth) - 1;
         this.isLeft = isLeft;
+        this.shown = -1;
         setBounds(x, y, getValueWidth(regWidth, hex) + REG_TITLE_WIDTH - 10);
         setValue();
         if (!isLeft) {
@@ -66,13 +69,19 @@ public class RegisterView extends BCompComponent implements DataDestination {
     }
 
     protected void setValue(String val) {
+        shown = -1;
         value.setText(val);
     }
 
     public void setValue() {
-        setValue(hex ?
-                Utils.toHex(reg.getValue() & valuemask, formatWidth) :
-                Utils.toBinary((int) reg.getValue() & valuemask, formatWidth));
+        long v = reg.getValue() & valuemask;
+
+        if (v == shown) {
+            return;
+        }
+
+        setValue(hex ? Utils.toHex(v, formatWidth) : Utils.toBinary(v, formatWidth));
+        shown = v;
     }
 
     @Override
@@ -3,19 +3,31 @@
  */
 package ru.ifmo.cs.bcomp;
 
+import ru.ifmo.cs.components.DataDestination;
+
 /**
  * @author Dmitry Afanasiev <KOT@MATPOCKuH.Ru>
  */
 public class BasicComp {
 
     private final CPU cpu;
-    private final IOCtrl[] ioctrls = new IOCtrl[10];
+    private final IOCtrl[] ioctrls;
+    private final IOCtrlDMA dma;
     private final IODevTimer timer;
+    private volatile ExecutionEngine engine;
 
     public BasicComp() throws Exception {
-        cpu = new CPU();
+        this(MachineConfig.CLASSIC);
+    }
+
+    public BasicComp(MachineConfig config) throws Exception {
+        cpu = new CPU(config);
         cpu.startCPU();
 
+        ioctrls = new IOCtrl[config.dmaBuffer > 0 ? 11 : 10];
+        dma = config.dmaBuffer > 0 ? new IOCtrlDMA(0x20, cpu, config.dmaBuffer) : null;
+        ioctrls[ioctrls.length - 1] = dma;
+
         cpu.addDestination(ControlSignal.INTS,
                 (ioctrls[0] = new IOCtrlBasic(0x00, cpu, IOCtrlBasic.TYPE.INPUTOUTPUT,
                         (ioctrls[1] = new IOCtrlBasic(0x02, cpu, IOCtrlBasic.TYPE.OUTPUT,
@@ -26,7 +38,9 @@ public class BasicComp {
                                                                 (ioctrls[6] = new IOCtrlBasic(0x10, cpu, IOCtrlBasic.TYPE.OUTPUT,
                                                                         (ioctrls[7] = new IOCtrlBasic(0x14, cpu, IOCtrlBasic.TYPE.OUTPUT,
                                                                                 (ioctrls[8] = new IOCtrlBasic(0x18, cpu, IOCtrlBasic.TYPE.INPUT,
-                                                                                        (ioctrls[9] = new IOCtrlBasic(0x1C, cpu, IOCtrlBasic.TYPE.INPUT)).getIRQSC()
+                                                                                        (ioctrls[9] = new IOCtrlBasic(0x1C, cpu, IOCtrlBasic.TYPE.INPUT,
+                                                                                                dma != null ? new DataDestination[]{dma.getIRQSC()} : new DataDestination[0]
+                                                                                        )).getIRQSC()
                                                                                 )).getIRQSC()
                                                                         )).getIRQSC()
                                                                 )).getIRQSC()
@@ -38,12 +52,27 @@ public class BasicComp {
                 )).getIRQSC()
         );
         timer = new IODevTimer(ioctrls[0]);
+        engine = cpu;
     }
 
     public CPU getCPU() {
         return cpu;
     }
 
+    /**
+     * Engine used for console operations, CPU by default
+     */
+    public ExecutionEngine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(ExecutionEngine engine) throws RuntimeException {
+        if (this.engine.isLocked()) {
+            throw new RuntimeException("Операция невозможна: выполняется программа");
+        }
+        this.engine = engine;
+    }
+
     public void addDestination(SignalListener[] listeners) {
         cpu.tickLock();
         try {
@@ -71,18 +100,15 @@ public class BasicComp {
     }
 
     public void loadProgram(ProgramBinary prog) throws RuntimeException {
-        if (cpu.isLocked()) {
+        ExecutionEngine engine = this.engine;
+
+        if (engine.isLocked()) {
             throw new RuntimeException("Операция невозможна: выполняется программа");
         }
-        if (!cpu.executeSetAddr(prog.load_address)) {
+        if (!engine.executeLoad(prog.getImage())) {
             throw new RuntimeException("Операция прервана: выполняется программа");
         }
-        for (Integer cmd : prog.binary) {
-            if (!cpu.executeWrite(cmd)) {
-                throw new RuntimeException("Операция прервана: выполняется программа");
-            }
-        }
-        if (!cpu.executeSetAddr(prog.start_address)) {
+        if (!engine.executeSetAddr(prog.start_address)) {
             throw new RuntimeException("Операция прервана: выполняется программа");
         }
     }
@@ -91,6 +117,35 @@ public class BasicComp {
         return ioctrls;
     }
 
+    /**
+     * @return DMA controller or null if it is not configured
+     */
+    public IOCtrlDMA getDMA() {
+        return dma;
+    }
+
+    /**
+     * Enable or disable waiting instead of executing idle loops
+     */
+    public void setIdleLoopDetection(boolean enable) {
+        IdleLoopDetector detector = cpu.getIdleLoopDetector();
+
+        if (enable == (detector != null)) {
+            return;
+        }
+
+        if (enable) {
+            cpu.setIdleLoopDetector(new IdleLoopDetector(cpu, ioctrls));
+        } else {
+            cpu.setIdleLoopDetector(null);
+            detector.done();
+        }
+    }
+
+    IODevTimer getTimer() {
+        return timer;
+    }
+
     public void startTimer() {
         timer.start("IO0");
     }
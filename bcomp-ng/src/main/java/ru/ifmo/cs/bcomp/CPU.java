@@ -8,6 +8,7 @@ import ru.ifmo.cs.components.*;
 import java.util.EnumMap;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import static ru.ifmo.cs.bcomp.ControlSignal.*;
 import static ru.ifmo.cs.bcomp.RunningCycle.*;
@@ -16,7 +17,7 @@ import static ru.ifmo.cs.bcomp.State.*;
 /**
  * @author Dmitry Afanasiev <KOT@MATPOCKuH.Ru>
  */
-public class CPU {
+public class CPU implements ExecutionEngine {
 
     private enum Buses {
         RIGHT_INPUT,
@@ -32,10 +33,8 @@ public class CPU {
 
     private static final long MR_WIDTH = TYPE.ordinal() + 1;
     private static final long VR_WIDTH = MR_WIDTH - 17;
-    private static final long MP_WIDTH = 8;
-    private static final long AR_WIDTH = 11;
-    private static final long DATA_WIDTH = 16;
-    private static final long IO_WIDTH = 8;
+    private static final long DATA_WIDTH = MachineConfig.DATA_WIDTH;
+    private static final long IO_WIDTH = MachineConfig.IO_WIDTH;
     private static final long IOCMD_WIDTH = 3;
     private static final long PS_WIDTH = P.ordinal() + 1;
 
@@ -44,18 +43,25 @@ public class CPU {
     private final EnumMap<Buses, Bus> buses = new EnumMap<Buses, Bus>(Buses.class);
     private final EnumMap<IOBuses, Bus> iobuses = new EnumMap<IOBuses, Bus>(IOBuses.class);
     private final EnumMap<RunningCycle, Integer> labels = new EnumMap<RunningCycle, Integer>(RunningCycle.class);
-    private final MicroCode mc = new MicroCode();
+    private final MachineConfig config;
+    private final MicroCode mc;
+    private volatile MicroProgramImage program;
+    private volatile MicroCodeTable mctable;
     private final Memory mem;
     private final Memory microcode;
     private final Register ps;
     private final Register ir;
     private final Register mp;
+    private final Register mr;
+    // Destinations of CLOCK0 besides microcommand register
+    private final Control clock0;
     private final Bus vv;
     private final Bus expected;
     private final Bus newmp;
     private final InputBus irqreq = new InputBus(1);
     private volatile boolean clock = true;
     private volatile long debuglevel = 0;
+    private final StringBuilder trace = new StringBuilder(128);
 
     private final ReentrantLock tick = new ReentrantLock();
     private final ReentrantLock lock = new ReentrantLock();
@@ -66,6 +72,13 @@ public class CPU {
     private volatile Runnable tickFinishListener = null;
     private volatile Runnable cpuStartListener = null;
     private volatile Runnable cpuStopListener = null;
+    private volatile IdleLoopDetector idleDetector = null;
+    private volatile DecodeCache decodeCache = null;
+    private volatile boolean countDecodeTicks = false;
+    // Microcommands skipped by decode cache and not yet passed as ticks
+    private int skippedTicks = 0;
+    private volatile long ticks = 0;
+    private volatile int infetch;
 
     private final Thread cpu = new Thread(new Runnable() {
         @Override
@@ -77,34 +90,7 @@ public class CPU {
                     lockFinish.signalAll();
                     lockStart.await();
 
-                    if (cpuStartListener != null) {
-                        cpuStartListener.run();
-                    }
-
-                    if (clock) {
-                        valves.get(SET_PROGRAM).setValue(1);
-                    }
-
-                    do {
-                        if (tickStartListener != null) {
-                            tickStartListener.run();
-                        }
-
-                        tick.lock();
-                        try {
-                            step();
-                        } finally {
-                            tick.unlock();
-                        }
-
-                        if (tickFinishListener != null) {
-                            tickFinishListener.run();
-                        }
-                    } while (ps.getValue(P.ordinal()) == 1);
-
-                    if (cpuStopListener != null) {
-                        cpuStopListener.run();
-                    }
+                    CPU.this.run(null, Long.MAX_VALUE);
                 }
             } catch (InterruptedException e) {
                 return;
@@ -114,9 +100,92 @@ public class CPU {
         }
     }, "BComp");
 
+    /**
+     * Run program until it stops, stop condition becomes true or limit of ticks is reached
+     * <p>
+     * lock should be acquired before calling
+     */
+    private void run(Predicate<ExecutionEngine> stop, long limit) throws InterruptedException {
+        if (cpuStartListener != null) {
+            cpuStartListener.run();
+        }
+
+        if (clock) {
+            valves.get(SET_PROGRAM).setValue(1);
+        }
+
+        try {
+            do {
+                if (runTick(stop)) {
+                    break;
+                }
+            } while (--limit > 0 && ps.getValue(P.ordinal()) == 1);
+        } finally {
+            if (cpuStopListener != null) {
+                cpuStopListener.run();
+            }
+        }
+    }
+
+    /**
+     * Execute one tick with tick listeners, decode cache and idle loop detection
+     *
+     * @return true if stop condition became true before instruction fetch
+     */
+    private boolean runTick(Predicate<ExecutionEngine> stop) throws InterruptedException {
+        if (tickStartListener != null) {
+            tickStartListener.run();
+        }
+
+        tick.lock();
+        try {
+            DecodeCache cache = decodeCache;
+            if (skippedTicks == 0 && cache != null && clock && mp.getValue() == cache.getStart()) {
+                skippedTicks = cache.skip();
+            }
+            if (skippedTicks > 0) {
+                // Skipped microcommand takes a tick for listeners and devices on CLOCK0
+                skippedTicks--;
+                clock0.setValue(mr.getValue());
+                if (countDecodeTicks) {
+                    ticks++;
+                }
+            } else {
+                step();
+            }
+        } finally {
+            tick.unlock();
+        }
+
+        if (tickFinishListener != null) {
+            tickFinishListener.run();
+        }
+
+        if (mp.getValue() == infetch) {
+            IdleLoopDetector detector = idleDetector;
+            if (detector != null) {
+                detector.checkInstruction();
+            }
+            if (stop != null && stop.test(this)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     protected CPU() throws Exception {
+        this(MachineConfig.CLASSIC);
+    }
+
+    protected CPU(MachineConfig config) throws Exception {
+        final long arWidth = config.addrWidth;
+        final long mpWidth = config.mpWidth;
         Control c;
 
+        this.config = config;
+        mc = new MicroCode(config);
+
         // Data Register
         Register dr = new Register(DATA_WIDTH);
         regs.put(Reg.DR, dr);
@@ -124,10 +193,10 @@ public class CPU {
         Register cr = new Register(DATA_WIDTH);
         regs.put(Reg.CR, cr);
         // Instruction Pointer
-        Register ip = new Register(AR_WIDTH);
+        Register ip = new Register(arWidth);
         regs.put(Reg.IP, ip);
         // Stack Pointer
-        Register sp = new Register(AR_WIDTH);
+        Register sp = new Register(arWidth);
         regs.put(Reg.SP, sp);
         // ACcumulator
         Register ac = new Register(DATA_WIDTH);
@@ -140,19 +209,21 @@ public class CPU {
         // Input Register
         regs.put(Reg.IR, ir = new Register(DATA_WIDTH));
         // Address Register
-        Register ar = new Register(AR_WIDTH);
+        Register ar = new Register(arWidth);
         regs.put(Reg.AR, ar);
         // Microcommand Register
-        Register mr = new Register(MR_WIDTH);
+        mr = new Register(MR_WIDTH);
         regs.put(Reg.MR, mr);
         // Microcommand Pointer
-        regs.put(Reg.MP, mp = new AutoIncRegister(MP_WIDTH));
+        regs.put(Reg.MP, mp = new AutoIncRegister(mpWidth));
 
-        mem = new Memory(DATA_WIDTH, ar);
+        mem = config.memoryType == MachineConfig.MemoryType.DIRECT ?
+                new BufferMemory(DATA_WIDTH, ar, config.image) : new Memory(DATA_WIDTH, ar);
         microcode = new Memory(MR_WIDTH, mp);
 
         // Read microcommand
-        valves.put(CLOCK0, new Valve(microcode, MR_WIDTH, 0, 0, mr));
+        clock0 = new Control(MR_WIDTH, 0, 0);
+        valves.put(CLOCK0, new Valve(microcode, MR_WIDTH, 0, 0, mr, clock0));
 
         // Internal buses
         Bus right = new Bus(DATA_WIDTH);
@@ -169,7 +240,7 @@ public class CPU {
         buses.put(Buses.SWITCH_OUT, swout);
         buses.put(Buses.VV, vv = new Bus(1));
         buses.put(Buses.EXPECTED, expected = new Bus(1));
-        buses.put(Buses.NEWMP, newmp = new Bus(MP_WIDTH));
+        buses.put(Buses.NEWMP, newmp = new Bus(mpWidth));
         // IO buses
         Bus iodata = new Bus(IO_WIDTH);
         iobuses.put(IOBuses.IOData, iodata);
@@ -232,8 +303,8 @@ public class CPU {
                 new DataDestination() {
                     @Override
                     public synchronized void setValue(long value) {
-                        newmp.setValue((value >> 8) & BasicComponent.calculateMask(8));
-                        expected.setValue((value >> 16) & 1L);
+                        newmp.setValue((value >> 8) & BasicComponent.calculateMask(mpWidth));
+                        expected.setValue((value >> (8 + mpWidth)) & 1L);
                     }
                 }
         );
@@ -253,6 +324,8 @@ public class CPU {
         clock1.addDestination(new Not(TYPE.ordinal(),
                 new Valve(mr, VR_WIDTH, 16, 0,
                         c,
+                        newValveH(aluout, MachineConfig.ADDR_FIELD_WIDTH - 8, 8, HTOA,
+                                new PartWriter(swout, MachineConfig.ADDR_FIELD_WIDTH - 8, 8)),
                         new Valve(aluout, 1, 14, SHLT.ordinal() - 16, writeto17),
                         newValveH(aluout, DATA_WIDTH, 0, SHLT, new PartWriter(swout, DATA_WIDTH, 1)),
                         newValveH(aluout, 1, DATA_WIDTH + 2, SHL0, swout),
@@ -268,12 +341,12 @@ public class CPU {
                         newValveH(swout, 1, DATA_WIDTH - 1, STNZ, new PartWriter(ps, 1, N.ordinal())),
                         newValveH(swout, DATA_WIDTH, 0, WRDR, dr),
                         newValveH(swout, DATA_WIDTH, 0, WRCR, cr),
-                        newValveH(swout, AR_WIDTH, 0, WRIP, ip),
-                        newValveH(swout, AR_WIDTH, 0, WRSP, sp),
+                        newValveH(swout, arWidth, 0, WRIP, ip),
+                        newValveH(swout, arWidth, 0, WRSP, sp),
                         newValveH(swout, DATA_WIDTH, 0, WRAC, ac),
                         newValveH(swout, DATA_WIDTH, 0, WRBR, br),
                         newValveH(swout, PS_WIDTH, 0, WRPS, new PartWriter(ps, 6, 0), irqrq),
-                        newValveH(swout, AR_WIDTH, 0, WRAR, ar),
+                        newValveH(swout, arWidth, 0, WRAR, ar),
                         newValveH(mem, DATA_WIDTH, 0, LOAD, dr),
                         newValveH(dr, DATA_WIDTH, 0, STOR, mem),
                         newValveH(Consts.consts[1], 1, 0, IO,
@@ -295,15 +368,7 @@ public class CPU {
             }
         });
 
-        for (int i = 0; i < mc.getMicroCodeLength(); i++) {
-            microcode.setValue(i, mc.getMicroCommand(i));
-        }
-
-        for (RunningCycle cycle : RunningCycle.values()) {
-            labels.put(cycle, findLabel(cycle.name()));
-        }
-
-        mp.setValue(labels.get(STOP) + 1);
+        setMicroProgram(mc.getImage());
 
         // IO specific staff
         valves.put(SET_REQUEST_INTERRUPT, irqrq);
@@ -350,10 +415,16 @@ public class CPU {
         return regs.get(reg);
     }
 
+    @Override
     public Memory getMemory() {
         return mem;
     }
 
+    @Override
+    public MachineConfig getConfig() {
+        return config;
+    }
+
     public Memory getMicroCode() {
         return microcode;
     }
@@ -362,6 +433,38 @@ public class CPU {
         return mc;
     }
 
+    /**
+     * Microprogram currently loaded into microcode memory
+     */
+    public MicroProgramImage getMicroProgram() {
+        return program;
+    }
+
+    /**
+     * Microcode memory contents with labels of loaded microprogram, includes changes made by mwrite
+     */
+    public MicroProgramImage readMicroProgram() {
+        MicroProgramImage loaded = program;
+        int length = 1 << microcode.getAddrWidth();
+
+        while (length > loaded.getLength() && microcode.getValue(length - 1) == 0) {
+            length--;
+        }
+
+        long[] words = new long[length];
+        String[] labels = new String[length];
+        for (int addr = 0; addr < length; addr++) {
+            words[addr] = microcode.getValue(addr);
+            labels[addr] = loaded.getLabel(addr);
+        }
+
+        return new MicroProgramImage(words, labels);
+    }
+
+    public MicroCodeTable getMicroCodeTable() {
+        return mctable;
+    }
+
     public EnumMap<IOBuses, Bus> getIOBuses() {
         return iobuses;
     }
@@ -376,7 +479,8 @@ public class CPU {
 
     public synchronized void step() {
         if ((debuglevel & 1) == 1) {
-            System.out.println(MCDecoder.getFormattedMC(this, getRegister(Reg.MP).getValue()));
+            trace.setLength(0);
+            System.out.append(MCDecoder.appendFormattedMC(trace, this, mp.getValue())).println();
         }
 
         for (Buses bus : Buses.values()) {
@@ -388,6 +492,51 @@ public class CPU {
 
         valves.get(CLOCK0).setValue(1);
         valves.get(CLOCK1).setValue(1);
+        ticks++;
+    }
+
+    /**
+     * Number of ticks executed, including ticks accounted for skipped idle loops
+     */
+    @Override
+    public long getTickCount() {
+        return ticks;
+    }
+
+    void addTicks(long count) {
+        ticks += count;
+    }
+
+    @Override
+    public boolean step(long count) {
+        if (lock.tryLock()) {
+            try {
+                for (; count > 0; count--) {
+                    runTick(null);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean runUntil(Predicate<ExecutionEngine> stop, long limit) {
+        if (lock.tryLock()) {
+            try {
+                run(stop, limit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -412,10 +561,24 @@ public class CPU {
         cpu.interrupt();
     }
 
+    @Override
     public boolean isLocked() {
         return lock.isLocked();
     }
 
+    /**
+     * Keep processor stopped: until unlockStopped() program can't be started
+     *
+     * @return false if program is running
+     */
+    boolean lockStopped() {
+        return lock.tryLock();
+    }
+
+    void unlockStopped() {
+        lock.unlock();
+    }
+
     public void tickLock() {
         tick.lock();
     }
@@ -430,7 +593,7 @@ public class CPU {
      * Use tickLock() before call this method
      */
     public void addDestination(ControlSignal cs, DataDestination dest) {
-        valves.get(cs).addDestination(dest);
+        (cs == CLOCK0 ? clock0 : valves.get(cs)).addDestination(dest);
     }
 
     /**
@@ -439,7 +602,7 @@ public class CPU {
      * Use tickLock() before call this method
      */
     public void removeDestination(ControlSignal cs, DataDestination dest) {
-        valves.get(cs).removeDestination(dest);
+        (cs == CLOCK0 ? clock0 : valves.get(cs)).removeDestination(dest);
     }
 
     public void setTickStartListener(Runnable tickStartListener) {
@@ -450,14 +613,66 @@ public class CPU {
         this.tickFinishListener = tickFinishListener;
     }
 
+    @Override
     public void setCPUStartListener(Runnable cpuStartListener) {
         this.cpuStartListener = cpuStartListener;
     }
 
+    /**
+     * Install detector of idle loops, null disables detection
+     */
+    public void setIdleLoopDetector(IdleLoopDetector idleDetector) {
+        this.idleDetector = idleDetector;
+    }
+
+    public IdleLoopDetector getIdleLoopDetector() {
+        return idleDetector;
+    }
+
+    /**
+     * Enable or disable skipping of partial decoding by cache
+     *
+     * @param countTicks count skipped microcommands in tick counter
+     */
+    public void setDecodeCache(boolean enable, boolean countTicks) {
+        tick.lock();
+        try {
+            countDecodeTicks = countTicks;
+            if (!enable) {
+                decodeCache = null;
+            } else if (decodeCache == null) {
+                DecodeCache cache = new DecodeCache(this);
+                cache.reset(labels.get(INFETCH));
+                decodeCache = cache;
+            }
+        } finally {
+            tick.unlock();
+        }
+    }
+
+    public DecodeCache getDecodeCache() {
+        return decodeCache;
+    }
+
+    /**
+     * Drop everything derived from microcode memory contents
+     */
+    void microCodeChanged() {
+        DecodeCache cache = decodeCache;
+
+        skippedTicks = 0;
+
+        if (cache != null) {
+            cache.reset(labels.get(INFETCH));
+        }
+    }
+
+    @Override
     public void setCPUStopListener(Runnable cpuStopListener) {
         this.cpuStopListener = cpuStopListener;
     }
 
+    @Override
     public void setRunState(boolean state) {
         tick.lock();
         try {
@@ -467,6 +682,7 @@ public class CPU {
         }
     }
 
+    @Override
     public void invertRunState() {
         tick.lock();
         try {
@@ -476,22 +692,37 @@ public class CPU {
         }
     }
 
+    @Override
     public long getRegValue(Reg reg) {
         return regs.get(reg).getValue();
     }
 
+    @Override
     public long getRegWidth(Reg reg) {
         return regs.get(reg).width;
     }
 
+    @Override
+    public void setRegValue(Reg reg, long value) {
+        tick.lock();
+        try {
+            regs.get(reg).setValue(value);
+        } finally {
+            tick.unlock();
+        }
+    }
+
+    @Override
     public long getProgramState(State state) {
         return ps.getValue(state.ordinal());
     }
 
+    @Override
     public boolean getClockState() {
         return clock;
     }
 
+    @Override
     public void setClockState(boolean clock) {
         tick.lock();
         try {
@@ -504,6 +735,7 @@ public class CPU {
         }
     }
 
+    @Override
     public boolean invertClockState() {
         setClockState(!clock);
         return clock;
@@ -514,7 +746,47 @@ public class CPU {
     }
 
     public final int findLabel(String label) throws Exception {
-        return mc.findLabel(label);
+        int addr = program.findLabel(label);
+
+        if (addr < 0) {
+            throw new Exception("Label '" + label + "' not found");
+        }
+        return addr;
+    }
+
+    /**
+     * Load microprogram and labels of running cycles, rest of microcode memory is cleared
+     * <p>
+     * lock should be acquired before calling
+     */
+    private void setMicroProgram(MicroProgramImage image) throws Exception {
+        EnumMap<RunningCycle, Integer> starts = new EnumMap<RunningCycle, Integer>(RunningCycle.class);
+
+        for (RunningCycle cycle : RunningCycle.values()) {
+            int addr = image.findLabel(cycle.name());
+
+            if (addr < 0) {
+                throw new Exception("В микропрограмме нет метки " + cycle.name());
+            }
+            starts.put(cycle, addr);
+        }
+
+        image.loadInto(microcode);
+        labels.putAll(starts);
+        infetch = starts.get(INFETCH);
+        program = image;
+        mctable = new MicroCodeTable(this, image, labels);
+        microCodeChanged();
+        mp.setValue(labels.get(STOP) + 1);
+    }
+
+    /**
+     * Load microprogram restored from snapshot
+     * <p>
+     * Processor should be kept stopped by lockStopped()
+     */
+    void restoreMicroProgram(MicroProgramImage image) throws Exception {
+        setMicroProgram(image);
     }
 
     /**
@@ -525,6 +797,7 @@ public class CPU {
     private void jump(long addr) {
         if (addr > 0) {
             mp.setValue(addr);
+            skippedTicks = 0;
         }
     }
 
@@ -541,22 +814,27 @@ public class CPU {
         return false;
     }
 
+    @Override
     public boolean startSetAddr() {
         return startFrom(labels.get(SETIP));
     }
 
+    @Override
     public boolean startWrite() {
         return startFrom(labels.get(WRITE));
     }
 
+    @Override
     public boolean startRead() {
         return startFrom(labels.get(READ));
     }
 
+    @Override
     public boolean startStart() {
         return startFrom(labels.get(START));
     }
 
+    @Override
     public boolean startContinue() {
         return startFrom(0);
     }
@@ -580,6 +858,7 @@ public class CPU {
         return executeFrom(labels.get(SETIP));
     }
 
+    @Override
     public boolean executeSetAddr(long value) {
         ir.setValue(value);
         return executeSetAddr();
@@ -589,19 +868,23 @@ public class CPU {
         return executeFrom(labels.get(WRITE));
     }
 
+    @Override
     public boolean executeWrite(long value) {
         ir.setValue(value);
         return executeWrite();
     }
 
+    @Override
     public boolean executeRead() {
         return executeFrom(labels.get(READ));
     }
 
+    @Override
     public boolean executeStart() {
         return executeFrom(labels.get(START));
     }
 
+    @Override
     public boolean executeContinue() {
         return executeFrom(0);
     }
@@ -610,6 +893,38 @@ public class CPU {
         if (lock.tryLock()) {
             try {
                 mp.setValue(ir.getValue());
+                skippedTicks = 0;
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copy memory image directly to main memory
+     */
+    @Override
+    public boolean executeLoad(BinaryImage image) {
+        if (lock.tryLock()) {
+            try {
+                image.loadInto(mem);
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replace whole microprogram, processor stays stopped
+     */
+    public boolean executeMPLoad(MicroProgramImage image) throws Exception {
+        if (lock.tryLock()) {
+            try {
+                setMicroProgram(image);
             } finally {
                 lock.unlock();
             }
@@ -622,6 +937,8 @@ public class CPU {
         if (lock.tryLock()) {
             try {
                 microcode.setValue(value);
+                mctable.invalidate((int) mp.getValue());
+                microCodeChanged();
                 mp.setValue(0);
             } finally {
                 lock.unlock();
@@ -645,16 +962,6 @@ public class CPU {
     }
 
     public RunningCycle getRunningCycle() {
-        long addr = mp.getValue();
-        RunningCycle[] cycles = RunningCycle.values();
-        int i;
-
-        for (i = cycles.length - 1; i > 0; i--) {
-            if (addr >= labels.get(cycles[i])) {
-                return cycles[i];
-            }
-        }
-
-        return cycles[i];
+        return mctable.getRunningCycle((int) mp.getValue());
     }
 }
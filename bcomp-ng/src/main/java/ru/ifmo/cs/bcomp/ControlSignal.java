@@ -189,9 +189,9 @@ public enum ControlSignal {
     INTS,
     /**
      * Control signal 36:
-     * Reserved
+     * High part of address field (bits 8..10) to switch output
      */
-    RESERVED36,
+    HTOA,
     /**
      * Control signal 37:
      * Reserved
@@ -0,0 +1,140 @@
+/*
+ * $Id$
+ */
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.Memory;
+import ru.ifmo.cs.components.Register;
+
+import java.util.Arrays;
+
+import static ru.ifmo.cs.bcomp.ControlSignal.*;
+
+/**
+ * Cache of partial decoding results
+ * <p>
+ * After instruction fetch microprogram branches on bits of CR by a chain of
+ * control microcommands, which change nothing but MR and MP. For every value of
+ * CR the microaddress where this chain ends is computed once from microcode
+ * and the chain is skipped: MP is set to that address and MR to the last
+ * skipped microcommand, as if it was executed. Processor still spends a tick
+ * for every skipped microcommand: tick listeners and devices clocked by CLOCK0
+ * are called, only data path is not evaluated. Result depends only on CR and
+ * microcode, so modified instructions need no invalidation, cache is cleared
+ * when microcode changes.
+ */
+public class DecodeCache {
+    private static final long CR_HIGH = (1L << RDCR.ordinal()) | (1L << HTOL.ordinal());
+    private static final long CR_LOW = (1L << RDCR.ordinal()) | (1L << LTOL.ordinal());
+    private static final long VALID = 1L << 48;
+    // Fetch sequence before first check of CR
+    private static final int MAX_FETCH = 8;
+    private static final int MAX_CHAIN = 64;
+
+    private final Memory microcode;
+    private final Register cr;
+    private final Register mr;
+    private final Register mp;
+    private final long mpWidth;
+    private final long mpMask;
+    private final long[] entries = new long[1 << MachineConfig.DATA_WIDTH];
+    private volatile int start = -1;
+    private long hits = 0;
+    private long skipped = 0;
+
+    DecodeCache(CPU cpu) {
+        microcode = cpu.getMicroCode();
+        cr = cpu.getRegister(Reg.CR);
+        mr = cpu.getRegister(Reg.MR);
+        mp = cpu.getRegister(Reg.MP);
+        mpWidth = cpu.getConfig().mpWidth;
+        mpMask = (1L << mpWidth) - 1;
+    }
+
+    private static boolean isControl(long mc) {
+        return ((mc >> TYPE.ordinal()) & 1L) == 1L;
+    }
+
+    private static boolean checksCR(long mc) {
+        long signals = mc & 0xFFFF;
+
+        return isControl(mc) && (signals == CR_HIGH || signals == CR_LOW) && Long.bitCount((mc >> 16) & 0xFF) == 1;
+    }
+
+    /**
+     * Clear cache and find start of partial decoding after instruction fetch
+     */
+    synchronized void reset(int infetch) {
+        Arrays.fill(entries, 0);
+        start = -1;
+
+        for (int addr = infetch; addr < infetch + MAX_FETCH && addr <= mpMask; addr++) {
+            long mc = microcode.getValue(addr);
+
+            if (checksCR(mc)) {
+                start = addr;
+                return;
+            }
+
+            if (isControl(mc))
+                return;
+        }
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    private long walk(long value) {
+        int addr = start;
+        int last = start;
+        int count = 0;
+
+        for (long mc; count < MAX_CHAIN && checksCR(mc = microcode.getValue(addr)); count++) {
+            long bits = (mc & CR_HIGH) == CR_HIGH ? value >> 8 : value;
+            long vv = (bits & (mc >> 16) & 0xFF) != 0 ? 1 : 0;
+            long target = (mc >> 24) & mpMask;
+
+            last = addr;
+            addr = vv == ((mc >> (24 + mpWidth)) & 1L) && target != 0 ? (int) target : (addr + 1) & (int) mpMask;
+        }
+
+        // Jump to address 0 can't be written to MP
+        if (count == MAX_CHAIN || addr == 0)
+            count = 0;
+
+        return VALID | ((long) count << 32) | ((long) last << 16) | addr;
+    }
+
+    /**
+     * Skip partial decoding, processor should be at start of it
+     *
+     * @return number of skipped microcommands
+     */
+    synchronized int skip() {
+        int value = (int) cr.getValue();
+        long entry = entries[value];
+
+        if (entry == 0)
+            entries[value] = entry = walk(value);
+
+        int count = (int) (entry >> 32) & 0xFFFF;
+
+        if (count != 0) {
+            mr.setValue(microcode.getValue((entry >> 16) & 0xFFFF));
+            mp.setValue(entry & 0xFFFF);
+            hits++;
+            skipped += count;
+        }
+
+        return count;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getSkippedTicks() {
+        return skipped;
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.Memory;
+import ru.ifmo.cs.components.Register;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static ru.ifmo.cs.components.Utils.toHex;
+
+/**
+ * Lock-step differential execution of two machines
+ * <p>
+ * Engines of reference and tested machines execute the same program from the
+ * same state one instruction at a time. After every instruction registers,
+ * flags, memory writes and changes of controller registers are compared and
+ * first difference is reported with preceding instructions and state of both
+ * machines. Tested machine may use another engine or performance modes of CPU,
+ * except waiting in idle loops: random program may poll device forever.
+ * <p>
+ * Random program and state are generated from seed, reported seed reproduces
+ * the run. Random runs are split between threads, each thread creates its own
+ * pair of machines. As in MicroProgramVerifier, run is finished when reference
+ * loads 1 to PS0 or doesn't finish instruction.
+ */
+public class DifferentialRunner {
+    private static final Reg[] COMPARED = {Reg.DR, Reg.CR, Reg.IP, Reg.SP, Reg.AC, Reg.BR, Reg.AR};
+    private static final Reg[] RANDOM = {Reg.DR, Reg.CR, Reg.SP, Reg.AC, Reg.BR, Reg.AR};
+    private static final State[] FLAGS = {State.C, State.V, State.Z, State.N, State.EI};
+    private static final Predicate<ExecutionEngine> BOUNDARY = engine -> true;
+    // Flags, PS0, EI and INT
+    private static final long PS_MASK = 0x7F;
+    private static final int TICK_LIMIT = 10000;
+    private static final int CONTEXT = 8;
+
+    private final Callable<BasicComp> reference;
+    private final Callable<BasicComp> tested;
+    private volatile boolean compareTicks = false;
+    private final AtomicLong instructions = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public DifferentialRunner(Callable<BasicComp> reference, Callable<BasicComp> tested) {
+        this.reference = reference;
+        this.tested = tested;
+    }
+
+    /**
+     * Compare also number of ticks of every instruction
+     */
+    public void setCompareTicks(boolean compareTicks) {
+        this.compareTicks = compareTicks;
+    }
+
+    /**
+     * Number of compared instructions
+     */
+    public long getInstructions() {
+        return instructions.get();
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * Number of runs finished by reference loading PS0 or looping
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Execute program on both machines until it stops
+     *
+     * @param limit maximum number of instructions
+     * @return description of first difference or null
+     */
+    public String run(ProgramBinary program, long limit) throws Exception {
+        Pair pair = new Pair();
+
+        try {
+            return pair.run(program, limit);
+        } finally {
+            pair.done();
+        }
+    }
+
+    /**
+     * Execute random program in random state
+     */
+    public String runRandom(long seed, long limit) throws Exception {
+        Pair pair = new Pair();
+
+        try {
+            return pair.runRandom(seed, limit);
+        } finally {
+            pair.done();
+        }
+    }
+
+    /**
+     * Execute random programs with seeds seed, seed + 1, ... in several threads
+     *
+     * @param count   number of programs
+     * @param limit   maximum number of instructions of each program
+     * @param threads number of threads, 0 - number of processors
+     * @return description of difference with lowest seed or null
+     */
+    public String fuzz(final long seed, final int count, final long limit, int threads) throws Exception {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        final int shards = Math.min(threads, Math.max(count, 1));
+        final AtomicLong found = new AtomicLong(Long.MAX_VALUE);
+        final String[] results = new String[count];
+        ExecutorService executor = Executors.newFixedThreadPool(shards);
+        List<Future<Void>> futures = new ArrayList<>(shards);
+
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                final int first = shard;
+
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Pair pair = new Pair();
+
+                        try {
+                            for (int n = first; n < count && n < found.get(); n += shards) {
+                                String result = pair.runRandom(seed + n, limit);
+
+                                if (result != null) {
+                                    results[n] = result;
+                                    found.accumulateAndGet(n, Math::min);
+                                }
+                            }
+                        } finally {
+                            pair.done();
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long n = found.get();
+        return n == Long.MAX_VALUE ? null : results[(int) n];
+    }
+
+    private class Machine {
+        private final BasicComp bcomp;
+        private final ExecutionEngine engine;
+        private final Memory memory;
+        private final long[] shadow;
+        private final Register[] ioregs;
+        private final long[] ioshadow;
+        private long ticks;
+
+        private Machine(Callable<BasicComp> factory) throws Exception {
+            bcomp = factory.call();
+            engine = bcomp.getEngine();
+            memory = engine.getMemory();
+            shadow = new long[1 << (int) memory.getAddrWidth()];
+
+            List<Register> regs = new ArrayList<>();
+            for (IOCtrl ioctrl : bcomp.getIOCtrls()) {
+                for (Register reg : ioctrl.getRegisters()) {
+                    regs.add(reg);
+                }
+            }
+            ioregs = regs.toArray(new Register[regs.size()]);
+            ioshadow = new long[ioregs.length];
+        }
+
+        private void check(boolean result) {
+            if (!result) {
+                throw new RuntimeException("Операция невозможна: выполняется программа");
+            }
+        }
+
+        private void resetIO() {
+            for (Register reg : ioregs) {
+                reg.setValue(0);
+            }
+            for (IOCtrl ioctrl : bcomp.getIOCtrls()) {
+                ioctrl.updateStateIRQ();
+            }
+        }
+
+        private void setState(long[] memory, long[] regs, long flags, long[] input) {
+            check(engine.executeSetAddr(regs[RANDOM.length]));
+            this.memory.setValues(0, memory, 0, memory.length);
+            for (int i = 0; i < RANDOM.length; i++) {
+                engine.setRegValue(RANDOM[i], regs[i]);
+            }
+            engine.setRegValue(Reg.PS, engine.getRegValue(Reg.PS) & ~PS_MASK | flags);
+
+            resetIO();
+            IOCtrl[] ioctrls = bcomp.getIOCtrls();
+            for (int i = 0; i < ioctrls.length; i++) {
+                if (ioctrls[i] instanceof IOCtrlBasic) {
+                    ioctrls[i].setData(input[i] & 0xFF);
+                    if ((input[i] & 0x100) != 0) {
+                        ioctrls[i].setReady();
+                    }
+                }
+            }
+        }
+
+        private void start() {
+            engine.setRunState(true);
+            for (int addr = 0; addr < shadow.length; addr++) {
+                shadow[addr] = memory.getValue(addr);
+            }
+            for (int i = 0; i < ioregs.length; i++) {
+                ioshadow[i] = ioregs[i].getValue();
+            }
+        }
+
+        private void execute() {
+            long start = engine.getTickCount();
+
+            check(engine.runUntil(BOUNDARY, TICK_LIMIT));
+            ticks = engine.getTickCount() - start;
+        }
+
+        private boolean running() {
+            return engine.getProgramState(State.P) == 1;
+        }
+
+        /**
+         * Addresses written by last instruction, shadow copy is updated
+         */
+        private List<Long> writes() {
+            List<Long> writes = new ArrayList<>(2);
+
+            for (int addr = 0; addr < shadow.length; addr++) {
+                long value = memory.getValue(addr);
+
+                if (value != shadow[addr]) {
+                    shadow[addr] = value;
+                    writes.add((long) addr);
+                }
+            }
+
+            return writes;
+        }
+
+        private List<Integer> ioevents() {
+            List<Integer> events = new ArrayList<>(2);
+
+            for (int i = 0; i < ioregs.length; i++) {
+                long value = ioregs[i].getValue();
+
+                if (value != ioshadow[i]) {
+                    ioshadow[i] = value;
+                    events.add(i);
+                }
+            }
+
+            return events;
+        }
+
+        private String ioreg(int index) {
+            IOCtrl[] ioctrls = bcomp.getIOCtrls();
+
+            for (int i = 0; i < ioctrls.length; i++) {
+                int length = ioctrls[i].getRegisters().length;
+
+                if (index < length) {
+                    return "ВУ" + i + "[" + index + "]";
+                }
+                index -= length;
+            }
+
+            return "ВУ?";
+        }
+
+        private StringBuilder appendState(StringBuilder sb) {
+            for (Reg reg : COMPARED) {
+                sb.append(' ').append(reg.name()).append('=').append(toHex(engine.getRegValue(reg), engine.getRegWidth(reg)));
+            }
+            sb.append(" PS=").append(toHex(engine.getRegValue(Reg.PS), engine.getRegWidth(Reg.PS)));
+            return sb.append(" тактов=").append(ticks);
+        }
+    }
+
+    private class Pair {
+        private final Machine ref;
+        private final Machine cand;
+        private final long addrWidth;
+        private final long[] context = new long[CONTEXT];
+        private long executed;
+
+        private Pair() throws Exception {
+            ref = new Machine(reference);
+            try {
+                cand = new Machine(tested);
+            } catch (Exception e) {
+                ref.bcomp.getCPU().stopCPU();
+                throw e;
+            }
+            addrWidth = ref.memory.getAddrWidth();
+
+            if (cand.shadow.length != ref.shadow.length || cand.ioregs.length != ref.ioregs.length) {
+                done();
+                throw new RuntimeException("Конфигурации машин различаются");
+            }
+        }
+
+        private void done() {
+            ref.bcomp.getCPU().stopCPU();
+            cand.bcomp.getCPU().stopCPU();
+        }
+
+        private String run(ProgramBinary program, long limit) {
+            for (Machine m : new Machine[]{ref, cand}) {
+                m.resetIO();
+                m.bcomp.loadProgram(program);
+                m.engine.setRegValue(Reg.PS, m.engine.getRegValue(Reg.PS) & ~PS_MASK);
+            }
+
+            return lockstep("программа", limit);
+        }
+
+        private String runRandom(long seed, long limit) {
+            Random rnd = new Random(seed);
+            long[] memory = new long[ref.shadow.length];
+            long[] regs = new long[RANDOM.length + 1];
+            long[] input = new long[ref.bcomp.getIOCtrls().length];
+            long flags = 0;
+
+            for (int i = 0; i < memory.length; i++) {
+                memory[i] = rnd.nextInt(0x10000);
+            }
+            for (int i = 0; i < RANDOM.length; i++) {
+                regs[i] = rnd.nextInt(0x10000);
+            }
+            regs[RANDOM.length] = rnd.nextInt(memory.length);
+            for (State flag : FLAGS) {
+                flags |= (long) rnd.nextInt(2) << flag.ordinal();
+            }
+            // Data and ready flag
+            for (int i = 0; i < input.length; i++) {
+                input[i] = rnd.nextInt(0x200);
+            }
+
+            ref.setState(memory, regs, flags, input);
+            cand.setState(memory, regs, flags, input);
+            return lockstep("seed " + seed, limit);
+        }
+
+        private String lockstep(String name, long limit) {
+            executed = 0;
+            ref.start();
+            cand.start();
+            runs.incrementAndGet();
+
+            for (long n = 0; n < limit; n++) {
+                long addr = ref.engine.getRegValue(Reg.IP);
+                long word = ref.memory.getValue(addr);
+
+                ref.execute();
+                if (ref.ticks >= TICK_LIMIT || ref.engine.getProgramState(State.PS0) != 0) {
+                    skipped.incrementAndGet();
+                    return null;
+                }
+
+                cand.execute();
+                instructions.incrementAndGet();
+
+                String diff = compare();
+                if (diff != null) {
+                    return report(name, n, addr, word, diff);
+                }
+
+                context[(int) (executed++ % CONTEXT)] = addr << 16 | word;
+
+                if (!ref.running()) {
+                    break;
+                }
+            }
+
+            return null;
+        }
+
+        private String compare() {
+            StringBuilder sb = new StringBuilder();
+
+            for (Reg reg : COMPARED) {
+                long r = ref.engine.getRegValue(reg);
+                long c = cand.engine.getRegValue(reg);
+
+                if (r != c) {
+                    sb.append(' ').append(reg.name()).append('=').append(toHex(c, ref.engine.getRegWidth(reg)))
+                            .append(" вместо ").append(toHex(r, ref.engine.getRegWidth(reg)));
+                }
+            }
+
+            for (State state : State.values()) {
+                long r = ref.engine.getProgramState(state);
+                long c = cand.engine.getProgramState(state);
+
+                if (r != c) {
+                    sb.append(' ').append(state.name()).append('=').append(c).append(" вместо ").append(r);
+                }
+            }
+
+            List<Long> rw = ref.writes();
+            List<Long> cw = cand.writes();
+            for (long addr : cw) {
+                if (!rw.contains(addr) || ref.memory.getValue(addr) != cand.memory.getValue(addr)) {
+                    sb.append(" запись ").append(toHex(addr, addrWidth)).append('=')
+                            .append(toHex(cand.memory.getValue(addr), 16))
+                            .append(" вместо ").append(toHex(ref.memory.getValue(addr), 16));
+                }
+            }
+            for (long addr : rw) {
+                if (!cw.contains(addr)) {
+                    sb.append(" нет записи ").append(toHex(addr, addrWidth)).append('=')
+                            .append(toHex(ref.memory.getValue(addr), 16));
+                }
+            }
+
+            List<Integer> rio = ref.ioevents();
+            List<Integer> cio = cand.ioevents();
+            for (int i = 0; i < ref.ioregs.length; i++) {
+                if (rio.contains(i) || cio.contains(i)) {
+                    long r = ref.ioregs[i].getValue();
+                    long c = cand.ioregs[i].getValue();
+
+                    if (r != c) {
+                        sb.append(' ').append(ref.ioreg(i)).append('=').append(toHex(c, ref.ioregs[i].width))
+                                .append(" вместо ").append(toHex(r, ref.ioregs[i].width));
+                    }
+                }
+            }
+
+            if (cand.ticks >= TICK_LIMIT) {
+                sb.append(" зацикливание");
+            } else if (compareTicks && cand.ticks != ref.ticks) {
+                sb.append(" тактов ").append(cand.ticks).append(" вместо ").append(ref.ticks);
+            }
+
+            return sb.length() == 0 ? null : sb.toString();
+        }
+
+        private String report(String name, long n, long addr, long word, String diff) {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append(name).append(", команда ").append(n).append(' ').append(toHex(word, 16))
+                    .append(" по адресу ").append(toHex(addr, addrWidth)).append(':').append(diff);
+
+            for (long i = Math.max(executed - CONTEXT, 0); i < executed; i++) {
+                long prev = context[(int) (i % CONTEXT)];
+
+                sb.append("\n  ").append(toHex(prev >> 16, addrWidth)).append(": ").append(toHex(prev & 0xFFFF, 16));
+            }
+
+            ref.appendState(sb.append("\nЭталон:")).append('\n');
+            cand.appendState(sb.append("Проверяемая:"));
+            return sb.toString();
+        }
+    }
+}
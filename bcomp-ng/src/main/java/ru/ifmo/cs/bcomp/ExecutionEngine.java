@@ -0,0 +1,99 @@
+/*
+ * $Id$
+ */
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.BinaryImage;
+import ru.ifmo.cs.components.Memory;
+
+import java.util.function.Predicate;
+
+/**
+ * Execution engine of basic computer
+ * <p>
+ * Machine state, execution and console (control panel) operations independent
+ * of the way instructions are executed. CPU is the reference engine simulating
+ * valves and buses. Operations returning boolean fail with false while
+ * program is running.
+ */
+public interface ExecutionEngine {
+
+    public MachineConfig getConfig();
+
+    // State
+
+    public long getRegValue(Reg reg);
+
+    public long getRegWidth(Reg reg);
+
+    /**
+     * Registers other than IR should be changed only when program is not running
+     */
+    public void setRegValue(Reg reg, long value);
+
+    public long getProgramState(State state);
+
+    public Memory getMemory();
+
+    /**
+     * Number of executed ticks (microcommands)
+     */
+    public long getTickCount();
+
+    // Execution in calling thread
+
+    /**
+     * Execute specified number of ticks like running program does, but even
+     * when program is stopped and without CPU start and stop listeners
+     */
+    public boolean step(long ticks);
+
+    /**
+     * Continue program until it stops, stop condition becomes true before
+     * instruction fetch or limit of ticks is reached
+     *
+     * @param stop  stop condition, null - run until program stops
+     * @param limit maximum number of ticks
+     */
+    public boolean runUntil(Predicate<ExecutionEngine> stop, long limit);
+
+    // Console
+
+    public boolean isLocked();
+
+    public boolean startSetAddr();
+
+    public boolean startWrite();
+
+    public boolean startRead();
+
+    public boolean startStart();
+
+    public boolean startContinue();
+
+    public boolean executeSetAddr(long value);
+
+    public boolean executeWrite(long value);
+
+    public boolean executeRead();
+
+    public boolean executeStart();
+
+    public boolean executeContinue();
+
+    public boolean executeLoad(BinaryImage image);
+
+    public void setRunState(boolean state);
+
+    public void invertRunState();
+
+    public boolean getClockState();
+
+    public void setClockState(boolean clock);
+
+    public boolean invertClockState();
+
+    public void setCPUStartListener(Runnable cpuStartListener);
+
+    public void setCPUStopListener(Runnable cpuStopListener);
+}
@@ -94,9 +94,12 @@ public class IOCtrlAdv extends IOCtrl {
 
     @Override
     public String toString() {
-        return "DR0 = " + registers[0]
-                + " DR1 = " + registers[1]
-                + " State = " + registers[2]
-                + " Control = " + registers[3];
+        StringBuilder sb = new StringBuilder(48);
+
+        registers[0].appendTo(sb.append("DR0 = "));
+        registers[1].appendTo(sb.append(" DR1 = "));
+        registers[2].appendTo(sb.append(" State = "));
+        registers[3].appendTo(sb.append(" Control = "));
+        return sb.toString();
     }
 }
@@ -122,8 +122,11 @@ public class IOCtrlBasic extends IOCtrl {
 
     @Override
     public String toString() {
-        return "IRQ = " + irqreg
-                + " State = " + state
-                + " Data = " + dr;
+        StringBuilder sb = new StringBuilder(32);
+
+        irqreg.appendTo(sb.append("IRQ = "));
+        state.appendTo(sb.append(" State = "));
+        dr.appendTo(sb.append(" Data = "));
+        return sb.toString();
     }
 }
@@ -0,0 +1,271 @@
+/*
+ * $Id$
+ */
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.*;
+
+/**
+ * Controller with direct memory access
+ * <p>
+ * Registers: 0, 1 - memory address (low, high), 2, 3 - word count (low, high),
+ * 4 - state (bit 0 - busy, bit 1 - device buffer exhausted, bit 6 - ready),
+ * 5 - control (bits 0-2 - interrupt vector, bit 3 - interrupt enable,
+ * bit 4 - direction: 0 - device to memory, 1 - memory to device, bit 7 - start).
+ * <p>
+ * Writing control with start bit launches block transfer between device buffer
+ * and memory. One word is transferred every CPU tick (microcommand), so transfer
+ * proceeds only while CPU is running. Address and count registers are updated
+ * during transfer. On completion ready bit is set and interrupt requested.
+ * Addresses of memory words written by controller are passed to destinations
+ * added by addMemoryWriteDestination().
+ */
+public class IOCtrlDMA extends IOCtrl {
+
+    public final int BUSYBIT = 0;
+    public final int EXHAUSTEDBIT = 1;
+    public final int DIRECTIONBIT = 4;
+    public final int STARTBIT = 7;
+
+    private final int ADDRL = 0;
+    private final int ADDRH = 1;
+    private final int COUNTL = 2;
+    private final int COUNTH = 3;
+    private final int STATE = 4;
+    private final int CONTROL = 5;
+
+    private final Register[] registers = {
+            new Register(8),
+            new Register(8),
+            new Register(8),
+            new Register(8),
+            new Register(8),
+            new Register(8),};
+    private final Control writeToRegister[] = new Control[registers.length];
+    private final DataDestination irqsc;
+    private final Control written;
+    private final Memory mem;
+    private final long addrmask;
+
+    private long[] buffer;
+    private int length = 0;
+    private int position = 0;
+
+    public IOCtrlDMA(long addr, CPU cpu, int size, DataDestination... chainctrl) {
+        super(addr, 3, cpu);
+
+        mem = cpu.getMemory();
+        addrmask = BasicComponent.calculateMask(mem.getAddrWidth());
+        buffer = new long[size];
+        written = new Control(mem.getAddrWidth(), 0, 0);
+
+        And reqirq = new And(registers[STATE], READYBIT, registers[CONTROL], 3);
+        cpu.addIRQReqInput(reqirq);
+
+        irqsc = new Valve(reqirq, 1, 0, 0,
+                new Valve(registers[CONTROL], 3, 0, 0, ioaddr),
+                new Valve(Consts.consts[1], 1, 0, 0, new PartWriter(ioctrl, 1, IOControlSignal.IRQ.ordinal())),
+                new Not(0, chainctrl)
+        );
+
+        Valve rdy = new Valve(Consts.consts[1], 1, 0, 0, new PartWriter(ioctrl, 1, IOControlSignal.RDY.ordinal()));
+
+        for (int i = 0; i < registers.length; i++) {
+            checkRegister(
+                    new Valve(ioctrl, 8, 0, i,
+                            // Input
+                            new Valve(Consts.consts[1], 1, 0, IOControlSignal.IN.ordinal(),
+                                    new Valve(registers[i], 8, 0, 0, iodata),
+                                    rdy
+                            ),
+                            // Output
+                            new Valve(Consts.consts[1], 1, 0, IOControlSignal.OUT.ordinal(),
+                                    writeToRegister[i] = new Valve(iodata, 8, 0, 0, registers[i]),
+                                    rdy
+                            )
+                    )
+            );
+        }
+
+        writeToRegister[STATE].addDestination(cpu.getIRQReqValve());
+        writeToRegister[CONTROL].addDestination(new DataDestination() {
+            @Override
+            public void setValue(long value) {
+                if (((value >> STARTBIT) & 1L) == 1L)
+                    start();
+            }
+        }, cpu.getIRQReqValve());
+
+        // Transfer one word every tick
+        cpu.addDestination(ControlSignal.CLOCK0, new DataDestination() {
+            @Override
+            public void setValue(long value) {
+                if (isBusy())
+                    transfer();
+            }
+        });
+    }
+
+    private synchronized void start() {
+        registers[CONTROL].setValue(0, 1, STARTBIT);
+        registers[STATE].setValue(0, 1, READYBIT);
+        registers[STATE].setValue(0, 1, EXHAUSTEDBIT);
+        registers[STATE].setValue(1, 1, BUSYBIT);
+    }
+
+    private synchronized void transfer() {
+        if (registers[STATE].getValue(BUSYBIT) == 0)
+            return;
+
+        long count = getWord(COUNTL);
+
+        if (count == 0) {
+            finish(false);
+            return;
+        }
+
+        long addr = getWord(ADDRL) & addrmask;
+
+        if (registers[CONTROL].getValue(DIRECTIONBIT) == 0) {
+            if (position >= length) {
+                finish(true);
+                return;
+            }
+
+            mem.setValue(addr, buffer[position++]);
+            written.setValue(addr);
+        } else {
+            if (position >= buffer.length) {
+                finish(true);
+                return;
+            }
+
+            buffer[position++] = mem.getValue(addr);
+            length = Math.max(length, position);
+        }
+
+        setWord(ADDRL, addr + 1);
+        setWord(COUNTL, count - 1);
+    }
+
+    private void finish(boolean exhausted) {
+        registers[STATE].setValue(0, 1, BUSYBIT);
+        registers[STATE].setValue(exhausted ? 1 : 0, 1, EXHAUSTEDBIT);
+        setReady();
+    }
+
+    private long getWord(int reg) {
+        return (registers[reg + 1].getValue() << 8) | registers[reg].getValue();
+    }
+
+    private void setWord(int reg, long value) {
+        registers[reg].setValue(value);
+        registers[reg + 1].setValue(value >> 8);
+    }
+
+    /**
+     * Replace device buffer contents and rewind it
+     */
+    public synchronized void setBuffer(long[] words) {
+        if (words.length > buffer.length)
+            buffer = new long[words.length];
+
+        System.arraycopy(words, 0, buffer, 0, words.length);
+        length = words.length;
+        position = 0;
+    }
+
+    /**
+     * Return words stored in device buffer
+     */
+    public synchronized long[] getBuffer() {
+        long[] words = new long[length];
+
+        System.arraycopy(buffer, 0, words, 0, length);
+        return words;
+    }
+
+    /**
+     * Rewind device buffer, for output also discard its contents
+     */
+    public synchronized void rewind() {
+        if (registers[CONTROL].getValue(DIRECTIONBIT) == 1)
+            length = 0;
+        position = 0;
+    }
+
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    /**
+     * Restore device buffer contents and position, used by snapshots
+     */
+    synchronized void restoreBuffer(long[] words, int position) {
+        setBuffer(words);
+        this.position = position;
+    }
+
+    public void addMemoryWriteDestination(DataDestination... dsts) {
+        written.addDestination(dsts);
+    }
+
+    public void removeMemoryWriteDestination(DataDestination dst) {
+        written.removeDestination(dst);
+    }
+
+    public boolean isBusy() {
+        return registers[STATE].getValue(BUSYBIT) == 1;
+    }
+
+    @Override
+    public boolean isReady() {
+        return registers[STATE].getValue(READYBIT) == 1;
+    }
+
+    @Override
+    public void setReady() {
+        registers[STATE].setValue(1, 1, READYBIT);
+        updateStateIRQ();
+    }
+
+    @Override
+    public DataDestination getIRQSC() {
+        return irqsc;
+    }
+
+    @Override
+    public Register[] getRegisters() {
+        return registers;
+    }
+
+    @Override
+    public void addDestination(int reg, DataDestination... dsts) {
+        writeToRegister[reg].addDestination(dsts);
+    }
+
+    @Override
+    public synchronized long getData() {
+        return position < length ? buffer[position] : 0;
+    }
+
+    @Override
+    public synchronized void setData(long value) {
+        if (position < buffer.length) {
+            buffer[position] = value & 0xFFFF;
+            length = Math.max(length, position + 1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(80);
+
+        sb.append("Address = ").append(Utils.toHex(getWord(ADDRL), 16));
+        sb.append(" Count = ").append(Utils.toHex(getWord(COUNTL), 16));
+        registers[STATE].appendTo(sb.append(" State = "));
+        registers[CONTROL].appendTo(sb.append(" Control = "));
+        sb.append(" Buffer = ").append(position).append('/').append(length);
+        return sb.toString();
+    }
+}
@@ -14,6 +14,7 @@ public class IODevTimer {
     private final Register dr;
     private Thread timer;
     private volatile boolean running = true;
+    private volatile long countdown = 0;
 
     public IODevTimer(IOCtrl ctrl) {
         this.ctrl = (IOCtrlBasic) ctrl;
@@ -24,7 +25,6 @@ public class IODevTimer {
         timer = new Thread(new Runnable() {
             @Override
             public void run() {
-                long countdown = 0;
                 long value;
 
                 while (running) {
@@ -51,6 +51,14 @@ public class IODevTimer {
         timer.start();
     }
 
+    long getCountdown() {
+        return countdown;
+    }
+
+    void setCountdown(long countdown) {
+        this.countdown = countdown;
+    }
+
     public void done() {
         running = false;
 
@@ -0,0 +1,222 @@
+/*
+ * $Id$
+ */
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.DataDestination;
+import ru.ifmo.cs.components.Register;
+
+/**
+ * Detector of idle loops
+ * <p>
+ * State of processor is remembered at start of instruction after backward jump.
+ * When the same instruction is reached again with the same registers, the same
+ * registers of controllers and without writes to memory, the program will
+ * repeat this loop until something outside of processor changes: controller
+ * register, input register, memory word read by the loop, run state. Such wait
+ * loops (IN 1; AND #0x40; BEQ loop) are not executed, processor waits for
+ * change instead.
+ * <p>
+ * Skipped ticks are added to tick counter when duration of tick is set,
+ * as many whole loop iterations as would fit into waiting time.
+ * Idle listener is called before waiting, so test harness running in virtual
+ * time can deliver next event right there.
+ */
+public class IdleLoopDetector {
+    private static final Reg[] STATE_REGS = {Reg.AC, Reg.BR, Reg.DR, Reg.CR, Reg.AR, Reg.SP, Reg.PS, Reg.IR};
+    // Longer loops are not checked
+    private static final long MAX_LOOP_TICKS = 1000;
+    private static final int MAX_LOADS = 32;
+    private static final long POLL_TIME = 10;
+
+    private final CPU cpu;
+    private final Register ip;
+    private final Register ar;
+    private final Register[] regs;
+    private final Register[] ioregs;
+    private final DataDestination storeListener;
+    private final DataDestination loadListener;
+    private volatile boolean running = true;
+    private volatile long tickNanos = 0;
+    private volatile Runnable idleListener = null;
+
+    private final long[] loopRegs;
+    private final long[] loopIORegs;
+    private final long[] loads = new long[MAX_LOADS];
+    private final long[] loadValues = new long[MAX_LOADS];
+    private int nloads;
+    private boolean loopStarted = false;
+    private long loopIP;
+    private long loopTicks;
+    private long loopStores;
+    private long lastIP = -1;
+    private volatile long stores = 0;
+
+    private long idleCount = 0;
+    private long skippedTicks = 0;
+
+    public IdleLoopDetector(CPU cpu, IOCtrl[] ioctrls) {
+        this.cpu = cpu;
+        ip = cpu.getRegister(Reg.IP);
+        ar = cpu.getRegister(Reg.AR);
+
+        regs = new Register[STATE_REGS.length];
+        for (int i = 0; i < regs.length; i++)
+            regs[i] = cpu.getRegister(STATE_REGS[i]);
+
+        int count = 0;
+        for (IOCtrl ioctrl : ioctrls)
+            count += ioctrl.getRegisters().length;
+        ioregs = new Register[count];
+        count = 0;
+        for (IOCtrl ioctrl : ioctrls)
+            for (Register reg : ioctrl.getRegisters())
+                ioregs[count++] = reg;
+
+        loopRegs = new long[regs.length];
+        loopIORegs = new long[ioregs.length];
+
+        storeListener = new DataDestination() {
+            @Override
+            public void setValue(long value) {
+                stores++;
+            }
+        };
+
+        loadListener = new DataDestination() {
+            @Override
+            public void setValue(long value) {
+                if (nloads < MAX_LOADS)
+                    loads[nloads] = ar.getValue();
+                nloads++;
+            }
+        };
+
+        cpu.tickLock();
+        try {
+            cpu.addDestination(ControlSignal.STOR, storeListener);
+            cpu.addDestination(ControlSignal.LOAD, loadListener);
+        } finally {
+            cpu.tickUnlock();
+        }
+    }
+
+    /**
+     * Duration of tick in nanoseconds for accounting skipped ticks, 0 - don't account
+     */
+    public void setTickNanos(long tickNanos) {
+        this.tickNanos = tickNanos;
+    }
+
+    public void setIdleListener(Runnable idleListener) {
+        this.idleListener = idleListener;
+    }
+
+    public long getIdleCount() {
+        return idleCount;
+    }
+
+    public long getSkippedTicks() {
+        return skippedTicks;
+    }
+
+    /**
+     * Resume waiting processor to check for changes immediately
+     */
+    public synchronized void wakeup() {
+        notifyAll();
+    }
+
+    public void done() {
+        running = false;
+        wakeup();
+
+        cpu.tickLock();
+        try {
+            cpu.removeDestination(ControlSignal.STOR, storeListener);
+            cpu.removeDestination(ControlSignal.LOAD, loadListener);
+        } finally {
+            cpu.tickUnlock();
+        }
+    }
+
+    /**
+     * Called by processor thread before instruction fetch
+     */
+    void checkInstruction() throws InterruptedException {
+        long addr = ip.getValue();
+
+        if (loopStarted && addr == loopIP) {
+            long length = cpu.getTickCount() - loopTicks;
+
+            if (stores == loopStores && nloads <= MAX_LOADS && length <= MAX_LOOP_TICKS && sameState())
+                idle(length);
+
+            startLoop(addr);
+        } else if (addr <= lastIP) {
+            startLoop(addr);
+        }
+
+        lastIP = addr;
+    }
+
+    private void startLoop(long addr) {
+        loopStarted = true;
+        loopIP = addr;
+        loopTicks = cpu.getTickCount();
+        loopStores = stores;
+        nloads = 0;
+
+        for (int i = 0; i < regs.length; i++)
+            loopRegs[i] = regs[i].getValue();
+        for (int i = 0; i < ioregs.length; i++)
+            loopIORegs[i] = ioregs[i].getValue();
+    }
+
+    private boolean sameState() {
+        for (int i = 0; i < regs.length; i++)
+            if (loopRegs[i] != regs[i].getValue())
+                return false;
+
+        for (int i = 0; i < ioregs.length; i++)
+            if (loopIORegs[i] != ioregs[i].getValue())
+                return false;
+
+        return true;
+    }
+
+    private boolean sameMemory() {
+        for (int i = 0; i < nloads; i++)
+            if (loadValues[i] != cpu.getMemory().getValue(loads[i]))
+                return false;
+
+        return true;
+    }
+
+    private void idle(long length) throws InterruptedException {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < nloads; i++)
+            loadValues[i] = cpu.getMemory().getValue(loads[i]);
+
+        idleCount++;
+
+        Runnable listener = idleListener;
+        if (listener != null)
+            listener.run();
+
+        synchronized (this) {
+            while (running && sameState() && sameMemory())
+                wait(POLL_TIME);
+        }
+
+        long nanos = tickNanos;
+        if (nanos > 0) {
+            long skipped = (System.nanoTime() - start) / nanos;
+
+            skipped -= skipped % length;
+            cpu.addTicks(skipped);
+            skippedTicks += skipped;
+        }
+    }
+}
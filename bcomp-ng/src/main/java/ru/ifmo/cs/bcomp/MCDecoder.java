@@ -7,6 +7,7 @@ package ru.ifmo.cs.bcomp;
 import java.util.ArrayList;
 
 import static ru.ifmo.cs.bcomp.ControlSignal.*;
+import static ru.ifmo.cs.components.Utils.appendHex;
 import static ru.ifmo.cs.components.Utils.toHex;
 
 /**
@@ -17,13 +18,20 @@ public class MCDecoder {
     private static ControlSignal[] LEFT = {RDAC, RDBR, RDPS, RDIR};
     private static ControlSignal[] RIGHT = {RDDR, RDCR, RDIP, RDSP};
 
+    /**
+     * Decoded microcommand from microcode table
+     * Returned array is shared and should not be modified
+     */
     public final static String[] decodeMC(CPU cpu, long addr) {
-        MicroCode mc = cpu.getMicroCodeSource();
+        return cpu.getMicroCodeTable().getDecoded((int) addr);
+    }
+
+    static String[] decodeMC(CPU cpu, String label, long cmd) {
+        MicroProgramImage image = cpu.getMicroProgram();
         String[] res = new String[3];
         ArrayList<ControlSignal> cs = new ArrayList<ControlSignal>();
-        long cmd = cpu.getMicroCode().getValue(addr);
 
-        res[0] = mc.getLabel((int) addr);
+        res[0] = label;
         res[1] = toHex(cmd, 40);
 
         for (int i = 0; i < 16; i++)
@@ -36,27 +44,39 @@ public class MCDecoder {
                     cs.add(signals[i]);
 
             res[2] = decodeOMC(cs);
-        } else
-            res[2] = decodeCMC(mc, cs, (cmd >> 16) & 0xff, (cmd >> 24) & 0xff, (cmd >> 32) & 1);
+        } else {
+            long mpWidth = cpu.getConfig().mpWidth;
+
+            res[2] = decodeCMC(image, cs, (cmd >> 16) & 0xff, (cmd >> 24) & ((1L << mpWidth) - 1),
+                    (cmd >> (24 + mpWidth)) & 1, mpWidth);
+        }
 
         return res;
     }
 
     public static String getFormattedMC(CPU cpu, long addr) {
+        return appendFormattedMC(new StringBuilder(80), cpu, addr).toString();
+    }
+
+    public static StringBuilder appendFormattedMC(StringBuilder sb, CPU cpu, long addr) {
         String[] decoded = MCDecoder.decodeMC(cpu, addr);
 
-        return
-                toHex(addr, 8) + " " +
-                        decoded[1] + "\t" +
-                        (decoded[0] == null ? "\t\t" : decoded[0] + (decoded[0].length() > 7 ? "\t" : "\t\t")) +
-                        (decoded[2] == null ? "No operations" : decoded[2]);
+        appendHex(sb, addr, cpu.getConfig().mpWidth).append(' ');
+        appendHex(sb, cpu.getMicroCode().getValue(addr), 40).append('\t');
+
+        if (decoded[0] == null)
+            sb.append("\t\t");
+        else
+            sb.append(decoded[0]).append(decoded[0].length() > 7 ? "\t" : "\t\t");
+
+        return sb.append(decoded[2] == null ? "No operations" : decoded[2]);
     }
 
-    private static String decodeCMC(MicroCode mc, ArrayList<ControlSignal> cs, long checkbit, long addr, long expected) {
-        String label = mc.getLabel((int) addr);
+    private static String decodeCMC(MicroProgramImage image, ArrayList<ControlSignal> cs, long checkbit, long addr, long expected, long mpWidth) {
+        String label = image.getLabel((int) addr);
         String aluOutput = getAluOutput(cs);
         String bit = null;
-        String to = (label == null ? "" : label + " @ ") + toHex(addr, 8);
+        String to = (label == null ? "" : label + " @ ") + toHex(addr, mpWidth);
         int i;
 
         for (i = 0; i < 8; i++, checkbit >>= 1)
@@ -168,6 +188,9 @@ public class MCDecoder {
     private static String getSwOutput(ArrayList<ControlSignal> cs) {
         String alu = getAluOutput(cs);
 
+        if (cs.contains(HTOA))
+            return "ADDR(" + alu + ")";
+
         if (cs.contains(HTOH)) {
             if (cs.contains(LTOL))
                 return alu;
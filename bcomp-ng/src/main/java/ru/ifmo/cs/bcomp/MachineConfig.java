@@ -0,0 +1,94 @@
+/*
+ * $Id$
+ */
+package ru.ifmo.cs.bcomp;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Basic computer widths configuration
+ * <p>
+ * Data and IO widths are fixed by instruction set. Address width selects size of
+ * main memory (IP, SP and AR width), microcommand pointer width selects size of
+ * microcode memory. Direct absolute addressing always uses 11 bits of instruction,
+ * the rest of memory is reachable by relative, indirect and stack addressing.
+ * <p>
+ * Main memory is kept either in Java heap or off-heap in packed 16-bit words.
+ * Off-heap memory may share read-only image of lower addresses with other machines.
+ * <p>
+ * Controller with direct memory access is connected only when size of its
+ * device buffer is set.
+ */
+public class MachineConfig {
+    public enum MemoryType {
+        HEAP,
+        DIRECT
+    }
+
+    public static final long DATA_WIDTH = 16;
+    public static final long IO_WIDTH = 8;
+    public static final long ADDR_FIELD_WIDTH = 11;
+    public static final long MAX_ADDR_WIDTH = DATA_WIDTH;
+    // Microcommand address and expected bit should fit into control microcommand
+    public static final long MAX_MP_WIDTH = ControlSignal.TYPE.ordinal() - 25;
+
+    /**
+     * Classic basic computer: 2048 words of memory and 256 microcommands
+     */
+    public static final MachineConfig CLASSIC = new MachineConfig(ADDR_FIELD_WIDTH, 8);
+
+    public final long addrWidth;
+    public final long mpWidth;
+    public final MemoryType memoryType;
+    public final ShortBuffer image;
+    /**
+     * Device buffer size of DMA controller in words, 0 - no DMA controller
+     */
+    public final int dmaBuffer;
+
+    public MachineConfig(long addrWidth, long mpWidth) {
+        this(addrWidth, mpWidth, MemoryType.HEAP, null);
+    }
+
+    public MachineConfig(long addrWidth, long mpWidth, MemoryType memoryType, ShortBuffer image) {
+        this(addrWidth, mpWidth, memoryType, image, 0);
+    }
+
+    /**
+     * @param image     shared read-only image of main memory, requires DIRECT memory type
+     * @param dmaBuffer device buffer size of DMA controller, 0 - no DMA controller
+     */
+    public MachineConfig(long addrWidth, long mpWidth, MemoryType memoryType, ShortBuffer image, int dmaBuffer) {
+        if (addrWidth < ADDR_FIELD_WIDTH || addrWidth > MAX_ADDR_WIDTH) {
+            throw new RuntimeException("Разрядность адреса должна быть от " + ADDR_FIELD_WIDTH + " до " + MAX_ADDR_WIDTH);
+        }
+        if (mpWidth < 8 || mpWidth > MAX_MP_WIDTH) {
+            throw new RuntimeException("Разрядность СчМК должна быть от 8 до " + MAX_MP_WIDTH);
+        }
+        if (image != null && memoryType != MemoryType.DIRECT) {
+            throw new RuntimeException("Разделяемый образ памяти возможен только вне кучи");
+        }
+        if (dmaBuffer < 0) {
+            throw new RuntimeException("Размер буфера ВУ с прямым доступом к памяти не может быть отрицательным");
+        }
+
+        this.addrWidth = addrWidth;
+        this.mpWidth = mpWidth;
+        this.memoryType = memoryType;
+        this.image = image;
+        this.dmaBuffer = dmaBuffer;
+    }
+
+    /**
+     * Memory is larger than direct absolute addressing range
+     */
+    public boolean isWideAddress() {
+        return addrWidth > ADDR_FIELD_WIDTH;
+    }
+
+    @Override
+    public String toString() {
+        return "DATA=" + DATA_WIDTH + " AR=" + addrWidth + " MP=" + mpWidth + " IO=" + IO_WIDTH + " " + memoryType +
+                (dmaBuffer > 0 ? " DMA=" + dmaBuffer : "");
+    }
+}
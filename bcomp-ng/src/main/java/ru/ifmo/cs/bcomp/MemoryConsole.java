@@ -0,0 +1,60 @@
+/*
+ * $Id$
+ */
+package ru.ifmo.cs.bcomp;
+
+import java.nio.charset.Charset;
+
+/**
+ * Character console mapped to memory
+ * <p>
+ * Each word of window holds one character in its low byte, rows follow one
+ * after another. Zero and control characters are displayed as spaces.
+ */
+public class MemoryConsole extends MemoryWindow {
+    private final int cols;
+    private final int rows;
+    private final Charset charset;
+
+    public MemoryConsole(BasicComp bcomp, long base, int cols, int rows) {
+        this(bcomp, base, cols, rows, Charset.forName("KOI8-R"));
+    }
+
+    public MemoryConsole(BasicComp bcomp, long base, int cols, int rows, Charset charset) {
+        super(bcomp, base, cols * rows);
+
+        this.cols = cols;
+        this.rows = rows;
+        this.charset = charset;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public StringBuilder appendTo(StringBuilder sb) {
+        long[] frame = getFrame();
+        byte[] line = new byte[cols];
+
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int c = (int) frame[row * cols + col] & 0xFF;
+
+                line[col] = (byte) (c < 0x20 ? ' ' : c);
+            }
+
+            sb.append(new String(line, charset)).append('\n');
+        }
+
+        return sb;
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder(rows * (cols + 1))).toString();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * $Id$
+ */
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.DataDestination;
+import ru.ifmo.cs.components.Memory;
+import ru.ifmo.cs.components.Register;
+
+/**
+ * Memory mapped device window
+ * <p>
+ * Device observes writes to range of memory addresses made by STOR. Writes are
+ * only marked, contents is read and passed to listener at frame rate from
+ * separate thread, so program may update window with plain ST instructions.
+ * Writes of DMA controller are observed too, other writes bypassing CPU
+ * (loading, snapshot restore) should be reported by invalidate().
+ */
+public class MemoryWindow {
+    private final CPU cpu;
+    private final IOCtrlDMA dma;
+    private final Memory mem;
+    private final Register ar;
+    private final long base;
+    private final int size;
+    private final long[] frame;
+    private final DataDestination watcher;
+    private final DataDestination dmaWatcher;
+    private Thread refresher = null;
+    private volatile boolean running = true;
+    private int dirtyFrom;
+    private int dirtyTo = 0;
+
+    public MemoryWindow(BasicComp bcomp, long base, int size) {
+        this.cpu = bcomp.getCPU();
+        this.dma = bcomp.getDMA();
+        this.mem = cpu.getMemory();
+        this.ar = cpu.getRegister(Reg.AR);
+
+        if (base < 0 || size <= 0 || base + size > 1L << mem.getAddrWidth())
+            throw new IllegalArgumentException("Окно выходит за границы памяти");
+
+        this.base = base;
+        this.size = size;
+        this.frame = new long[size];
+        this.dirtyFrom = size;
+
+        watcher = new DataDestination() {
+            @Override
+            public void setValue(long value) {
+                long addr = ar.getValue() - MemoryWindow.this.base;
+
+                if (addr >= 0 && addr < MemoryWindow.this.size)
+                    mark((int) addr, (int) addr + 1);
+            }
+        };
+
+        dmaWatcher = new DataDestination() {
+            @Override
+            public void setValue(long value) {
+                long addr = value - MemoryWindow.this.base;
+
+                if (addr >= 0 && addr < MemoryWindow.this.size)
+                    mark((int) addr, (int) addr + 1);
+            }
+        };
+
+        cpu.tickLock();
+        try {
+            cpu.addDestination(ControlSignal.STOR, watcher);
+            if (dma != null)
+                dma.addMemoryWriteDestination(dmaWatcher);
+        } finally {
+            cpu.tickUnlock();
+        }
+
+        invalidate();
+    }
+
+    private synchronized void mark(int from, int to) {
+        dirtyFrom = Math.min(dirtyFrom, from);
+        dirtyTo = Math.max(dirtyTo, to);
+    }
+
+    /**
+     * Mark whole window as changed
+     */
+    public void invalidate() {
+        mark(0, size);
+    }
+
+    /**
+     * Copy changed part of window to frame
+     *
+     * @return true if window was changed since last refresh
+     */
+    public synchronized boolean refresh() {
+        if (dirtyFrom >= dirtyTo)
+            return false;
+
+        for (int i = dirtyFrom; i < dirtyTo; i++)
+            frame[i] = mem.getValue(base + i);
+
+        dirtyFrom = size;
+        dirtyTo = 0;
+        return true;
+    }
+
+    /**
+     * Start refreshing window at given frame rate, listener is called when frame is changed
+     *
+     * @param fps frames per second, 1..1000
+     */
+    public void start(String name, final int fps, final Runnable listener) {
+        if (fps <= 0 || fps > 1000)
+            throw new IllegalArgumentException("Частота обновления окна должна быть от 1 до 1000");
+
+        refresher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(1000 / fps);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+
+                    if (refresh())
+                        listener.run();
+                }
+            }
+        }, name);
+
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    public void done() {
+        running = false;
+
+        cpu.tickLock();
+        try {
+            cpu.removeDestination(ControlSignal.STOR, watcher);
+            if (dma != null)
+                dma.removeMemoryWriteDestination(dmaWatcher);
+        } finally {
+            cpu.tickUnlock();
+        }
+
+        if (refresher != null) {
+            refresher.interrupt();
+            try {
+                refresher.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    public long getBase() {
+        return base;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Return copy of last refreshed frame
+     */
+    public synchronized long[] getFrame() {
+        return frame.clone();
+    }
+}
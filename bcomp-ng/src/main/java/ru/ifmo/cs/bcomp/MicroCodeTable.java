@@ -0,0 +1,76 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.Memory;
+
+import java.util.EnumMap;
+
+/**
+ * Per microaddress table: running cycle, label and decoded microcommand
+ * <p>
+ * Decoded microcommand is cached together with raw value it was decoded from,
+ * so any write to microcode memory makes cached entry stale.
+ */
+public class MicroCodeTable {
+    private final CPU cpu;
+    private final Memory microcode;
+    private final RunningCycle[] cycles;
+    private final String[] labels;
+    private final String[][] decoded;
+    private final long[] values;
+
+    MicroCodeTable(CPU cpu, MicroProgramImage image, EnumMap<RunningCycle, Integer> starts) {
+        RunningCycle[] all = RunningCycle.values();
+        int length = 1 << cpu.getMicroCode().getAddrWidth();
+
+        this.cpu = cpu;
+        microcode = cpu.getMicroCode();
+        cycles = new RunningCycle[length];
+        labels = new String[length];
+        decoded = new String[length][];
+        values = new long[length];
+
+        for (int addr = 0; addr < length; addr++) {
+            int i;
+
+            for (i = all.length - 1; i > 0; i--) {
+                if (addr >= starts.get(all[i])) {
+                    break;
+                }
+            }
+
+            cycles[addr] = all[i];
+            labels[addr] = image.getLabel(addr);
+        }
+    }
+
+    public RunningCycle getRunningCycle(int addr) {
+        return cycles[addr];
+    }
+
+    public String getLabel(int addr) {
+        return labels[addr];
+    }
+
+    /**
+     * Decoded microcommand: label, hex value and description.
+     * Returned array is shared and should not be modified
+     */
+    public synchronized String[] getDecoded(int addr) {
+        long value = microcode.getValue(addr);
+
+        if (decoded[addr] == null || values[addr] != value) {
+            decoded[addr] = MCDecoder.decodeMC(cpu, labels[addr], value);
+            values[addr] = value;
+        }
+
+        return decoded[addr];
+    }
+
+    synchronized void invalidate(int addr) {
+        decoded[addr] = null;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static ru.ifmo.cs.bcomp.ControlSignal.TYPE;
+
+/**
+ * Microprogram file: source text and binary formats
+ * <p>
+ * Source consists of lines with optional label and one microcommand, comments
+ * start with ';':
+ * <pre>
+ * LABEL: SIGNAL SIGNAL ...                        operating microcommand
+ * LABEL: SIGNAL ... IF bit = value GOTO target    control microcommand
+ * LABEL: WORD hex                                 raw microcommand
+ * </pre>
+ * Control microcommand checks bit 0..7 of byte selected by signals and jumps to
+ * label or hex address when bit equals value. Binary format is big endian: magic,
+ * version, microcommand pointer width, counted lists of microcommands and labels.
+ */
+public class MicroProgramFile {
+    public static final int MAGIC = 0x42434D50; // BCMP
+    public static final int VERSION = 1;
+    private static final long WORD_WIDTH = TYPE.ordinal() + 1;
+    private static final ControlSignal[] signals = ControlSignal.values();
+
+    public final int mpWidth;
+    public final MicroProgramImage image;
+
+    public MicroProgramFile(int mpWidth, MicroProgramImage image) {
+        this.mpWidth = mpWidth;
+        this.image = image;
+    }
+
+    public MicroProgramFile(MicroCode mc) {
+        this((int) mc.getConfig().mpWidth, mc.getImage());
+    }
+
+    /**
+     * Assemble microprogram source
+     */
+    public static MicroProgramFile parse(String source, int mpWidth) throws Exception {
+        String[] lines = source.split("\r?\n");
+        ArrayList<String> labels = new ArrayList<String>();
+        ArrayList<String[]> commands = new ArrayList<String[]>();
+        ArrayList<Integer> lineNumbers = new ArrayList<Integer>();
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+        String label = null;
+
+        for (int n = 0; n < lines.length; n++) {
+            String line = lines[n];
+            int comment = line.indexOf(';');
+
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+
+            int colon = line.indexOf(':');
+            if (colon >= 0) {
+                if (label != null) {
+                    throw new Exception("Строка " + (n + 1) + ": две метки у одной микрокоманды");
+                }
+                label = line.substring(0, colon).trim().toUpperCase();
+                if (label.isEmpty() || label.contains(" ")) {
+                    throw new Exception("Строка " + (n + 1) + ": неверная метка");
+                }
+                if (index.put(label, commands.size()) != null) {
+                    throw new Exception("Строка " + (n + 1) + ": повторная метка " + label);
+                }
+                line = line.substring(colon + 1).trim();
+            }
+
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            labels.add(label);
+            commands.add(line.toUpperCase().split("\\s+"));
+            lineNumbers.add(n + 1);
+            label = null;
+        }
+
+        if (label != null) {
+            throw new Exception("Метка " + label + " в конце микропрограммы");
+        }
+        if (commands.size() > 1 << mpWidth) {
+            throw new Exception("Микропрограмма не помещается в память микрокоманд");
+        }
+
+        long[] words = new long[commands.size()];
+        for (int addr = 0; addr < words.length; addr++) {
+            try {
+                words[addr] = encode(commands.get(addr), index, mpWidth);
+            } catch (Exception e) {
+                throw new Exception("Строка " + lineNumbers.get(addr) + ": " + e.getMessage());
+            }
+        }
+
+        return new MicroProgramFile(mpWidth, new MicroProgramImage(words, labels.toArray(new String[labels.size()])));
+    }
+
+    private static long encode(String[] tokens, HashMap<String, Integer> index, int mpWidth) throws Exception {
+        if (tokens[0].equals("WORD")) {
+            if (tokens.length != 2 || !Utils.isHexNumeric(tokens[1]) || tokens[1].length() > Utils.getHexWidth((int) WORD_WIDTH)) {
+                throw new Exception("WORD требует шестнадцатеричное значение");
+            }
+            return Long.parseLong(tokens[1], 16);
+        }
+
+        long word = 0;
+        int i;
+
+        for (i = 0; i < tokens.length && !tokens[i].equals("IF"); i++) {
+            ControlSignal cs;
+
+            try {
+                cs = ControlSignal.valueOf(tokens[i]);
+            } catch (IllegalArgumentException e) {
+                throw new Exception("неизвестный сигнал " + tokens[i]);
+            }
+            if (cs.ordinal() >= TYPE.ordinal()) {
+                throw new Exception("сигнал " + tokens[i] + " не входит в микрокоманду");
+            }
+            word |= 1L << cs.ordinal();
+        }
+
+        if (i == tokens.length) {
+            return word;
+        }
+
+        // IF bit = value GOTO target
+        if (tokens.length - i != 6 || !tokens[i + 2].equals("=") || !tokens[i + 4].equals("GOTO")) {
+            throw new Exception("ожидается IF бит = значение GOTO метка");
+        }
+        if (word >> 16 != 0) {
+            throw new Exception("управляющая микрокоманда допускает только сигналы 0..15");
+        }
+
+        int bit = Integer.parseInt(tokens[i + 1]);
+        int expected = Integer.parseInt(tokens[i + 3]);
+        if (bit < 0 || bit > 7 || (expected & ~1) != 0) {
+            throw new Exception("неверный бит или значение");
+        }
+
+        Integer target = index.get(tokens[i + 5]);
+        if (target == null) {
+            if (!Utils.isHexNumeric(tokens[i + 5])) {
+                throw new Exception("метка " + tokens[i + 5] + " не найдена");
+            }
+            target = Integer.parseInt(tokens[i + 5], 16);
+        }
+        if (target < 0 || target >= 1 << mpWidth) {
+            throw new Exception("адрес перехода вне памяти микрокоманд");
+        }
+
+        return word | (1L << TYPE.ordinal()) | (1L << (bit + 16)) | ((long) target << 24) |
+                ((long) expected << (24 + mpWidth));
+    }
+
+    /**
+     * Microprogram source, parse() of result gives the same image
+     */
+    public String toSource() {
+        StringBuilder sb = new StringBuilder(image.getLength() * 48);
+
+        for (int addr = 0; addr < image.getLength(); addr++) {
+            String label = image.getLabel(addr);
+
+            if (label != null) {
+                sb.append(label).append(':');
+            }
+            for (int pad = label != null ? label.length() + 1 : 0; pad < 12; pad++) {
+                sb.append(' ');
+            }
+            appendCommand(sb, image.getWord(addr)).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private StringBuilder appendCommand(StringBuilder sb, long word) {
+        long type = 1L << TYPE.ordinal();
+
+        if ((word & type) == 0) {
+            if (word == 0) {
+                return sb.append("WORD 0");
+            }
+            appendSignals(sb, word, TYPE.ordinal()).setLength(sb.length() - 1);
+            return sb;
+        }
+
+        int checkbits = (int) (word >> 16) & 0xFF;
+        long target = (word >> 24) & ((1L << mpWidth) - 1);
+        long expected = (word >> (24 + mpWidth)) & 1;
+        long rest = (word & ~type) >> (25 + mpWidth);
+
+        if (Integer.bitCount(checkbits) != 1 || rest != 0) {
+            return Utils.appendHex(sb.append("WORD "), word, WORD_WIDTH);
+        }
+
+        appendSignals(sb, word, 16).append("IF ").append(Integer.numberOfTrailingZeros(checkbits))
+                .append(" = ").append(expected).append(" GOTO ");
+        String label = image.getLabel((int) target);
+        return label != null ? sb.append(label) : Utils.appendHex(sb, target, mpWidth);
+    }
+
+    private static StringBuilder appendSignals(StringBuilder sb, long word, int count) {
+        for (int i = 0; i < count; i++) {
+            if ((word & (1L << i)) != 0) {
+                sb.append(signals[i].name()).append(' ');
+            }
+        }
+        return sb;
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(mpWidth);
+
+        out.writeInt(image.getLength());
+        for (int addr = 0; addr < image.getLength(); addr++) {
+            out.writeLong(image.getWord(addr));
+        }
+
+        out.writeInt(image.getLabels().size());
+        for (int addr = 0; addr < image.getLength(); addr++) {
+            String label = image.getLabel(addr);
+
+            if (label != null) {
+                byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(addr);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        out.flush();
+    }
+
+    public static MicroProgramFile read(ByteBuffer buf) {
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new RuntimeException("Неверный формат файла микропрограммы");
+            }
+            if (buf.getShort() != VERSION) {
+                throw new RuntimeException("Неподдерживаемая версия файла микропрограммы");
+            }
+
+            int mpWidth = buf.get();
+            long[] words = new long[buf.getInt()];
+            buf.asLongBuffer().get(words);
+            buf.position(buf.position() + (words.length << 3));
+
+            String[] labels = new String[words.length];
+            for (int n = buf.getInt(); n > 0; n--) {
+                int addr = buf.getInt();
+                byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+                buf.get(bytes);
+                labels[addr] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            return new MicroProgramFile(mpWidth, new MicroProgramImage(words, labels));
+        } catch (BufferUnderflowException e) {
+            throw new RuntimeException("Файл микропрограммы повреждён");
+        } catch (IndexOutOfBoundsException e) {
+            throw new RuntimeException("Файл микропрограммы повреждён");
+        }
+    }
+
+    /**
+     * Save binary microprogram, or source when file name ends with .mc
+     */
+    public void save(Path path) throws IOException {
+        if (path.toString().endsWith(".mc")) {
+            Files.write(path, toSource().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        OutputStream out = Files.newOutputStream(path);
+
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load binary microprogram or assemble source
+     *
+     * @param mpWidth microcommand pointer width of source and expected width of binary
+     */
+    public static MicroProgramFile load(Path path, int mpWidth) throws Exception {
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+
+        if (bytes.length >= 4 && buf.getInt(0) == MAGIC) {
+            MicroProgramFile file = read(buf);
+
+            if (file.mpWidth != mpWidth) {
+                throw new Exception("Разрядность счётчика микрокоманд микропрограммы " + file.mpWidth +
+                        ", ожидается " + mpWidth);
+            }
+            return file;
+        }
+
+        return parse(new String(bytes, StandardCharsets.UTF_8), mpWidth);
+    }
+}
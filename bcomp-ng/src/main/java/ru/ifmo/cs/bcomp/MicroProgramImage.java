@@ -0,0 +1,93 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.Memory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assembled microprogram: microcommands and labels
+ * <p>
+ * Image is immutable and may be shared by any number of processors.
+ */
+public class MicroProgramImage {
+    private final long[] words;
+    private final String[] labels;
+    private final Map<String, Integer> index;
+
+    /**
+     * @param labels label of every microcommand or null, may be shorter than words
+     */
+    public MicroProgramImage(long[] words, String[] labels) {
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+        for (int addr = 0; addr < labels.length; addr++) {
+            if (labels[addr] != null && index.put(labels[addr], addr) != null) {
+                throw new RuntimeException("Found duplicate label '" + labels[addr] + "'");
+            }
+        }
+
+        this.words = words.clone();
+        this.labels = new String[words.length];
+        System.arraycopy(labels, 0, this.labels, 0, Math.min(labels.length, words.length));
+        this.index = Collections.unmodifiableMap(index);
+    }
+
+    public int getLength() {
+        return words.length;
+    }
+
+    public long getWord(int addr) {
+        return words[addr];
+    }
+
+    /**
+     * Copy of microcommands
+     */
+    public long[] toArray() {
+        return words.clone();
+    }
+
+    public String getLabel(int addr) {
+        return addr < labels.length ? labels[addr] : null;
+    }
+
+    /**
+     * @return address of label or -1 if there is no such label
+     */
+    public int findLabel(String label) {
+        Integer addr = index.get(label);
+
+        return addr != null ? addr : -1;
+    }
+
+    /**
+     * Microprogram executes MUL, DIV and MOVE
+     */
+    public boolean isExtended() {
+        return findLabel("MUL") >= 0 && findLabel("DIV") >= 0 && findLabel("MOVE") >= 0;
+    }
+
+    public Map<String, Integer> getLabels() {
+        return index;
+    }
+
+    /**
+     * Write microcommands to microcode memory starting from address 0, rest of memory is cleared
+     */
+    public void loadInto(Memory microcode) {
+        long size = 1L << microcode.getAddrWidth();
+
+        if (words.length > size) {
+            throw new RuntimeException("Микропрограмма не помещается в память микрокоманд");
+        }
+
+        microcode.setValues(0, words, 0, words.length);
+        microcode.setValues(words.length, new long[(int) size - words.length], 0, (int) size - words.length);
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.bcomp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import static ru.ifmo.cs.bcomp.ControlSignal.*;
+
+/**
+ * Microprogram optimizer
+ * <p>
+ * Passes are repeated until nothing changes:
+ * <ul>
+ * <li>jump threading: control microcommand targeting unconditional GOTO jumps to final target,
+ * GOTO to the next microcommand is removed;</li>
+ * <li>merging: operating microcommand is merged into previous one when it is reached only by
+ * falling through and one of them uses only memory signals, so merged microcommand
+ * performs ALU operation, LOAD and STOR in the same order as two original ones;</li>
+ * <li>unreachable microcommands are removed, address 0 and running cycle labels are entry points.</li>
+ * </ul>
+ * Microcommands from RESERVED label onwards are user microcode and keep their addresses, space
+ * freed before it is filled with zeros, so fall through of reserved commands to address 0 takes
+ * the same number of ticks.
+ * Unconditional GOTO is control microcommand checking bit PS0 for 0, PS0 is assumed to be
+ * always zero as microprogram does.
+ */
+public class MicroProgramOptimizer {
+    private static final long TYPE_BIT = 1L << TYPE.ordinal();
+    private static final long MEMORY = (1L << LOAD.ordinal()) | (1L << STOR.ordinal());
+    private static final long SPECIAL = (1L << IO.ordinal()) | (1L << INTS.ordinal()) |
+            (1L << RESERVED37.ordinal()) | (1L << HALT.ordinal());
+    private static final long ALU = ((1L << (WRAR.ordinal() + 1)) - 1) | (1L << HTOA.ordinal());
+    private static final long GOTO = (1L << RDPS.ordinal()) | (1L << LTOL.ordinal()) |
+            (1L << (State.PS0.ordinal() + 16)) | TYPE_BIT;
+
+    private class Node {
+        private String label;
+        private long word;
+        private Node target;
+        private int expected;
+        private boolean entry;
+        private int pinned = -1;
+
+        private boolean isControl() {
+            return (word & TYPE_BIT) != 0;
+        }
+
+        private boolean isGoto() {
+            return word == GOTO && expected == 0;
+        }
+    }
+
+    private final MicroProgramImage image;
+    private final int mpWidth;
+    private ArrayList<Node> nodes;
+    private int threaded;
+    private int merged;
+    private int removed;
+
+    public MicroProgramOptimizer(MicroProgramImage image, int mpWidth) {
+        this.image = image;
+        this.mpWidth = mpWidth;
+    }
+
+    /**
+     * @return optimized microprogram, source image is not changed
+     */
+    public MicroProgramImage optimize() {
+        decode();
+        threaded = merged = removed = 0;
+
+        for (boolean changed = true; changed; ) {
+            changed = thread();
+            changed |= merge();
+            changed |= removeGotoNext();
+            changed |= removeUnreachable();
+        }
+
+        return encode();
+    }
+
+    /**
+     * Number of retargeted jumps
+     */
+    public int getThreaded() {
+        return threaded;
+    }
+
+    /**
+     * Number of microcommands merged into previous ones
+     */
+    public int getMerged() {
+        return merged;
+    }
+
+    /**
+     * Number of removed jumps and unreachable microcommands
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    private void decode() {
+        long targetMask = (1L << mpWidth) - 1;
+
+        nodes = new ArrayList<Node>(image.getLength());
+        for (int addr = 0; addr < image.getLength(); addr++) {
+            Node node = new Node();
+
+            node.label = image.getLabel(addr);
+            node.entry = addr == 0;
+            nodes.add(node);
+        }
+
+        for (RunningCycle cycle : RunningCycle.values()) {
+            int addr = image.findLabel(cycle.name());
+
+            if (addr >= 0) {
+                nodes.get(addr).entry = true;
+            }
+        }
+
+        int reserved = image.findLabel("RESERVED");
+        if (reserved >= 0) {
+            for (int addr = reserved; addr < nodes.size(); addr++) {
+                nodes.get(addr).entry = true;
+                nodes.get(addr).pinned = addr;
+            }
+        }
+
+        for (int addr = 0; addr < image.getLength(); addr++) {
+            Node node = nodes.get(addr);
+            long word = image.getWord(addr);
+
+            if ((word & TYPE_BIT) == 0) {
+                node.word = word;
+                continue;
+            }
+
+            int target = (int) ((word >> 24) & targetMask);
+            if (target >= nodes.size()) {
+                throw new RuntimeException("Переход за пределы микропрограммы по адресу " + addr);
+            }
+
+            node.target = nodes.get(target);
+            node.expected = (int) (word >> (24 + mpWidth)) & 1;
+            node.word = word & ~(targetMask << 24) & ~(1L << (24 + mpWidth));
+        }
+    }
+
+    private MicroProgramImage encode() {
+        IdentityHashMap<Node, Integer> addrs = new IdentityHashMap<Node, Integer>();
+        int length = 0;
+
+        for (Node node : nodes) {
+            length = Math.max(length, node.pinned);
+            addrs.put(node, length++);
+        }
+
+        long[] words = new long[length];
+        String[] labels = new String[length];
+
+        for (Node node : nodes) {
+            int addr = addrs.get(node);
+
+            labels[addr] = node.label;
+            words[addr] = node.word;
+            if (node.isControl()) {
+                words[addr] |= ((long) addrs.get(node.target) << 24) | ((long) node.expected << (24 + mpWidth));
+            }
+        }
+
+        return new MicroProgramImage(words, labels);
+    }
+
+    private boolean thread() {
+        boolean changed = false;
+
+        for (Node node : nodes) {
+            if (!node.isControl()) {
+                continue;
+            }
+
+            Node target = node.target;
+            for (int steps = 0; target.isGoto() && target.target != target && steps < nodes.size(); steps++) {
+                target = target.target;
+            }
+
+            if (target != node.target) {
+                node.target = target;
+                threaded++;
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private HashSet<Node> getTargets() {
+        HashSet<Node> targets = new HashSet<Node>();
+
+        for (Node node : nodes) {
+            if (node.isControl()) {
+                targets.add(node.target);
+            }
+        }
+
+        return targets;
+    }
+
+    private boolean merge() {
+        HashSet<Node> targets = getTargets();
+        boolean changed = false;
+
+        for (int i = 0; i < nodes.size() - 1; ) {
+            Node a = nodes.get(i);
+            Node b = nodes.get(i + 1);
+
+            if (b.entry || targets.contains(b) || !canMerge(a.word, b.word)) {
+                i++;
+                continue;
+            }
+
+            a.word |= b.word;
+            nodes.remove(i + 1);
+            merged++;
+            changed = true;
+        }
+
+        return changed;
+    }
+
+    /**
+     * Whether a followed by b gives the same result as single microcommand a | b
+     */
+    static boolean canMerge(long a, long b) {
+        if (((a | b) & (TYPE_BIT | SPECIAL)) != 0) {
+            return false;
+        }
+
+        long memA = a & MEMORY;
+        long memB = b & MEMORY;
+
+        if ((memA & memB) != 0 || (has(a, STOR) && has(b, LOAD))) {
+            return false;
+        }
+
+        if ((b & ALU) == 0) {
+            // Memory signals of b follow ALU operation of a in merged microcommand too
+            return true;
+        }
+        if ((a & ALU) != 0) {
+            return false;
+        }
+
+        // ALU operation of b should not depend on or affect memory access of a
+        if (memA != 0 && (has(b, WRAR) || has(b, WRDR))) {
+            return false;
+        }
+        return !has(a, LOAD) || !has(b, RDDR);
+    }
+
+    private static boolean has(long word, ControlSignal cs) {
+        return (word & (1L << cs.ordinal())) != 0;
+    }
+
+    private boolean removeGotoNext() {
+        HashSet<Node> targets = getTargets();
+        boolean changed = false;
+
+        for (int i = 0; i < nodes.size() - 1; ) {
+            Node node = nodes.get(i);
+
+            if (node.isGoto() && node.target == nodes.get(i + 1) && !node.entry && !targets.contains(node)) {
+                nodes.remove(i);
+                removed++;
+                changed = true;
+            } else {
+                i++;
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean removeUnreachable() {
+        IdentityHashMap<Node, Integer> index = new IdentityHashMap<Node, Integer>();
+        boolean[] reachable = new boolean[nodes.size()];
+        ArrayList<Integer> queue = new ArrayList<Integer>();
+
+        for (int i = 0; i < nodes.size(); i++) {
+            index.put(nodes.get(i), i);
+            if (nodes.get(i).entry) {
+                reachable[i] = true;
+                queue.add(i);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int i = queue.remove(queue.size() - 1);
+            Node node = nodes.get(i);
+
+            if (node.isControl()) {
+                int target = index.get(node.target);
+
+                if (!reachable[target]) {
+                    reachable[target] = true;
+                    queue.add(target);
+                }
+            }
+            if (!node.isGoto() && i + 1 < nodes.size() && !reachable[i + 1]) {
+                reachable[i + 1] = true;
+                queue.add(i + 1);
+            }
+        }
+
+        ArrayList<Node> live = new ArrayList<Node>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            if (reachable[i]) {
+                live.add(nodes.get(i));
+            }
+        }
+
+        if (live.size() == nodes.size()) {
+            return false;
+        }
+
+        removed += nodes.size() - live.size();
+        nodes = live;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "Микрокоманд: " + image.getLength() + " -> " + (nodes != null ? nodes.size() : image.getLength()) +
+                ", объединено: " + merged + ", переходов перенаправлено: " + threaded + ", удалено: " + removed;
+    }
+}
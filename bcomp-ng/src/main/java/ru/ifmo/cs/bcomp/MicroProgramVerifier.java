@@ -0,0 +1,256 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.Memory;
+import ru.ifmo.cs.components.Register;
+
+import java.util.EnumMap;
+import java.util.Random;
+
+import static ru.ifmo.cs.components.Utils.toHex;
+
+/**
+ * Equivalence check of two microprograms by differential execution
+ * <p>
+ * Both microprograms run on separate processors from the same state and resulting
+ * registers and memory are compared. Vector suite executes every instruction class
+ * with all combinations of C, V, Z, N flags and console operations, then random instructions are
+ * executed in random states. Cases where reference program loads 1 to PS0 are skipped,
+ * optimizer assumes this bit is always zero.
+ */
+public class MicroProgramVerifier {
+    private static final Reg[] REGISTERS = {Reg.DR, Reg.CR, Reg.IP, Reg.SP, Reg.AC, Reg.BR, Reg.AR, Reg.IR};
+    private static final Reg[] COMPARED = {Reg.DR, Reg.CR, Reg.IP, Reg.SP, Reg.AC, Reg.BR, Reg.AR, Reg.PS};
+    private static final State[] FLAGS = {State.C, State.V, State.Z, State.N, State.EI};
+    private static final long[] VECTOR_VALUES = {0x0000, 0xFFFF, 0x8001, 0x7FFE};
+    private static final int TICK_LIMIT = 10000;
+
+    private final MachineConfig config;
+    private final MicroProgramImage reference;
+    private final MicroProgramImage candidate;
+    private final long[] state;
+    private final long[] memory;
+    private int cases;
+    private int skipped;
+    private long referenceTicks;
+    private long candidateTicks;
+
+    public MicroProgramVerifier(MachineConfig config, MicroProgramImage reference, MicroProgramImage candidate) {
+        this.config = config;
+        this.reference = reference;
+        this.candidate = candidate;
+        state = new long[REGISTERS.length + FLAGS.length];
+        memory = new long[1 << config.addrWidth];
+    }
+
+    /**
+     * @param random number of random cases after vector suite
+     * @return description of first difference or null when microprograms are equivalent
+     */
+    public String verify(int random, long seed) throws Exception {
+        Processor ref = new Processor(reference);
+        Processor cand = null;
+
+        cases = skipped = 0;
+        referenceTicks = candidateTicks = 0;
+
+        try {
+            cand = new Processor(candidate);
+            Random rnd = new Random(seed);
+            String result;
+
+            for (int word = 0; word < 0x10000; word += 0x40) {
+                // Flags C, V, Z, N, EI is set for odd values
+                for (int flags = 0; flags < 1 << (FLAGS.length - 1); flags++) {
+                    for (long value : VECTOR_VALUES) {
+                        for (int i = 0; i < REGISTERS.length; i++) {
+                            state[i] = value;
+                        }
+                        for (int i = 0; i < FLAGS.length - 1; i++) {
+                            state[REGISTERS.length + i] = (flags >> i) & 1;
+                        }
+                        state[state.length - 1] = value & 1;
+                        for (int i = 0; i < memory.length; i++) {
+                            memory[i] = (value + i) & 0xFFFF;
+                        }
+                        // Instruction at IP, operand field varies with value
+                        state[2] = 0x100;
+                        memory[0x100] = word | (value & 0x3F);
+
+                        if ((result = compare(ref, cand, RunningCycle.INFETCH)) != null) {
+                            return result;
+                        }
+                    }
+                }
+            }
+
+            for (RunningCycle op : new RunningCycle[]{RunningCycle.START, RunningCycle.READ,
+                    RunningCycle.WRITE, RunningCycle.SETIP}) {
+                for (long value : VECTOR_VALUES) {
+                    randomState(rnd);
+                    state[7] = value;
+                    if ((result = compare(ref, cand, op)) != null) {
+                        return result;
+                    }
+                }
+            }
+
+            for (int n = 0; n < random; n++) {
+                randomState(rnd);
+                state[2] = rnd.nextInt(memory.length);
+                memory[(int) state[2]] = rnd.nextInt(0x10000);
+
+                if ((result = compare(ref, cand, RunningCycle.INFETCH)) != null) {
+                    return result;
+                }
+            }
+
+            return null;
+        } finally {
+            ref.cpu.stopCPU();
+            if (cand != null) {
+                cand.cpu.stopCPU();
+            }
+        }
+    }
+
+    /**
+     * Number of compared cases in last verification
+     */
+    public int getCases() {
+        return cases;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public long getReferenceTicks() {
+        return referenceTicks;
+    }
+
+    public long getCandidateTicks() {
+        return candidateTicks;
+    }
+
+    private void randomState(Random rnd) {
+        for (int i = 0; i < REGISTERS.length; i++) {
+            state[i] = rnd.nextInt(0x10000);
+        }
+        for (int i = 0; i < FLAGS.length; i++) {
+            state[REGISTERS.length + i] = rnd.nextInt(2);
+        }
+        for (int i = 0; i < memory.length; i++) {
+            memory[i] = rnd.nextInt(0x10000);
+        }
+    }
+
+    private String compare(Processor ref, Processor cand, RunningCycle op) {
+        ref.run(op);
+
+        if (ref.cpu.getProgramState(State.PS0) != 0) {
+            skipped++;
+            return null;
+        }
+
+        cand.run(op);
+        cases++;
+        referenceTicks += ref.ticks;
+        candidateTicks += cand.ticks;
+
+        StringBuilder sb = new StringBuilder();
+        for (Reg reg : COMPARED) {
+            long r = ref.regs.get(reg).getValue();
+            long c = cand.regs.get(reg).getValue();
+
+            if (r != c) {
+                sb.append(' ').append(reg.name()).append('=').append(toHex(c, ref.regs.get(reg).width))
+                        .append(" вместо ").append(toHex(r, ref.regs.get(reg).width));
+            }
+        }
+
+        Memory rm = ref.cpu.getMemory();
+        Memory cm = cand.cpu.getMemory();
+        for (int addr = 0; addr < memory.length; addr++) {
+            if (rm.getValue(addr) != cm.getValue(addr)) {
+                sb.append(' ').append(toHex(addr, config.addrWidth)).append('=').append(toHex(cm.getValue(addr), 16))
+                        .append(" вместо ").append(toHex(rm.getValue(addr), 16));
+                break;
+            }
+        }
+
+        if (cand.ticks >= TICK_LIMIT && ref.ticks < TICK_LIMIT) {
+            sb.append(" зацикливание");
+        }
+
+        if (sb.length() == 0) {
+            return null;
+        }
+
+        return op + (op == RunningCycle.INFETCH ?
+                " " + toHex(memory[(int) state[2]], 16) + " по адресу " + toHex(state[2], config.addrWidth) : "") +
+                ":" + sb;
+    }
+
+    private class Processor {
+        private final CPU cpu;
+        private final EnumMap<Reg, Register> regs;
+        private final int infetch;
+        private int ticks;
+
+        private Processor(MicroProgramImage program) throws Exception {
+            cpu = new CPU(config);
+            regs = cpu.getRegisters();
+            infetch = program.findLabel(RunningCycle.INFETCH.name());
+            if (infetch < 0) {
+                throw new RuntimeException("Метка INFETCH не найдена");
+            }
+            cpu.startCPU();
+            if (!cpu.executeMPLoad(program)) {
+                throw new RuntimeException("Процессор занят");
+            }
+            cpu.setTickFinishListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (++ticks >= TICK_LIMIT) {
+                        regs.get(Reg.PS).setValue(0, 1, State.P.ordinal());
+                    }
+                }
+            });
+        }
+
+        private void run(RunningCycle op) {
+            for (int i = 0; i < REGISTERS.length; i++) {
+                regs.get(REGISTERS[i]).setValue(state[i]);
+            }
+            regs.get(Reg.PS).setValue(0);
+            for (int i = 0; i < FLAGS.length; i++) {
+                regs.get(Reg.PS).setValue(state[REGISTERS.length + i], 1, FLAGS[i].ordinal());
+            }
+            cpu.getMemory().setValues(0, memory, 0, memory.length);
+
+            ticks = 0;
+            switch (op) {
+                case START:
+                    cpu.executeStart();
+                    break;
+                case READ:
+                    cpu.executeRead();
+                    break;
+                case WRITE:
+                    cpu.executeWrite();
+                    break;
+                case SETIP:
+                    cpu.executeSetAddr();
+                    break;
+                default:
+                    // Previous case may stop anywhere, instruction starts from its fetch
+                    regs.get(Reg.MP).setValue(infetch);
+                    cpu.executeContinue();
+            }
+        }
+    }
+}
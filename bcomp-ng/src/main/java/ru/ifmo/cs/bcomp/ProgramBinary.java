@@ -5,8 +5,10 @@
  */
 package ru.ifmo.cs.bcomp;
 
+import ru.ifmo.cs.components.BinaryImage;
+
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -19,6 +21,13 @@ public class ProgramBinary {
     public int load_address = UNDEFINED;
     public int start_address = UNDEFINED;
 
+    public BinaryImage image = null;
+    /**
+     * Continuous program body from load address, gaps are filled with zeroes
+     *
+     * @deprecated use image, body set without image is still loaded
+     */
+    @Deprecated
     public List<Integer> binary = null;
 
     public ProgramBinary() {
@@ -29,13 +38,48 @@ public class ProgramBinary {
         loadBinaryFormat(prog);
     }
 
+    public ProgramBinary(BinaryImage image, int start_address) {
+        this.image = image;
+        this.load_address = image.getLoadAddress();
+        this.start_address = start_address;
+        this.binary = toList(image.toArray());
+    }
+
+    private static List<Integer> toList(int[] words) {
+        ArrayList<Integer> list = new ArrayList<Integer>(words.length);
+
+        for (int w : words) list.add(w);
+        return list;
+    }
+
+    /**
+     * Image of program, built from body when only it is set
+     */
+    BinaryImage getImage() {
+        if (image == null && binary != null && load_address != UNDEFINED) {
+            short[] words = new short[binary.size()];
+            int n = 0;
+
+            for (Integer w : binary) words[n++] = (short) (int) w;
+            image = new BinaryImage();
+            image.addSegment(load_address, words);
+        }
+        return image;
+    }
+
+    /**
+     * Load address, start address and continuous program body with zero filled gaps
+     */
     public final List<Integer> getBinaryFormat() {
+        BinaryImage image = getImage();
         if (start_address == UNDEFINED || load_address == UNDEFINED ||
-                binary == null || binary.isEmpty())
+                image == null || image.isEmpty())
             throw new RuntimeException("BcompNG: Program data is corrupted");
-        LinkedList<Integer> prog = new LinkedList<Integer>(binary);
-        prog.add(0, start_address);
-        prog.add(0, load_address);
+        int[] binary = image.toArray();
+        ArrayList<Integer> prog = new ArrayList<Integer>(binary.length + 2);
+        prog.add(load_address);
+        prog.add(start_address);
+        for (int w : binary) prog.add(w);
         return prog;
     }
 
@@ -46,8 +90,11 @@ public class ProgramBinary {
         if (!i.hasNext()) throw new IndexOutOfBoundsException("BcompNG: Программа пуста: start_address");
         start_address = i.next();
         if (prog.size() < 3) throw new IndexOutOfBoundsException("BcompNG: Программа пуста: binary body");
-        binary = new LinkedList<Integer>();
-        while (i.hasNext()) binary.add(i.next());
+        short[] words = new short[prog.size() - 2];
+        for (int n = 0; i.hasNext(); n++) words[n] = (short) (int) i.next();
+        image = new BinaryImage();
+        image.addSegment(load_address, words);
+        binary = toList(image.toArray());
     }
 
     public String toBinaryRepresentation(int columns) {
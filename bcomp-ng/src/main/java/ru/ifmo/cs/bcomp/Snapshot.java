@@ -0,0 +1,285 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.Memory;
+import ru.ifmo.cs.components.Register;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Full machine snapshot: registers, main memory, IO controller registers,
+ * timer state, microprogram and DMA device buffer
+ * <p>
+ * File layout: 16 bytes header (magic, version, flags, payload length, CRC32 of payload)
+ * followed by payload. Every value is stored big endian in (width + 7) / 8 bytes.
+ * Payload ends with microcode memory contents and labels of loaded microprogram
+ * in binary microprogram file format, restored microprogram replaces loaded one.
+ * Machine with DMA controller sets DMA flag and appends device buffer: length,
+ * position and words, snapshot restores only into machine of same configuration.
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x42435350; // "BCSP"
+    private static final short VERSION = 3;
+    private static final int HEADER_SIZE = 16;
+    private static final int FLAG_CLOCK = 1;
+    private static final int FLAG_DMA = 2;
+
+    private final BasicComp bcomp;
+    private final CPU cpu;
+
+    public Snapshot(BasicComp bcomp) {
+        this.bcomp = bcomp;
+        this.cpu = bcomp.getCPU();
+    }
+
+    public void save(Path path) throws IOException {
+        lockStopped();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream microprogram = new ByteArrayOutputStream();
+            new MicroProgramFile((int) cpu.getConfig().mpWidth, cpu.readMicroProgram()).write(microprogram);
+
+            IOCtrlDMA dma = bcomp.getDMA();
+            long[] dmaBuffer = dma != null ? dma.getBuffer() : new long[0];
+            int size = getStateSize() + microprogram.size() + (dma != null ? 8 + 2 * dmaBuffer.length : 0);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + size);
+
+            buf.position(HEADER_SIZE);
+            cpu.tickLock();
+            try {
+                writeState(buf);
+            } finally {
+                cpu.tickUnlock();
+            }
+            buf.put(microprogram.toByteArray());
+            if (dma != null) {
+                buf.putInt(dmaBuffer.length);
+                buf.putInt(dma.getPosition());
+                for (long word : dmaBuffer) {
+                    buf.putShort((short) word);
+                }
+            }
+
+            buf.position(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(buf);
+
+            buf.position(0);
+            buf.putInt(MAGIC);
+            buf.putShort(VERSION);
+            buf.putShort((short) ((cpu.getClockState() ? FLAG_CLOCK : 0) | (dma != null ? FLAG_DMA : 0)));
+            buf.putInt(size);
+            buf.putInt((int) crc.getValue());
+            buf.force();
+        } finally {
+            cpu.unlockStopped();
+        }
+    }
+
+    public void restore(Path path) throws IOException {
+        lockStopped();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Снимок повреждён: файл слишком мал");
+            }
+
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("Файл не является снимком БЭВМ");
+            }
+
+            short version = buf.getShort();
+            if (version != VERSION) {
+                throw new IOException("Неподдерживаемая версия снимка: " + version);
+            }
+
+            int flags = buf.getShort();
+            int size = buf.getInt();
+            int checksum = buf.getInt();
+
+            IOCtrlDMA dma = bcomp.getDMA();
+            if ((dma != null) != ((flags & FLAG_DMA) != 0) ||
+                    size <= getStateSize() || channel.size() != HEADER_SIZE + size) {
+                throw new IOException("Снимок не соответствует конфигурации БЭВМ");
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Снимок повреждён: неверная контрольная сумма");
+            }
+
+            MicroProgramFile microprogram;
+            buf.position(HEADER_SIZE + getStateSize());
+            try {
+                microprogram = MicroProgramFile.read(buf);
+            } catch (RuntimeException e) {
+                throw new IOException("Снимок повреждён: " + e.getMessage());
+            }
+            if (microprogram.mpWidth != cpu.getConfig().mpWidth) {
+                throw new IOException("Снимок не соответствует конфигурации БЭВМ");
+            }
+
+            long[] dmaBuffer = null;
+            int dmaPosition = 0;
+            if (dma != null) {
+                if (buf.remaining() < 8) {
+                    throw new IOException("Снимок повреждён: нет буфера ВУ с прямым доступом к памяти");
+                }
+                int length = buf.getInt();
+                dmaPosition = buf.getInt();
+                if (length < 0 || dmaPosition < 0 || dmaPosition > length || buf.remaining() != 2 * length) {
+                    throw new IOException("Снимок повреждён: неверный буфер ВУ с прямым доступом к памяти");
+                }
+                dmaBuffer = new long[length];
+                for (int i = 0; i < length; i++) {
+                    dmaBuffer[i] = buf.getShort() & 0xFFFF;
+                }
+            }
+            if (buf.hasRemaining()) {
+                throw new IOException("Снимок не соответствует конфигурации БЭВМ");
+            }
+
+            cpu.setClockState((flags & FLAG_CLOCK) != 0);
+            cpu.tickLock();
+            try {
+                // Loading microprogram resets MP, so it goes before registers
+                cpu.restoreMicroProgram(microprogram.image);
+                buf.position(HEADER_SIZE);
+                readState(buf);
+                if (dma != null) {
+                    dma.restoreBuffer(dmaBuffer, dmaPosition);
+                }
+            } catch (Exception e) {
+                throw new IOException("Снимок повреждён: " + e.getMessage());
+            } finally {
+                cpu.tickUnlock();
+            }
+        } finally {
+            cpu.unlockStopped();
+        }
+    }
+
+    /**
+     * Processor can't start between check and access to state
+     */
+    private void lockStopped() {
+        if (!cpu.lockStopped()) {
+            throw new RuntimeException("Операция невозможна: выполняется программа");
+        }
+    }
+
+    /**
+     * Size of payload before microprogram
+     */
+    private int getStateSize() {
+        int size = 0;
+
+        for (Register reg : cpu.getRegisters().values()) {
+            size += bytes(reg.width);
+        }
+
+        size += getMemorySize(cpu.getMemory());
+
+        for (IOCtrl ioctrl : bcomp.getIOCtrls()) {
+            for (Register reg : ioctrl.getRegisters()) {
+                size += bytes(reg.width);
+            }
+        }
+
+        // Timer countdown
+        return size + 8;
+    }
+
+    private void writeState(ByteBuffer buf) {
+        for (Register reg : cpu.getRegisters().values()) {
+            putValue(buf, reg.getValue(), reg.width);
+        }
+
+        writeMemory(buf, cpu.getMemory());
+
+        for (IOCtrl ioctrl : bcomp.getIOCtrls()) {
+            for (Register reg : ioctrl.getRegisters()) {
+                putValue(buf, reg.getValue(), reg.width);
+            }
+        }
+
+        buf.putLong(bcomp.getTimer().getCountdown());
+    }
+
+    private void readState(ByteBuffer buf) {
+        for (Register reg : cpu.getRegisters().values()) {
+            reg.setValue(getValue(buf, reg.width));
+        }
+
+        readMemory(buf, cpu.getMemory());
+
+        for (IOCtrl ioctrl : bcomp.getIOCtrls()) {
+            for (Register reg : ioctrl.getRegisters()) {
+                reg.setValue(getValue(buf, reg.width));
+            }
+        }
+
+        bcomp.getTimer().setCountdown(buf.getLong());
+    }
+
+    private static int getMemorySize(Memory mem) {
+        return bytes(mem.width) << mem.getAddrWidth();
+    }
+
+    private static void writeMemory(ByteBuffer buf, Memory mem) {
+        int length = 1 << mem.getAddrWidth();
+
+        for (int addr = 0; addr < length; addr++) {
+            putValue(buf, mem.getValue(addr), mem.width);
+        }
+    }
+
+    /**
+     * Only changed words are written, so words of shared image stay unwritten
+     */
+    private static void readMemory(ByteBuffer buf, Memory mem) {
+        int length = 1 << mem.getAddrWidth();
+
+        for (int addr = 0; addr < length; addr++) {
+            long value = getValue(buf, mem.width);
+
+            if (mem.getValue(addr) != value) {
+                mem.setValue(addr, value);
+            }
+        }
+    }
+
+    private static int bytes(long width) {
+        return (int) ((width + 7) >> 3);
+    }
+
+    private static void putValue(ByteBuffer buf, long value, long width) {
+        for (int i = bytes(width) - 1; i >= 0; i--) {
+            buf.put((byte) (value >> (i << 3)));
+        }
+    }
+
+    private static long getValue(ByteBuffer buf, long width) {
+        long value = 0;
+
+        for (int i = bytes(width); i > 0; i--) {
+            value = (value << 8) | (buf.get() & 0xFF);
+        }
+
+        return value;
+    }
+}
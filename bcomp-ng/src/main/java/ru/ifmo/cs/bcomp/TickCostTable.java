@@ -0,0 +1,161 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.bcomp;
+
+import ru.ifmo.cs.components.Memory;
+import ru.ifmo.cs.components.Register;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Number of ticks (executed microcommands) spent by instructions, including
+ * fetch and interrupt check
+ * <p>
+ * Costs are measured once by executing every instruction class on separate
+ * processor with the same microprogram. Address instructions are classified by
+ * opcode and addressing mode, branches by opcode, addressless and IO
+ * instructions by upper 10 bits. Every class is run with all flag values and
+ * with zero and all ones in AC, operand field and top of stack. This covers
+ * the longest runs of MUL (AC = FFFF), DIV (divisor 0) and MOVE (255 words)
+ * of extended microprogram, so maximum is worst case. Minimum is time of not
+ * taken branch or the shortest measured run of instruction depending on data.
+ */
+public class TickCostTable {
+    private static final long IP_VALUE = 0x100;
+    private static final long SP_VALUE = 0x700;
+    private static final long POINTER_VALUE = 0x200;
+    private static final Reg[] REGISTERS = {Reg.DR, Reg.CR, Reg.AC, Reg.BR, Reg.AR, Reg.PS};
+    private static final State[] FLAGS = {State.C, State.V, State.Z, State.N};
+    // AC, operand field and MEM(SP) of measured runs
+    private static final int[][] DATA = {{0, 0, 0}, {0xFFFF, 0xFF, 0}, {0, 0, 0xFFFF}, {0xFFFF, 0xFF, 0xFFFF}};
+
+    private final Map<Integer, Integer> costs = new HashMap<Integer, Integer>();
+    // Branches not taken and the shortest runs
+    private final Map<Integer, Integer> minimums = new HashMap<Integer, Integer>();
+    private final int[] ticks = new int[1];
+    // Microcommand after STOP or 0 for microprogram without labels
+    private long resume;
+
+    public TickCostTable() throws Exception {
+        this(MachineConfig.CLASSIC);
+    }
+
+    public TickCostTable(MachineConfig config) throws Exception {
+        this(config, null);
+    }
+
+    /**
+     * @param program microprogram to measure or null for built-in one
+     */
+    public TickCostTable(MachineConfig config, MicroProgramImage program) throws Exception {
+        final CPU cpu = new CPU(config);
+
+        cpu.startCPU();
+        try {
+            if (program != null && !cpu.executeMPLoad(program)) {
+                throw new RuntimeException("Процессор занят");
+            }
+            resume = cpu.getMicroProgram().findLabel("STOP") + 1;
+            cpu.setTickFinishListener(new Runnable() {
+                @Override
+                public void run() {
+                    ticks[0]++;
+                }
+            });
+
+            for (int word = 0; word < 0x2000; word += 0x40) {
+                measure(cpu, word, 1);
+            }
+
+            for (int word = 0x2000; word < 0xF000; word += 0x100) {
+                measure(cpu, (word & 0x0800) == 0 ? word & 0xF000 : word, 1);
+            }
+
+            for (int word = 0xF000; word <= 0xFF00; word += 0x100) {
+                measure(cpu, word, 1 << FLAGS.length);
+            }
+        } finally {
+            cpu.stopCPU();
+        }
+    }
+
+    /**
+     * @param word instruction, operand field is ignored
+     * @return maximal ticks spent by instruction, by branch if it is taken
+     */
+    public int getTicks(int word) {
+        return costs.get(getKey(word & 0xFFFF));
+    }
+
+    /**
+     * @param taken whether branch is taken, false gives minimum for other instructions
+     */
+    public int getTicks(int word, boolean taken) {
+        return taken ? getTicks(word) : minimums.get(getKey(word & 0xFFFF));
+    }
+
+    private static int getKey(int word) {
+        if (word < 0x2000) {
+            return word & 0xFFC0;
+        }
+
+        if (word < 0xF000 && (word & 0x0800) == 0) {
+            return word & 0xF000;
+        }
+
+        return word & 0xFF00;
+    }
+
+    /**
+     * Run instruction class with every data and given number of flag combinations
+     */
+    private void measure(CPU cpu, int word, int flagValues) {
+        int max = 0;
+        int min = Integer.MAX_VALUE;
+
+        for (int[] data : DATA) {
+            for (int flags = 0; flags < flagValues; flags++) {
+                int operand = data[1] & (word < 0x2000 ? 0x3F : 0xFF);
+                int ticks = measure(cpu, word | operand, flags, data[0], data[2]);
+                max = Math.max(max, ticks);
+                min = Math.min(min, ticks);
+            }
+        }
+        costs.put(word, max);
+        minimums.put(word, min);
+    }
+
+    private int measure(CPU cpu, int word, int flags, long ac, long stack) {
+        EnumMap<Reg, Register> regs = cpu.getRegisters();
+        Memory memory = cpu.getMemory();
+
+        for (Reg reg : REGISTERS) {
+            regs.get(reg).setValue(0);
+        }
+        regs.get(Reg.AC).setValue(ac);
+        // Reserved instructions halt inside microprogram, run continues after STOP
+        if (resume > 0) {
+            regs.get(Reg.MP).setValue(resume);
+        }
+        regs.get(Reg.IP).setValue(IP_VALUE);
+        regs.get(Reg.SP).setValue(SP_VALUE);
+        for (int i = 0; i < FLAGS.length; i++) {
+            regs.get(Reg.PS).setValue(flags >> i, 1, FLAGS[i].ordinal());
+        }
+        memory.setValue(IP_VALUE, word);
+        // Pointer for indirect addressing modes
+        memory.setValue(IP_VALUE + 1, POINTER_VALUE);
+        memory.setValue(SP_VALUE, stack);
+
+        ticks[0] = 0;
+        if (!cpu.executeContinue()) {
+            throw new RuntimeException("Процессор занят");
+        }
+
+        return ticks[0];
+    }
+}
@@ -4,10 +4,14 @@
 package ru.ifmo.cs.bcomp;
 
 import org.junit.Test;
+import ru.ifmo.cs.components.BinaryImage;
 import ru.ifmo.cs.components.DataDestination;
 import ru.ifmo.cs.components.Memory;
 import ru.ifmo.cs.components.Register;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
@@ -221,6 +225,72 @@ public class BasicCompTest {
             "1100; EI=1", // EI
     };
 
+    // Instructions of extended microprogram
+    private static final String[] EXTENDED_TESTS = {
+            "9200; AC=0005,200=0003; AC=000F,DR=0018,BR=000F,AR=200,N=0,Z=0,V=0,C=0", // MUL
+            "9200; AC=FFFF,200=0003; AC=FFFD,DR=0000,BR=FFFD,AR=200,N=1,Z=0,V=0,C=0", // MUL
+            "9200; AC=0000,200=1234; AC=0000,DR=2468,BR=0000,AR=200,N=0,Z=1,V=0,C=0", // MUL
+            "9F05; AC=0007; AC=0023,DR=0028,BR=0023,N=0,Z=0,V=0,C=0", // MUL #5
+
+            "0F00; AC=0064,SP=700,700=0007; AC=000E,CR=0010,DR=0002,BR=0002,AR=700,N=0,Z=0,700=0002", // DIV
+            "0F00; AC=FFFF,SP=700,700=8001; AC=0001,CR=0010,DR=7FFE,BR=7FFE,AR=700,N=0,Z=0,700=7FFE", // DIV
+            "0F00; AC=0005,SP=700,700=0007; AC=0000,CR=0010,DR=0005,BR=0005,AR=700,N=0,Z=1,700=0005", // DIV
+            "0F00; AC=1234,SP=700,700=0000; AC=FFFF,CR=0010,DR=1234,BR=1234,AR=700,N=1,Z=0,700=1234", // DIV
+
+            "FA02; AC=200,SP=700,700=0300,200=1111,201=2222; AC=0202,CR=0100,DR=2222,BR=FFFF,AR=301,C=0,300=1111,301=2222", // MOVE
+            "FA02; AC=200,SP=700,700=0201,200=1111; AC=0202,CR=0001,DR=1111,BR=FFFF,AR=202,C=0,201=1111,202=1111", // MOVE
+            "FA00; AC=200,SP=700,700=0300; AC=0200,CR=0100,DR=0300,BR=FFFF,AR=700,C=0", // MOVE
+    };
+
+    // Microprogram of classic basic computer before address and microcode widths became configurable
+    private static final long[] CLASSIC_MICROCODE = {
+            0x4000000000L, 0x00A0009004L, 0x0104009420L, 0x0002009001L, 0x8109804002L,
+            0x810C404002L, 0x810C204002L, 0x8078104002L, 0x80C2101040L, 0x800C404002L,
+            0x800C204002L, 0x8157104002L, 0x8024084002L, 0x0020011002L, 0x811C044002L,
+            0x0080009024L, 0x0100000000L, 0x8114024002L, 0x81E0014002L, 0x8024101040L,
+            0x8119014002L, 0x0001009401L, 0x0200000000L, 0x0001009201L, 0x8024101040L,
+            0x0001009201L, 0x0200000000L, 0x8024101040L, 0x8120024002L, 0x81E0014002L,
+            0x0001009028L, 0x8024101040L, 0x8023014002L, 0x0001009020L, 0x8028101040L,
+            0x0001009024L, 0x8026804002L, 0x814A404002L, 0x0080009001L, 0x0100000000L,
+            0x813C804002L, 0x8130404002L, 0x812D104002L, 0x0010C09811L, 0x80C4101040L,
+            0x0020009B11L, 0x0010C09220L, 0x80C4101040L, 0x8137204002L, 0x8134104002L,
+            0x0010E09011L, 0x80C4101040L, 0x8032011040L, 0x0010E09411L, 0x80C4101040L,
+            0x813A104002L, 0x0010E09511L, 0x80C4101040L, 0x0000E09511L, 0x80C4101040L,
+            0x8143204002L, 0x81E0104002L, 0x0001009201L, 0x0220009201L, 0x80C4804020L,
+            0x0004009404L, 0x80C4101040L, 0x8146104002L, 0x0010C09001L, 0x80C4101040L,
+            0x0020009001L, 0x0001009010L, 0x0210C09020L, 0x80C4101040L, 0x8153204002L,
+            0x814E104002L, 0x0004009001L, 0x80C4101040L, 0x0020009001L, 0x0001009004L,
+            0x0004009020L, 0x0088009208L, 0x8055101040L, 0x0080009001L, 0x0001009010L,
+            0x0200000000L, 0x80C4101040L, 0x8171084002L, 0x8166044002L, 0x8161024002L,
+            0x815F014002L, 0x80C4041040L, 0x0020011002L, 0x0004009024L, 0x80C4101040L,
+            0x805C041040L, 0x80C4101040L, 0x8164014002L, 0x815C081040L, 0x80C4101040L,
+            0x805C081040L, 0x80C4101040L, 0x816C024002L, 0x816A014002L, 0x815C011040L,
+            0x80C4101040L, 0x805C011040L, 0x80C4101040L, 0x816F014002L, 0x815C021040L,
+            0x80C4101040L, 0x805C021040L, 0x80C4101040L, 0x81E0044002L, 0x81E0024002L,
+            0x8176014002L, 0x806D081040L, 0x806F101040L, 0x806F081040L, 0x806D101040L,
+            0x81A4084002L, 0x8189044002L, 0x817D024002L, 0x80C4014002L, 0x80DE101040L,
+            0x8183014002L, 0x8181801002L, 0x0010C00000L, 0x80C4101040L, 0x0010C09210L,
+            0x80C4101040L, 0x8186801002L, 0x0000200000L, 0x80C4101040L, 0x8184011040L,
+            0x0000208300L, 0x80C4101040L, 0x8196024002L, 0x8190014002L, 0x818E801002L,
+            0x0010E60010L, 0x80C4101040L, 0x0010F80010L, 0x80C4101040L, 0x8194801002L,
+            0x0001009010L, 0x0010E09011L, 0x80C4101040L, 0x0010E80010L, 0x80C4101040L,
+            0x819C014002L, 0x819A801002L, 0x0010C11010L, 0x80C4101040L, 0x0010C06010L,
+            0x80C4101040L, 0x81A2801002L, 0x81A0401002L, 0x0010E09410L, 0x80C4101040L,
+            0x0010E09110L, 0x80C4101040L, 0x0010E09610L, 0x80C4101040L, 0x81B5044002L,
+            0x0080009008L, 0x0100000000L, 0x81AE024002L, 0x81AC014002L, 0x0010C09001L,
+            0x0008009408L, 0x80C4101040L, 0x0040009001L, 0x80AA101040L, 0x81B1014002L,
+            0x0004009001L, 0x80AA101040L, 0x0040009001L, 0x0088009408L, 0x0100000000L,
+            0x80AF101040L, 0x81BB024002L, 0x81B9014002L, 0x0001009010L, 0x8051101040L,
+            0x0001009040L, 0x8051101040L, 0x81E0014002L, 0x0080009008L, 0x0100000000L,
+            0x0020009001L, 0x0001009010L, 0x0210C09020L, 0x80C4101040L, 0x81C7084002L,
+            0x0400000000L, 0x80DE801040L, 0x8001401040L, 0x0800000000L, 0x0088009208L,
+            0x0001009004L, 0x0200000000L, 0x0088009208L, 0x0001009040L, 0x0220001002L,
+            0x00A0020020L, 0x0100000000L, 0x0004009001L, 0x0080001420L, 0x0100000000L,
+            0x0040009001L, 0x8001101040L, 0x00BBE00000L, 0x80C3101040L, 0x0080009004L,
+            0x0104009404L, 0x80DE101040L, 0x0080009004L, 0x0001009080L, 0x0204009404L,
+            0x80DE101040L, 0x0004009080L, 0x4000000000L, 0x8001101040L, 0x0000000000L,
+    };
+
     private final BasicComp bcomp;
     private final CPU cpu;
     private final Memory memory;
@@ -273,7 +343,415 @@ public class BasicCompTest {
 
     @Test
     public void runTests() {
-        for (String _test : TESTS) {
+        runTests(TESTS);
+    }
+
+    @Test
+    public void runExtendedTests() throws Exception {
+        assertFalse(cpu.getMicroProgram().isExtended());
+        assertTrue(cpu.executeMPLoad(new MicroCode(cpu.getConfig(), true).getImage()));
+        assertTrue(cpu.getMicroProgram().isExtended());
+        runTests(EXTENDED_TESTS);
+    }
+
+    @Test
+    public void testClassicMicroCode() throws Exception {
+        assertArrayEquals(CLASSIC_MICROCODE, new MicroCode().getImage().toArray());
+        assertArrayEquals(CLASSIC_MICROCODE, cpu.getMicroProgram().toArray());
+        for (int addr = 0; addr < CLASSIC_MICROCODE.length; addr++) {
+            assertEquals(CLASSIC_MICROCODE[addr], cpu.getMicroCode().getValue(addr));
+        }
+    }
+
+    @Test
+    public void testWideConfig() throws Exception {
+        BasicComp wide = new BasicComp(new MachineConfig(16, 10));
+        CPU wcpu = wide.getCPU();
+        Memory wmem = wcpu.getMemory();
+        // LD 0x020, ST IP+2, ST (IP+2), HLT, result, pointer
+        long[] prog = {0xA020, 0xEE02, 0xE802, 0x0100, 0x0000, 0xF000};
+
+        try {
+            assertEquals(10, wcpu.getMicroCode().getAddrWidth());
+            wmem.setValue(0x20, 0x1234);
+            wmem.setValue(0x8020, 0x4321);
+            wmem.setValues(0x8000, prog, 0, prog.length);
+            wcpu.setRunState(true);
+            assertTrue(wcpu.executeSetAddr(0x8000));
+            assertTrue(wcpu.executeStart());
+
+            // Absolute operand addresses the first 2K words, other modes reach whole memory
+            assertEquals(0x1234, wcpu.getRegValue(AC));
+            assertEquals(0x8004, wcpu.getRegValue(IP));
+            assertEquals(0x1234, wmem.getValue(0x8004));
+            assertEquals(0x1234, wmem.getValue(0xF000));
+        } finally {
+            wcpu.stopCPU();
+        }
+
+        // Wider microcode memory runs programs the same way, reserved instructions
+        // only take more ticks passing longer space for user microcode to HALT at 0
+        DifferentialRunner runner = new DifferentialRunner(BasicComp::new,
+                () -> new BasicComp(new MachineConfig(MachineConfig.ADDR_FIELD_WIDTH, 10)));
+        assertNull(runner.fuzz(1, 50, 200, 2));
+    }
+
+    @Test
+    public void testMicroProgramFile() throws Exception {
+        int mpWidth = (int) cpu.getConfig().mpWidth;
+        Path source = Files.createTempFile("bcomp", ".mc");
+        Path binary = Files.createTempFile("bcomp", ".mp");
+
+        try {
+            for (boolean extended : new boolean[]{false, true}) {
+                MicroProgramFile file = new MicroProgramFile(new MicroCode(cpu.getConfig(), extended));
+                file.save(source);
+                file.save(binary);
+
+                for (Path path : new Path[]{source, binary}) {
+                    MicroProgramFile loaded = MicroProgramFile.load(path, mpWidth);
+                    assertEquals(mpWidth, loaded.mpWidth);
+                    assertArrayEquals(path.toString(), file.image.toArray(), loaded.image.toArray());
+                    assertEquals(path.toString(), file.image.getLabels(), loaded.image.getLabels());
+                }
+            }
+
+            // Saved extended microprogram is loaded into CPU and runs its instructions
+            assertTrue(cpu.executeMPLoad(MicroProgramFile.load(source, mpWidth).image));
+            runTests(EXTENDED_TESTS);
+        } finally {
+            Files.delete(source);
+            Files.delete(binary);
+        }
+    }
+
+    @Test
+    public void runOptimizedTests() throws Exception {
+        MicroProgramImage current = cpu.readMicroProgram();
+        MicroProgramImage optimized = new MicroProgramOptimizer(current, (int) cpu.getConfig().mpWidth).optimize();
+        MicroProgramVerifier verifier = new MicroProgramVerifier(cpu.getConfig(), current, optimized);
+
+        assertNull(verifier.verify(100, 1));
+        assertTrue(verifier.getCandidateTicks() <= verifier.getReferenceTicks());
+        assertTrue(cpu.executeMPLoad(optimized));
+        runTests(TESTS);
+    }
+
+    @Test
+    public void runTestsWithDecodeCache() throws Exception {
+        cpu.setDecodeCache(true, true);
+        runTests(TESTS);
+        assertTrue(cpu.executeMPLoad(new MicroCode(cpu.getConfig(), true).getImage()));
+        runTests(EXTENDED_TESTS);
+        assertTrue(cpu.getDecodeCache().getHits() > 0);
+
+        // DMA transfers a word every tick, skipped ones too
+        assertArrayEquals(runDMA(false), runDMA(true));
+    }
+
+    @Test
+    public void testDMA() throws Exception {
+        BasicComp dmacomp = new BasicComp(new MachineConfig(MachineConfig.CLASSIC.addrWidth, MachineConfig.CLASSIC.mpWidth,
+                MachineConfig.MemoryType.HEAP, null, 16));
+        CPU dmacpu = dmacomp.getCPU();
+        Memory dmamem = dmacpu.getMemory();
+        IOCtrlDMA dma = dmacomp.getDMA();
+        MemoryWindow window = new MemoryWindow(dmacomp, 0x100, 4);
+        Path path = Files.createTempFile("bcomp", ".snapshot");
+        BasicComp restored = new BasicComp(dmacpu.getConfig());
+        // Input 3 words to 0x100 and wait for ready
+        long[] prog = {0xAF00, 0x1320, 0xAF01, 0x1321, 0xAF03, 0x1322, 0xAF00, 0x1323,
+                0xAF80, 0x1325, 0x1224, 0x2F40, 0xF0FD, 0x0100};
+
+        assertNull(bcomp.getDMA());
+        assertEquals(10, bcomp.getIOCtrls().length);
+
+        try {
+            dma.setBuffer(new long[]{0x1234, 0x5678, 0x9ABC, 0xDEF0});
+            dmamem.setValues(0x10, prog, 0, prog.length);
+            window.refresh();
+            dmacpu.setRunState(true);
+            assertTrue(dmacpu.executeSetAddr(0x10));
+            assertTrue(dmacpu.executeStart());
+
+            assertEquals(0x1234, dmamem.getValue(0x100));
+            assertEquals(0x5678, dmamem.getValue(0x101));
+            assertEquals(0x9ABC, dmamem.getValue(0x102));
+            assertEquals(0, dmamem.getValue(0x103));
+            assertEquals(3, dma.getPosition());
+            assertTrue(dma.isReady());
+            assertFalse(dma.isBusy());
+            assertEquals(0x1E, dmacpu.getRegValue(IP));
+            // Transfer is seen by window without invalidate()
+            assertTrue(window.refresh());
+            assertEquals(0x5678, window.getFrame()[1]);
+
+            new Snapshot(dmacomp).save(path);
+            new Snapshot(restored).restore(path);
+            assertArrayEquals(dma.getBuffer(), restored.getDMA().getBuffer());
+            assertEquals(3, restored.getDMA().getPosition());
+            assertTrue(restored.getDMA().isReady());
+
+            try {
+                new Snapshot(bcomp).restore(path);
+                fail("snapshot with DMA restored into machine without DMA");
+            } catch (IOException e) {
+            }
+        } finally {
+            window.done();
+            dmacpu.stopCPU();
+            restored.getCPU().stopCPU();
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testIdleLoop() {
+        final IOCtrl ioctrl = bcomp.getIOCtrls()[3];
+        // Wait for ready flag of device 3 and input its data
+        long[] prog = {0x1207, 0x2F40, 0xF0FD, 0x1206, 0x0100};
+
+        bcomp.setIdleLoopDetection(true);
+        IdleLoopDetector detector = cpu.getIdleLoopDetector();
+        detector.setIdleListener(new Runnable() {
+            @Override
+            public void run() {
+                ioctrl.setData(0x5A);
+                ioctrl.setReady();
+            }
+        });
+
+        memory.setValues(0x10, prog, 0, prog.length);
+        cpu.setRunState(true);
+        assertTrue(cpu.executeSetAddr(0x10));
+        assertTrue(cpu.executeStart());
+        bcomp.setIdleLoopDetection(false);
+
+        assertEquals(1, detector.getIdleCount());
+        assertEquals(0x5A, regs.get(AC).getValue());
+        assertEquals(0x15, regs.get(IP).getValue());
+    }
+
+    @Test
+    public void testMemoryWindow() throws Exception {
+        BasicComp wcomp = new BasicComp();
+        CPU wcpu = wcomp.getCPU();
+        MemoryWindow window = new MemoryWindow(wcomp, 0x100, 8);
+        // LD #5, ST 0x100, INC, ST 0x101, INC, ST 0x105, ST 0x200, HLT
+        long[] prog = {0xAF05, 0xE100, 0x0700, 0xE101, 0x0700, 0xE105, 0xE200, 0x0100};
+
+        try {
+            assertTrue(window.refresh());
+            assertFalse(window.refresh());
+
+            // Several writes into window give one frame
+            wcpu.getMemory().setValues(0x10, prog, 0, prog.length);
+            wcpu.setRunState(true);
+            assertTrue(wcpu.executeSetAddr(0x10));
+            assertTrue(wcpu.executeStart());
+            assertTrue(window.refresh());
+            assertFalse(window.refresh());
+            assertArrayEquals(new long[]{5, 6, 0, 0, 0, 7, 0, 0}, window.getFrame());
+
+            try {
+                window.start("window", 0, () -> {
+                });
+                fail("Zero frame rate is accepted");
+            } catch (IllegalArgumentException e) {
+            }
+        } finally {
+            window.done();
+            wcpu.stopCPU();
+        }
+    }
+
+    @Test
+    public void testLoadProgram() {
+        BinaryImage image = new BinaryImage();
+
+        image.addSegment(0x20, new short[]{0x0200, 0x0100});
+        image.addSegment(0x25, new short[]{0x1234});
+        for (int addr = 0x1F; addr < 0x27; addr++) {
+            memory.setValue(addr, 0xFFFF);
+        }
+
+        bcomp.loadProgram(new ProgramBinary(image, 0x20));
+        assertEquals(0xFFFF, memory.getValue(0x1F));
+        assertEquals(0x0100, memory.getValue(0x21));
+        // Gap between segments is zeroed
+        assertEquals(0, memory.getValue(0x22));
+        assertEquals(0, memory.getValue(0x24));
+        assertEquals(0x1234, memory.getValue(0x25));
+        assertEquals(0xFFFF, memory.getValue(0x26));
+        assertEquals(0x20, regs.get(IP).getValue());
+
+        // Program body without image
+        ProgramBinary prog = new ProgramBinary();
+        prog.load_address = 0x30;
+        prog.start_address = 0x31;
+        prog.binary = Arrays.asList(0x0700, 0x0100);
+        bcomp.loadProgram(prog);
+        assertEquals(0x0700, memory.getValue(0x30));
+        assertEquals(0x0100, memory.getValue(0x31));
+        assertEquals(0x31, regs.get(IP).getValue());
+    }
+
+    @Test
+    public void testRunUntil() {
+        ExecutionEngine engine = bcomp.getEngine();
+        long[] prog = {0x0200, 0x0700, 0x0700, 0x0700, 0x0100};
+
+        memory.setValues(0x10, prog, 0, prog.length);
+        engine.setRunState(true);
+        assertTrue(engine.executeSetAddr(0x10));
+        assertTrue(engine.runUntil(e -> e.getRegValue(IP) == 0x13, Long.MAX_VALUE));
+        assertEquals(2, engine.getRegValue(AC));
+        assertEquals(0x13, engine.getRegValue(IP));
+
+        long ticks = engine.getTickCount();
+        assertTrue(engine.step(1));
+        assertEquals(ticks + 1, engine.getTickCount());
+
+        assertTrue(engine.runUntil(null, Long.MAX_VALUE));
+        assertEquals(3, engine.getRegValue(AC));
+        assertEquals(0x15, engine.getRegValue(IP));
+    }
+
+    @Test
+    public void testDifferentialRunner() throws Exception {
+        DifferentialRunner runner = new DifferentialRunner(BasicComp::new, () -> {
+            BasicComp tested = new BasicComp();
+            tested.getCPU().setDecodeCache(true, true);
+            return tested;
+        });
+
+        runner.setCompareTicks(true);
+        assertNull(runner.fuzz(1, 100, 200, 2));
+        assertEquals(100, runner.getRuns());
+        assertTrue(runner.getInstructions() > 100);
+
+        // New instructions of extended microprogram are found
+        runner = new DifferentialRunner(BasicComp::new, () -> {
+            BasicComp tested = new BasicComp();
+            tested.getCPU().executeMPLoad(new MicroCode(tested.getCPU().getConfig(), true).getImage());
+            return tested;
+        });
+        assertNotNull(runner.fuzz(1, 100, 200, 2));
+    }
+
+    @Test
+    public void testTickCostTable() throws Exception {
+        MicroProgramImage extended = new MicroCode(cpu.getConfig(), true).getImage();
+        TickCostTable table = new TickCostTable(cpu.getConfig(), extended);
+        // Stores of DIV and MOVE are not checked by this machine
+        CPU tcpu = new BasicComp().getCPU();
+
+        try {
+            assertTrue(tcpu.executeMPLoad(extended));
+            // MUL #7F runs longest with all ones in AC and shortest with zero
+            assertEquals(table.getTicks(0x9F7F), measureTicks(tcpu, 0x9F7F, 0xFFFF, 0));
+            assertEquals(table.getTicks(0x9F7F, false), measureTicks(tcpu, 0x9F7F, 0, 0));
+            // DIV by zero subtracts on every step
+            assertEquals(table.getTicks(0x0F00), measureTicks(tcpu, 0x0F00, 0x1234, 0));
+            assertTrue(table.getTicks(0x0F00, false) <= measureTicks(tcpu, 0x0F00, 0x1234, 0x4321));
+            // MOVE of 255 words
+            assertEquals(table.getTicks(0xFA01), measureTicks(tcpu, 0xFAFF, 0x200, 0x400));
+            assertEquals(table.getTicks(0xFA01, false), measureTicks(tcpu, 0xFA00, 0x200, 0x400));
+            // Negative displacement takes longer
+            assertEquals(table.getTicks(0x4E05), measureTicks(tcpu, 0x4EFF, 0, 0));
+            assertEquals(table.getTicks(0x4E05, false), measureTicks(tcpu, 0x4E05, 0, 0));
+            assertEquals(table.getTicks(0x0200), table.getTicks(0x0200, false));
+        } finally {
+            tcpu.stopCPU();
+        }
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        Path path = Files.createTempFile("bcomp", ".snapshot");
+
+        for (long addr = 0; addr < 1L << memory.getAddrWidth(); addr++) {
+            memory.setValue(addr, addr * 0x9E37);
+        }
+        for (Reg r : TEST_REGISTERS) {
+            regs.get(r).setValue(0x1000 + r.ordinal());
+        }
+        regs.get(PS).setValue(0x0A5);
+        bcomp.getIOCtrls()[2].getRegisters()[0].setValue(0x5A);
+        bcomp.getTimer().setCountdown(7);
+        cpu.setClockState(false);
+
+        BasicComp restored = new BasicComp();
+        CPU rcpu = restored.getCPU();
+        try {
+            new Snapshot(bcomp).save(path);
+            new Snapshot(restored).restore(path);
+
+            for (Reg r : Reg.values()) {
+                assertEquals("Register " + r.name(), cpu.getRegValue(r), rcpu.getRegValue(r));
+            }
+            for (long addr = 0; addr < 1L << memory.getAddrWidth(); addr++) {
+                assertEquals(memory.getValue(addr), rcpu.getMemory().getValue(addr));
+            }
+            for (int i = 0; i < bcomp.getIOCtrls().length; i++) {
+                Register[] expected = bcomp.getIOCtrls()[i].getRegisters();
+                Register[] actual = restored.getIOCtrls()[i].getRegisters();
+                for (int j = 0; j < expected.length; j++) {
+                    assertEquals(expected[j].getValue(), actual[j].getValue());
+                }
+            }
+            assertEquals(7, restored.getTimer().getCountdown());
+            assertFalse(rcpu.getClockState());
+
+            // Damaged snapshot is rejected before machine is changed
+            byte[] data = Files.readAllBytes(path);
+            data[data.length - 1] ^= 1;
+            Files.write(path, data);
+            rcpu.getMemory().setValue(0, 0x1234);
+            try {
+                new Snapshot(restored).restore(path);
+                fail("damaged snapshot restored");
+            } catch (IOException e) {
+            }
+            assertEquals(0x1234, rcpu.getMemory().getValue(0));
+        } finally {
+            cpu.setClockState(true);
+            rcpu.stopCPU();
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        // MUL #5 of extended microprogram
+        long[] prog = {0x9F05, 0x0100};
+        Path path = Files.createTempFile("bcomp", ".snapshot");
+
+        assertTrue(cpu.executeMPLoad(new MicroCode(cpu.getConfig(), true).getImage()));
+        memory.setValues(0x10, prog, 0, prog.length);
+        assertTrue(cpu.executeSetAddr(0x10));
+        regs.get(AC).setValue(7);
+
+        BasicComp restored = new BasicComp();
+        CPU rcpu = restored.getCPU();
+        try {
+            new Snapshot(bcomp).save(path);
+            new Snapshot(restored).restore(path);
+
+            assertEquals(cpu.getMicroProgram().findLabel("START"), rcpu.getMicroProgram().findLabel("START"));
+            assertEquals(cpu.getRegValue(MP), rcpu.getRegValue(MP));
+            rcpu.setRunState(true);
+            assertTrue(rcpu.executeContinue());
+            assertEquals(0x23, rcpu.getRegValue(AC));
+            assertEquals(0x12, rcpu.getRegValue(IP));
+        } finally {
+            rcpu.stopCPU();
+            Files.delete(path);
+        }
+    }
+
+    private void runTests(String[] tests) {
+        for (String _test : tests) {
             String[] test = _test.replace(" ", "").split(";");
 
             initialRegs = new EnumMap<Reg, Hexadecimal>(Reg.class);
@@ -363,7 +841,8 @@ public class BasicCompTest {
                 Hexadecimal cmd = new Hexadecimal(test[0]);
                 initialRegs.put(IP, x100);
                 initialMemory.add(new MemoryValue(0x100, cmd));
-                expectedRegs.put(CR, cmd);
+                if (!expectedRegs.containsKey(CR))
+                    expectedRegs.put(CR, cmd);
                 if (!expectedRegs.containsKey(DR))
                     expectedRegs.put(DR, cmd);
                 if (!expectedRegs.containsKey(BR))
@@ -383,6 +862,52 @@ public class BasicCompTest {
         }
     }
 
+    /**
+     * Run DMA input of 128 words waiting for ready flag
+     *
+     * @return ticks, registers and DMA position after run
+     */
+    private static long[] runDMA(boolean decodeCache) throws Exception {
+        BasicComp dmacomp = new BasicComp(new MachineConfig(MachineConfig.CLASSIC.addrWidth, MachineConfig.CLASSIC.mpWidth,
+                MachineConfig.MemoryType.HEAP, null, 128));
+        CPU dmacpu = dmacomp.getCPU();
+        long[] buffer = new long[128];
+        long[] prog = {0xAF00, 0x1320, 0xAF01, 0x1321, 0xAF80, 0x1322, 0xAF00, 0x1323,
+                0xAF80, 0x1325, 0x1224, 0x2F40, 0xF0FD, 0x0100};
+
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = i + 1;
+        }
+
+        try {
+            dmacpu.setDecodeCache(decodeCache, true);
+            dmacomp.getDMA().setBuffer(buffer);
+            dmacpu.getMemory().setValues(0x10, prog, 0, prog.length);
+            dmacpu.setRunState(true);
+            assertTrue(dmacpu.executeSetAddr(0x10));
+            assertTrue(dmacpu.executeStart());
+            assertEquals(decodeCache, dmacpu.getDecodeCache() != null && dmacpu.getDecodeCache().getHits() > 0);
+
+            return new long[]{dmacpu.getTickCount(), dmacpu.getRegValue(IP), dmacpu.getRegValue(AC),
+                    dmacomp.getDMA().getPosition(), dmacpu.getMemory().getValue(0x17F)};
+        } finally {
+            dmacpu.stopCPU();
+        }
+    }
+
+    private static long measureTicks(CPU cpu, long word, long ac, long stack) {
+        cpu.getRegisters().get(PS).setValue(0);
+        cpu.getRegisters().get(AC).setValue(ac);
+        cpu.getRegisters().get(IP).setValue(0x100);
+        cpu.getRegisters().get(SP).setValue(0x700);
+        cpu.getMemory().setValue(0x100, word);
+        cpu.getMemory().setValue(0x700, stack);
+
+        long ticks = cpu.getTickCount();
+        assertTrue(cpu.executeContinue());
+        return cpu.getTickCount() - ticks;
+    }
+
     private void runTest(Runnable run) {
         for (long rvalue : TEST_REG_VALUES)
             for (long svalue : TEST_FLAG_VALUES) {
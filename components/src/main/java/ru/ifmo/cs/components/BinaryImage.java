@@ -0,0 +1,186 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.components;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Memory image of 16-bit words
+ * <p>
+ * Image consists of non-overlapping segments sorted by address,
+ * addresses between segments are not part of image.
+ */
+public class BinaryImage implements Iterable<BinaryImage.Segment> {
+    public static class Segment {
+        public final int address;
+        // Shared with image, should not be modified
+        public final short[] words;
+
+        private Segment(int address, short[] words) {
+            this.address = address;
+            this.words = words;
+        }
+
+        public int getLength() {
+            return words.length;
+        }
+
+        public int getEndAddress() {
+            return address + words.length;
+        }
+
+        public int getWord(int index) {
+            return words[index] & 0xFFFF;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Segment)) {
+                return false;
+            }
+
+            Segment s = (Segment) obj;
+            return address == s.address && Arrays.equals(words, s.words);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * address + Arrays.hashCode(words);
+        }
+    }
+
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private int size = 0;
+
+    /**
+     * Add segment, words are not copied
+     */
+    public void addSegment(int address, short[] words) {
+        if (address < 0) {
+            throw new RuntimeException("Отрицательный адрес сегмента");
+        }
+        if (words.length == 0) {
+            return;
+        }
+
+        Segment segment = new Segment(address, words);
+        int i = segments.size();
+
+        while (i > 0 && segments.get(i - 1).address > address) {
+            i--;
+        }
+        if ((i > 0 && segments.get(i - 1).getEndAddress() > address) ||
+                (i < segments.size() && segment.getEndAddress() > segments.get(i).address)) {
+            throw new RuntimeException("Сегменты образа пересекаются");
+        }
+
+        segments.add(i, segment);
+        size += words.length;
+    }
+
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    @Override
+    public Iterator<Segment> iterator() {
+        return getSegments().iterator();
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Number of words in all segments
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getLoadAddress() {
+        return segments.get(0).address;
+    }
+
+    public int getEndAddress() {
+        return segments.get(segments.size() - 1).getEndAddress();
+    }
+
+    /**
+     * Word at address, 0 when address is not part of image
+     */
+    public int getWord(int address) {
+        int low = 0;
+        int high = segments.size() - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment s = segments.get(mid);
+
+            if (address < s.address) {
+                high = mid - 1;
+            } else if (address >= s.getEndAddress()) {
+                low = mid + 1;
+            } else {
+                return s.getWord(address - s.address);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Continuous words from load address to end address, gaps are filled with zeroes
+     */
+    public int[] toArray() {
+        int[] array = new int[getEndAddress() - getLoadAddress()];
+
+        for (Segment s : segments) {
+            int offset = s.address - getLoadAddress();
+
+            for (int i = 0; i < s.words.length; i++) {
+                array[offset + i] = s.words[i] & 0xFFFF;
+            }
+        }
+
+        return array;
+    }
+
+    /**
+     * Copy all segments to memory, gaps between segments are filled with zeroes
+     * as if continuous program body was written from load address
+     */
+    public void loadInto(Memory memory) {
+        if (isEmpty()) {
+            return;
+        }
+        if (getEndAddress() > 1 << memory.getAddrWidth()) {
+            throw new RuntimeException("Образ не помещается в память");
+        }
+
+        int address = getLoadAddress();
+        for (Segment s : segments) {
+            if (s.address > address) {
+                memory.setValues(address, new short[s.address - address], 0, s.address - address);
+            }
+            memory.setValues(s.address, s.words, 0, s.words.length);
+            address = s.getEndAddress();
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof BinaryImage && segments.equals(((BinaryImage) obj).segments);
+    }
+
+    @Override
+    public int hashCode() {
+        return segments.hashCode();
+    }
+}
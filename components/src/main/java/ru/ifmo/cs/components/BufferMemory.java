@@ -0,0 +1,102 @@
+/*
+ * $Id$
+ */
+
+package ru.ifmo.cs.components;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Off-heap memory of packed 16-bit words
+ * <p>
+ * Lower part of memory may be backed by read-only image shared between
+ * several memories. Image word is read until first write to the same address,
+ * written words are stored in own buffer.
+ */
+public class BufferMemory extends Memory {
+    public static final long MAX_WIDTH = 16;
+
+    private final ShortBuffer memory;
+    private final ShortBuffer image;
+    private final BitSet written;
+
+    public BufferMemory(long width, Register ar) {
+        this(width, ar, null);
+    }
+
+    /**
+     * @param image shared read-only image of lower addresses or null
+     */
+    public BufferMemory(long width, Register ar, ShortBuffer image) {
+        super(width, ar, null);
+
+        if (width > MAX_WIDTH) {
+            throw new RuntimeException("Разрядность ячейки памяти не может превышать " + MAX_WIDTH);
+        }
+
+        int length = 1 << ar.width;
+
+        if (image != null && image.remaining() > length) {
+            throw new RuntimeException("Образ памяти не помещается в память");
+        }
+
+        memory = ByteBuffer.allocateDirect(length << 1).asShortBuffer();
+        this.image = image == null ? null : image.slice().asReadOnlyBuffer();
+        written = image == null ? null : new BitSet(this.image.limit());
+    }
+
+    @Override
+    public synchronized long getValue(long addr) {
+        int a = (int) addr;
+
+        if (image != null && a < image.limit() && !written.get(a)) {
+            return image.get(a) & mask;
+        }
+
+        return memory.get(a) & mask;
+    }
+
+    @Override
+    public synchronized void setValue(long addr, long value) {
+        int a = (int) addr;
+
+        if (image != null && a < image.limit()) {
+            written.set(a);
+        }
+
+        memory.put(a, (short) (value & mask));
+    }
+
+    @Override
+    public synchronized void setValues(long addr, short[] words, int offset, int length) {
+        if (mask != 0xFFFF) {
+            super.setValues(addr, words, offset, length);
+            return;
+        }
+
+        int a = (int) addr;
+
+        if (image != null && a < image.limit()) {
+            written.set(a, Math.min(a + length, image.limit()));
+        }
+
+        ShortBuffer dst = memory.duplicate();
+        dst.position(a);
+        dst.put(words, offset, length);
+    }
+
+    /**
+     * Map memory image file: big endian 16-bit words starting from address 0
+     */
+    public static ShortBuffer mapImage(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size() & ~1L).asShortBuffer();
+        }
+    }
+}
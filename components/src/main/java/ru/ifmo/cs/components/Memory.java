@@ -13,11 +13,19 @@ public class Memory extends BasicComponent implements DataSource, DataDestinatio
     private volatile long lastaccessed;
 
     public Memory(long width, Register ar) {
-        super(width);
+        this(width, ar, new long[1 << ar.width]);
+    }
 
-        memory = new long[1 << ((this.ar = ar).width)];
+    /**
+     * Constructor for memories with own storage
+     *
+     * @param memory storage or null when getValue(long) and setValue(long, long) are overridden
+     */
+    protected Memory(long width, Register ar, long[] memory) {
+        super(width);
 
-        for (int i = 0; i < memory.length; memory[i++] = 0L) ;
+        this.ar = ar;
+        this.memory = memory;
     }
 
     public synchronized long getValue(long addr) {
@@ -33,6 +41,38 @@ public class Memory extends BasicComponent implements DataSource, DataDestinatio
         memory[(int) addr] = value & mask;
     }
 
+    /**
+     * Write 16-bit words starting from address
+     */
+    public synchronized void setValues(long addr, short[] words, int offset, int length) {
+        if (memory == null) {
+            for (int i = 0; i < length; i++) {
+                setValue(addr + i, words[offset + i] & 0xFFFF);
+            }
+            return;
+        }
+
+        for (int i = 0, a = (int) addr; i < length; i++, a++) {
+            memory[a] = words[offset + i] & 0xFFFF & mask;
+        }
+    }
+
+    /**
+     * Write words starting from address
+     */
+    public synchronized void setValues(long addr, long[] words, int offset, int length) {
+        if (memory == null) {
+            for (int i = 0; i < length; i++) {
+                setValue(addr + i, words[offset + i]);
+            }
+            return;
+        }
+
+        for (int i = 0, a = (int) addr; i < length; i++, a++) {
+            memory[a] = words[offset + i] & mask;
+        }
+    }
+
     @Override
     public synchronized void setValue(long value) {
         setValue(lastaccessed = ar.getValue(), value);
@@ -30,6 +30,10 @@ public class Register extends DataPart {
         return (value >> startbit) & 1L;
     }
 
+    public synchronized StringBuilder appendTo(StringBuilder sb) {
+        return Utils.appendHex(sb, value, width);
+    }
+
     @Override
     public synchronized String toString() {
         return Utils.toHex(value, width);
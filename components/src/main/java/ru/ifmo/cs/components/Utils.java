@@ -4,6 +4,8 @@
 
 package ru.ifmo.cs.components;
 
+import java.io.IOException;
+
 /**
  * @author Dmitry Afanasiev <KOT@MATPOCKuH.Ru>
  */
@@ -15,6 +17,22 @@ public class Utils {
 
     private final static String[] flags = {"0", "1"};
 
+    /**
+     * Four hex digits of every 16-bit value, created on first use
+     */
+    private static class Hex16 {
+        private final static char[] table = new char[0x10000 << 2];
+
+        static {
+            for (int value = 0, pos = 0; value < 0x10000; value++) {
+                table[pos++] = digits[value >> 12];
+                table[pos++] = digits[(value >> 8) & 0xf];
+                table[pos++] = digits[(value >> 4) & 0xf];
+                table[pos++] = digits[value & 0xf];
+            }
+        }
+    }
+
     public static String toBinaryFlag(long value) {
         return flags[(int) value];
     }
@@ -38,6 +56,29 @@ public class Utils {
         return new String(buf);
     }
 
+    public static StringBuilder appendBinary(StringBuilder sb, long value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            sb.append(digits[(int) ((value >> i) & 1)]);
+            if (i != 0 && (i & 3) == 0)
+                sb.append(' ');
+        }
+
+        return sb;
+    }
+
+    /**
+     * Append binary value to any Appendable, i.e. Writer or CharBuffer
+     */
+    public static <T extends Appendable> T appendBinary(T out, long value, int width) throws IOException {
+        for (int i = width - 1; i >= 0; i--) {
+            out.append(digits[(int) ((value >> i) & 1)]);
+            if (i != 0 && (i & 3) == 0)
+                out.append(' ');
+        }
+
+        return out;
+    }
+
     public static int getBitNo(int pos, int width, int charWidth) {
         pos -= charWidth >> 1;
 
@@ -57,6 +98,9 @@ public class Utils {
     }
 
     public static String toHex(long value, long width) {
+        if (width == 16)
+            return new String(Hex16.table, ((int) value & 0xffff) << 2, 4);
+
         int chars = getHexWidth((int) width);
         char[] buf = new char[chars];
 
@@ -68,6 +112,26 @@ public class Utils {
         return new String(buf);
     }
 
+    public static StringBuilder appendHex(StringBuilder sb, long value, long width) {
+        if (width == 16)
+            return sb.append(Hex16.table, ((int) value & 0xffff) << 2, 4);
+
+        for (int shift = (getHexWidth((int) width) - 1) << 2; shift >= 0; shift -= 4)
+            sb.append(digits[(int) ((value >> shift) & 0xf)]);
+
+        return sb;
+    }
+
+    /**
+     * Append hex value to any Appendable, i.e. Writer or CharBuffer
+     */
+    public static <T extends Appendable> T appendHex(T out, long value, long width) throws IOException {
+        for (int shift = (getHexWidth((int) width) - 1) << 2; shift >= 0; shift -= 4)
+            out.append(digits[(int) ((value >> shift) & 0xf)]);
+
+        return out;
+    }
+
     public static boolean isNumeric(String s, int radix) {
         if (s == null || s.length() == 0)
             return false;